@@ -0,0 +1,90 @@
+package org.github.hnyp.osapitest.benchmarks;
+
+import org.github.hnyp.osapitest.fakeopenstack.FakeOpenStack;
+import org.github.hnyp.osapitest.fakeopenstack.Faults;
+import org.github.hnyp.osapitest.fakeopenstack.Fleet;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+
+/**
+ * Local region every SDK is benchmarked against, a {@link FakeOpenStack} started for the trial.
+ * <p>
+ * Pages of {@link #PAGE} servers and ports are also recorded as raw JSON for the deserialization benchmarks,
+ * their scores are per entity and {@code -prof gc} reports allocation per entity as {@code gc.alloc.rate.norm}:
+ * <pre>
+ * mvn -pl benchmarks -am package -DskipTests
+ * java -jar benchmarks/target/benchmarks.jar -prof gc
+ * java -jar benchmarks/target/benchmarks.jar inventoryPass -p vms=50000 -p latencyMillis=20
+ * </pre>
+ */
+@State(Scope.Benchmark)
+public class FakeRegion {
+
+    public static final int PAGE = 1000;
+
+    static final String USERNAME = "admin";
+    static final String PASSWORD = "benchmark";
+    static final String TENANT = "admin";
+
+    @Param("200")
+    public int hosts;
+
+    @Param("10000")
+    public int vms;
+
+    @Param("50")
+    public int networks;
+
+    // per request latency of Nova and Neutron, 0 measures the SDKs alone
+    @Param("0")
+    public int latencyMillis;
+
+    FakeOpenStack openStack;
+    byte[] serversPage;
+    byte[] portsPage;
+
+    @Setup(Level.Trial)
+    public void start() throws IOException {
+        Fleet fleet = Fleet.generate(1, hosts, vms, networks, 2);
+        openStack = new FakeOpenStack(fleet, new Faults(latencyMillis, 0, 0, 503), 0);
+        openStack.start();
+        serversPage = get(openStack.getComputeUrl() + "/servers/detail?limit=" + PAGE);
+        portsPage = get(openStack.getNetworkUrl() + "/ports?limit=" + PAGE);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() {
+        openStack.close();
+    }
+
+    String keystoneUrl() {
+        return openStack.getKeystoneUrl();
+    }
+
+    private static byte[] get(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestProperty("Accept", "application/json");
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] chunk = new byte[8192];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                body.write(chunk, 0, read);
+            }
+            return body.toByteArray();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+}
@@ -0,0 +1,86 @@
+package org.github.hnyp.osapitest.benchmarks;
+
+import org.github.hnyp.osapitest.common.inventory.InventoryJoin;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * {@link InventoryJoin} of step 4.3.2 against the nested port scan it replaced, on generated inventories.
+ * Hash join time should grow linearly with the VMs, the nested scan quadratically; the nested scan is hopeless
+ * past a few thousand VMs, larger inventories are for the hash join alone:
+ * <pre>
+ * java -jar benchmarks/target/benchmarks.jar InventoryJoinBenchmark.hashJoin -p vms=16000,64000,128000
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class InventoryJoinBenchmark {
+
+    private static final int HOSTS = 500;
+    private static final int NETWORKS = 50;
+    private static final int PORTS_PER_VM = 3;
+
+    private static final InventoryJoin<String[], String[], String> JOIN = new InventoryJoin<>(
+            vm -> vm[0], vm -> vm[1],
+            port -> port[1], port -> port[2],
+            network -> network);
+
+    @Param({"1000", "2000", "4000", "8000"})
+    public int vms;
+
+    private List<String[]> vmList;
+    private List<String[]> portList;
+    private List<String> networkList;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        Random random = new Random(vms);
+        vmList = new ArrayList<>(vms);
+        portList = new ArrayList<>(vms * PORTS_PER_VM);
+        networkList = new ArrayList<>(NETWORKS);
+        for (int n = 0; n < NETWORKS; n++) {
+            networkList.add("net-" + n);
+        }
+        for (int v = 0; v < vms; v++) {
+            String vmId = "vm-" + v;
+            vmList.add(new String[]{vmId, "compute-" + random.nextInt(HOSTS)});
+            for (int p = 0; p < PORTS_PER_VM; p++) {
+                portList.add(new String[]{vmId + "-port-" + p, vmId, networkList.get(random.nextInt(NETWORKS))});
+            }
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public InventoryJoin.Result<String[], String[], String> hashJoin() {
+        return JOIN.join(vmList, portList, networkList);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public Map<String, List<String[]>> nestedScan() {
+        return vmList.stream()
+                .collect(Collectors.groupingBy(vm -> vm[1], Collectors.mapping(
+                        vm -> portList.stream().filter(p -> Objects.equals(p[1], vm[0])).findFirst().orElse(null),
+                        Collectors.toList())));
+    }
+
+}
@@ -0,0 +1,155 @@
+package org.github.hnyp.osapitest.benchmarks;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Injector;
+import com.google.inject.Module;
+import com.google.inject.TypeLiteral;
+import org.jclouds.ContextBuilder;
+import org.jclouds.http.functions.ParseJson;
+import org.jclouds.json.Json;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.jclouds.openstack.keystone.config.KeystoneProperties;
+import org.jclouds.openstack.neutron.v2.NeutronApi;
+import org.jclouds.openstack.neutron.v2.domain.Ports;
+import org.jclouds.openstack.nova.v2_0.NovaApi;
+import org.jclouds.openstack.nova.v2_0.domain.Server;
+import org.jclouds.openstack.nova.v2_0.functions.internal.ParseServerDetails;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * jclouds against the {@link FakeRegion}: Gson deserialization of a page, full inventory pass and the cost of a
+ * Guice-built context until the first result.
+ */
+@State(Scope.Benchmark)
+@Fork(value = 1, jvmArgsAppend = {
+        "--add-opens=java.base/java.lang=ALL-UNNAMED",
+        "--add-opens=java.base/java.net=ALL-UNNAMED",
+        "--add-opens=java.base/java.util=ALL-UNNAMED"})
+public class JcloudsBenchmark {
+
+    private NovaApi novaApi;
+    private NeutronApi neutronApi;
+    private String region;
+    private ParseServerDetails serversParser;
+    private ParseJson<Ports> portsParser;
+
+    @Setup(Level.Trial)
+    public void setUp(FakeRegion fakeRegion) {
+        Injector novaInjector = injector("openstack-nova", fakeRegion);
+        Injector neutronInjector = injector("openstack-neutron", fakeRegion);
+        novaApi = novaInjector.getInstance(NovaApi.class);
+        neutronApi = neutronInjector.getInstance(NeutronApi.class);
+        region = novaApi.getConfiguredRegions().iterator().next();
+        serversParser = new ParseServerDetails(novaInjector.getInstance(Json.class));
+        portsParser = new ParseJson<>(neutronInjector.getInstance(Json.class), TypeLiteral.get(Ports.class));
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        novaApi.close();
+        neutronApi.close();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(FakeRegion.PAGE)
+    public Iterable<Server> deserializeServers(FakeRegion fakeRegion) throws IOException {
+        return serversParser.apply(new ByteArrayInputStream(fakeRegion.serversPage));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(FakeRegion.PAGE)
+    public Ports deserializePorts(FakeRegion fakeRegion) throws IOException {
+        return portsParser.apply(new ByteArrayInputStream(fakeRegion.portsPage));
+    }
+
+    // listings of the pipeline with a warm context, pages are followed by the SDK
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public int inventoryPass() {
+        int entities = novaApi.getAvailabilityZoneApi(region).get().listInDetail().size();
+        entities += novaApi.getHypervisorApi(region).get().listInDetail().size();
+        entities += novaApi.getServerApi(region).listInDetail().concat().size();
+        entities += novaApi.getFlavorApi(region).listInDetail().concat().size();
+        entities += neutronApi.getPortApi(region).list().concat().size();
+        entities += neutronApi.getNetworkApi(region).list().concat().size();
+        return entities;
+    }
+
+    // Guice injectors of both APIs and the Keystone call behind the service catalog
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public int startup(FakeRegion fakeRegion) throws IOException {
+        NovaApi nova = injector("openstack-nova", fakeRegion).getInstance(NovaApi.class);
+        NeutronApi neutron = injector("openstack-neutron", fakeRegion).getInstance(NeutronApi.class);
+        try {
+            return nova.getConfiguredRegions().size() + neutron.getConfiguredRegions().size();
+        } finally {
+            close(nova, neutron);
+        }
+    }
+
+    // cold context to the first server of the first page
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public Server firstServer(FakeRegion fakeRegion) throws IOException {
+        NovaApi nova = injector("openstack-nova", fakeRegion).getInstance(NovaApi.class);
+        try {
+            String novaRegion = nova.getConfiguredRegions().iterator().next();
+            return nova.getServerApi(novaRegion)
+                    .listInDetail(PaginationOptions.Builder.limit(FakeRegion.PAGE))
+                    .first().orNull();
+        } finally {
+            nova.close();
+        }
+    }
+
+    private static Injector injector(String provider, FakeRegion fakeRegion) {
+        Properties overrides = new Properties();
+        overrides.put(KeystoneProperties.TENANT_NAME, FakeRegion.TENANT);
+        return ContextBuilder.newBuilder(provider)
+                .endpoint(fakeRegion.keystoneUrl())
+                .credentials(FakeRegion.USERNAME, FakeRegion.PASSWORD)
+                .overrides(overrides)
+                .modules(ImmutableSet.<Module>of(new SLF4JLoggingModule()))
+                .buildInjector();
+    }
+
+    private static void close(Closeable... apis) throws IOException {
+        for (Closeable api : apis) {
+            api.close();
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.github.hnyp.osapitest.benchmarks;
+
+import org.openstack4j.api.OSClient.OSClientV2;
+import org.openstack4j.core.transport.ObjectMapperSingleton;
+import org.openstack4j.model.compute.Server;
+import org.openstack4j.model.identity.v2.Access;
+import org.openstack4j.openstack.OSFactory;
+import org.openstack4j.openstack.compute.domain.NovaServer;
+import org.openstack4j.openstack.networking.domain.NeutronPort;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * openstack4j against the {@link FakeRegion}: Jackson deserialization of a page, full inventory pass and the cost of
+ * {@code OSFactory.builderV2()} until the first result.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class Openstack4jBenchmark {
+
+    private Access access;
+
+    @Setup(Level.Trial)
+    public void setUp(FakeRegion fakeRegion) {
+        access = authenticate(fakeRegion).getAccess();
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(FakeRegion.PAGE)
+    public NovaServer.Servers deserializeServers(FakeRegion fakeRegion) throws IOException {
+        return ObjectMapperSingleton.getContext(NovaServer.Servers.class)
+                .readValue(fakeRegion.serversPage, NovaServer.Servers.class);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(FakeRegion.PAGE)
+    public NeutronPort.Ports deserializePorts(FakeRegion fakeRegion) throws IOException {
+        return ObjectMapperSingleton.getContext(NeutronPort.Ports.class)
+                .readValue(fakeRegion.portsPage, NeutronPort.Ports.class);
+    }
+
+    // listings of the pipeline with a warm session, ServerService.list(Map) doesn't follow pages by itself
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public int inventoryPass() {
+        OSClientV2 client = OSFactory.clientFromAccess(access);
+        int entities = client.compute().zones().list(true).size();
+        entities += client.compute().hypervisors().list().size();
+        entities += listServers(client);
+        entities += client.compute().flavors().list(true).size();
+        entities += client.networking().port().list().size();
+        entities += client.networking().network().list().size();
+        return entities;
+    }
+
+    // Keystone call and the client bound to the calling thread
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public OSClientV2 startup(FakeRegion fakeRegion) {
+        return authenticate(fakeRegion);
+    }
+
+    // cold client to the first server of the first page
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public Server firstServer(FakeRegion fakeRegion) {
+        Map<String, String> filter = new HashMap<>();
+        filter.put("limit", String.valueOf(FakeRegion.PAGE));
+        List<? extends Server> page = authenticate(fakeRegion).compute().servers().list(filter);
+        return page.isEmpty() ? null : page.get(0);
+    }
+
+    private static OSClientV2 authenticate(FakeRegion fakeRegion) {
+        return OSFactory.builderV2()
+                .endpoint(fakeRegion.keystoneUrl())
+                .credentials(FakeRegion.USERNAME, FakeRegion.PASSWORD)
+                .tenantName(FakeRegion.TENANT)
+                .authenticate();
+    }
+
+    private static int listServers(OSClientV2 client) {
+        Map<String, String> filter = new HashMap<>();
+        filter.put("limit", String.valueOf(FakeRegion.PAGE));
+        int servers = 0;
+        while (true) {
+            List<? extends Server> page = client.compute().servers().list(filter);
+            servers += page.size();
+            if (page.size() < FakeRegion.PAGE) {
+                return servers;
+            }
+            filter.put("marker", page.get(page.size() - 1).getId());
+        }
+    }
+
+}
@@ -0,0 +1,44 @@
+package org.github.hnyp.osapitest.benchmarks;
+
+import org.github.hnyp.osapitest.common.inventory.PagedListing;
+import org.github.hnyp.osapitest.common.inventory.PortSummary;
+import org.github.hnyp.osapitest.common.inventory.ProjectionDecoder;
+import org.github.hnyp.osapitest.common.inventory.ServerSummary;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link ProjectionDecoder} on the same pages the SDK benchmarks bind to DTOs, run with {@code -prof gc}
+ * to compare allocation per entity as well.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class ProjectionBenchmark {
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(FakeRegion.PAGE)
+    public PagedListing.Page<ServerSummary> decodeServers(FakeRegion fakeRegion) throws IOException {
+        return ProjectionDecoder.servers(new ByteArrayInputStream(fakeRegion.serversPage));
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(FakeRegion.PAGE)
+    public PagedListing.Page<PortSummary> decodePorts(FakeRegion fakeRegion) throws IOException {
+        return ProjectionDecoder.ports(new ByteArrayInputStream(fakeRegion.portsPage));
+    }
+
+}
@@ -0,0 +1,149 @@
+package org.github.hnyp.osapitest.benchmarks;
+
+import static com.woorea.openstack.keystone.utils.KeystoneUtils.findEndpointURL;
+
+import com.woorea.openstack.base.client.OpenStackRequest;
+import com.woorea.openstack.keystone.Keystone;
+import com.woorea.openstack.keystone.model.Access;
+import com.woorea.openstack.keystone.model.authentication.UsernamePassword;
+import com.woorea.openstack.nova.Nova;
+import com.woorea.openstack.nova.model.Server;
+import com.woorea.openstack.nova.model.Servers;
+import com.woorea.openstack.quantum.Quantum;
+import com.woorea.openstack.quantum.model.Ports;
+import org.codehaus.jackson.map.DeserializationConfig;
+import org.codehaus.jackson.map.ObjectMapper;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * openstack-java-sdk against the {@link FakeRegion}: Jackson 1 deserialization of a page, full inventory pass and the
+ * cost of plain clients until the first result. Built with {@code -Posjavasdk} only.
+ */
+@State(Scope.Benchmark)
+@Fork(1)
+public class OpenstackJavaSdkBenchmark {
+
+    // woorea connectors don't fail on unknown properties either
+    private static final ObjectMapper MAPPER = new ObjectMapper()
+            .configure(DeserializationConfig.Feature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+
+    private Nova novaClient;
+    private Quantum neutronClient;
+
+    @Setup(Level.Trial)
+    public void setUp(FakeRegion fakeRegion) {
+        Access access = authenticate(fakeRegion);
+        novaClient = nova(access);
+        neutronClient = neutron(access);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(FakeRegion.PAGE)
+    public Servers deserializeServers(FakeRegion fakeRegion) throws IOException {
+        return MAPPER.readValue(fakeRegion.serversPage, Servers.class);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    @OperationsPerInvocation(FakeRegion.PAGE)
+    public Ports deserializePorts(FakeRegion fakeRegion) throws IOException {
+        return MAPPER.readValue(fakeRegion.portsPage, Ports.class);
+    }
+
+    // listings of the pipeline with warm clients, pages are followed with limit and marker
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 3)
+    @Measurement(iterations = 5)
+    public int inventoryPass() {
+        int entities = novaClient.hosts().list().execute().getList().size();
+        entities += novaClient.hypervisors().list().execute().getList().size();
+        entities += listServers(novaClient);
+        entities += novaClient.flavors().list(true).execute().getList().size();
+        entities += neutronClient.ports().list().execute().getList().size();
+        entities += neutronClient.networks().list().execute().getList().size();
+        return entities;
+    }
+
+    // Keystone call and both clients on the endpoints of its catalog
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public Quantum startup(FakeRegion fakeRegion) {
+        Access access = authenticate(fakeRegion);
+        nova(access);
+        return neutron(access);
+    }
+
+    // cold client to the first server of the first page
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    @Warmup(iterations = 5)
+    @Measurement(iterations = 20)
+    public Server firstServer(FakeRegion fakeRegion) {
+        List<Server> page = nova(authenticate(fakeRegion)).servers().list(true)
+                .queryParam("limit", FakeRegion.PAGE)
+                .execute().getList();
+        return page.isEmpty() ? null : page.get(0);
+    }
+
+    private static Access authenticate(FakeRegion fakeRegion) {
+        return new Keystone(fakeRegion.keystoneUrl()).tokens()
+                .authenticate(new UsernamePassword(FakeRegion.USERNAME, FakeRegion.PASSWORD))
+                .withTenantName(FakeRegion.TENANT)
+                .execute();
+    }
+
+    private static Nova nova(Access access) {
+        Nova nova = new Nova(findEndpointURL(access.getServiceCatalog(), "compute", null, "public"));
+        nova.token(access.getToken().getId());
+        return nova;
+    }
+
+    private static Quantum neutron(Access access) {
+        Quantum quantum = new Quantum(findEndpointURL(access.getServiceCatalog(), "network", null, "public"));
+        quantum.token(access.getToken().getId());
+        return quantum;
+    }
+
+    private static int listServers(Nova nova) {
+        int servers = 0;
+        String marker = null;
+        while (true) {
+            OpenStackRequest<Servers> request = nova.servers().list(true);
+            request.queryParam("limit", FakeRegion.PAGE);
+            if (marker != null) {
+                request.queryParam("marker", marker);
+            }
+            List<Server> page = request.execute().getList();
+            servers += page.size();
+            if (page.size() < FakeRegion.PAGE) {
+                return servers;
+            }
+            marker = page.get(page.size() - 1).getId();
+        }
+    }
+
+}
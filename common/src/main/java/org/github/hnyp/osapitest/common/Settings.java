@@ -0,0 +1,93 @@
+package org.github.hnyp.osapitest.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.stream.Collectors;
+
+/**
+ * Tuning settings of the pipelines, loaded from optional {@code settings.properties}.
+ * Every setting could be overridden with system property prefixed by {@code osapitest.}, e.g. {@code -Dosapitest.calls.concurrency=8}.
+ */
+public class Settings {
+
+    private static final Properties PROPS = new Properties();
+
+    static {
+        try (InputStream in = Settings.class.getClassLoader().getResourceAsStream("settings.properties")) {
+            if (in != null) {
+                PROPS.load(in);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static final int CALLS_CONCURRENCY = intValue("calls.concurrency", 6);
+    public static final int CALLS_TIMEOUT_SECONDS = intValue("calls.timeout.seconds", 120);
+    public static final boolean CALLS_VIRTUAL_THREADS = booleanValue("calls.virtual.threads", false);
+    public static final int CALLS_ENDPOINT_CONCURRENCY = intValue("calls.endpoint.concurrency", 16);
+    public static final List<String> TENANTS = listValue("tenants", "");
+    public static final List<String> REGIONS = listValue("regions", "");
+    public static final int REGION_TIMEOUT_SECONDS = intValue("region.timeout.seconds", 300);
+    public static final int LISTING_PAGE_SIZE = intValue("listing.page.size", 1000);
+    public static final boolean LISTING_PROJECTION = booleanValue("listing.projection", true);
+    public static final int LISTING_COALESCE_FRESHNESS_MILLIS = intValue("listing.coalesce.freshness.millis", 0);
+    public static final int REFRESH_INTERVAL_SECONDS = intValue("refresh.interval.seconds", 0);
+    public static final int REFRESH_OVERLAP_SECONDS = intValue("refresh.overlap.seconds", 5);
+    public static final int TOKEN_REFRESH_AHEAD_SECONDS = intValue("token.refresh.ahead.seconds", 300);
+    public static final int PLACEMENT_BATCH_SIZE = intValue("placement.batch.size", 1);
+    public static final int PLACEMENT_HOST_VPORTS = intValue("placement.host.vports", 0);
+    public static final int PLACEMENT_PHYSNET_VPORTS = intValue("placement.physnet.vports", 0);
+    public static final String DISK_CAPACITY_SOURCE = value("disk.capacity.source", "hypervisor");
+    public static final int DISK_CAPACITY_TTL_SECONDS = intValue("disk.capacity.ttl.seconds", 60);
+    public static final String DISK_CEPH_DF_FILE = value("disk.ceph.df.file", "ceph-df-{region}.json");
+    public static final String DISK_CEPH_POOL = value("disk.ceph.pool", "vms");
+    public static final boolean LIMITER_ENABLED = booleanValue("limiter.enabled", true);
+    public static final int LIMITER_INITIAL_CONCURRENCY = intValue("limiter.initial.concurrency", 4);
+    public static final int LIMITER_MIN_CONCURRENCY = intValue("limiter.min.concurrency", 1);
+    public static final int LIMITER_MAX_CONCURRENCY = intValue("limiter.max.concurrency", 32);
+    public static final int LIMITER_BACKOFF_PERCENT = intValue("limiter.backoff.percent", 50);
+    public static final int LIMITER_LATENCY_TOLERANCE_PERCENT = intValue("limiter.latency.tolerance.percent", 300);
+    public static final int RETRY_MAX_ATTEMPTS = intValue("retry.max.attempts", 4);
+    public static final int RETRY_BASE_DELAY_MILLIS = intValue("retry.base.delay.millis", 200);
+    public static final int RETRY_MAX_DELAY_MILLIS = intValue("retry.max.delay.millis", 30000);
+    public static final int HTTP_POOL_MAX_TOTAL = intValue("http.pool.max.total", 20);
+    public static final int HTTP_POOL_MAX_PER_ROUTE = intValue("http.pool.max.per.route", 10);
+    public static final int HTTP_KEEP_ALIVE_SECONDS = intValue("http.keep.alive.seconds", 30);
+    public static final boolean HTTP_COMPRESSION = booleanValue("http.compression", true);
+    public static final int HTTP_CONNECT_TIMEOUT_MILLIS = intValue("http.connect.timeout.millis", 10000);
+    public static final int HTTP_SOCKET_TIMEOUT_MILLIS = intValue("http.socket.timeout.millis", 60000);
+    public static final List<String> WIRE_LOG_ENDPOINTS = listValue("wire.log.endpoints", "");
+    public static final int WIRE_LOG_SAMPLE_PERCENT = intValue("wire.log.sample.percent", 100);
+    public static final int WIRE_LOG_STATUS_ALWAYS = intValue("wire.log.status.always", 400);
+    public static final int WIRE_LOG_BODY_MAX_BYTES = intValue("wire.log.body.max.bytes", 2048);
+    public static final boolean WIRE_LOG_FULL_BODY = booleanValue("wire.log.full.body", false);
+    public static final boolean METRICS_JMX = booleanValue("metrics.jmx", true);
+    public static final boolean METRICS_REPORT = booleanValue("metrics.report", true);
+    public static final String SNAPSHOT_DIR = value("snapshot.dir", "");
+    public static final int CAPACITY_SERVICE_PORT = intValue("capacity.service.port", 0);
+    public static final int CAPACITY_SERVICE_THREADS = intValue("capacity.service.threads", 4);
+
+    static String value(String key, String defaultValue) {
+        return System.getProperty("osapitest." + key, PROPS.getProperty(key, defaultValue)).trim();
+    }
+
+    static int intValue(String key, int defaultValue) {
+        return Integer.parseInt(value(key, String.valueOf(defaultValue)));
+    }
+
+    static List<String> listValue(String key, String defaultValue) {
+        return Arrays.stream(value(key, defaultValue).split(","))
+                .map(String::trim)
+                .filter(it -> !it.isEmpty())
+                .collect(Collectors.toList());
+    }
+
+    static boolean booleanValue(String key, boolean defaultValue) {
+        return Boolean.parseBoolean(value(key, String.valueOf(defaultValue)));
+    }
+
+}
@@ -0,0 +1,174 @@
+package org.github.hnyp.osapitest.common;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keystone tokens shared by all API clients of a process, one per tenant.
+ * <p>
+ * Concurrent callers asking for a tenant which has no valid token wait for a single authentication.
+ * Tokens are re-issued in background {@code refreshAhead} before they expire, callers keep getting
+ * the current token until the new one is ready, so nobody waits for Keystone once the first token is there.
+ *
+ * @param <A> SDK specific authentication result (access with service catalog) kept along with the token
+ */
+public class TokenManager<A> implements AutoCloseable {
+
+    private static final Duration RETRY_DELAY = Duration.ofSeconds(5);
+
+    private final Authenticator<A> authenticator;
+    private final Duration refreshAhead;
+    private final ScheduledExecutorService refresher;
+    private final ConcurrentMap<String, CompletableFuture<Token<A>>> tokens = new ConcurrentHashMap<>();
+
+    public TokenManager(Authenticator<A> authenticator, Duration refreshAhead) {
+        this.authenticator = authenticator;
+        this.refreshAhead = refreshAhead;
+        this.refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "token-refresh");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @return valid token of the tenant, authenticating if there's none yet
+     */
+    public Token<A> get(String tenant) {
+        while (true) {
+            CompletableFuture<Token<A>> current = tokens.get(tenant);
+            if (current != null && !isUnusable(current)) {
+                return join(current);
+            }
+            CompletableFuture<Token<A>> inFlight = new CompletableFuture<>();
+            boolean owner = current == null
+                    ? tokens.putIfAbsent(tenant, inFlight) == null
+                    : tokens.replace(tenant, current, inFlight);
+            if (owner) {
+                authenticate(tenant, inFlight);
+                // the caller which authenticated gets its result too, a failure must not make it retry forever
+                return join(inFlight);
+            }
+        }
+    }
+
+    /**
+     * Drops the token, e.g. after the API rejected it with 401. Next {@link #get(String)} authenticates again.
+     */
+    public void invalidate(String tenant, Token<A> token) {
+        CompletableFuture<Token<A>> current = tokens.get(tenant);
+        if (current != null && current.isDone() && !current.isCompletedExceptionally() && current.join() == token) {
+            tokens.remove(tenant, current);
+        }
+    }
+
+    @Override
+    public void close() {
+        refresher.shutdownNow();
+        authenticator.close();
+    }
+
+    private void authenticate(String tenant, CompletableFuture<Token<A>> inFlight) {
+        try {
+            Token<A> token = authenticator.authenticate(tenant);
+            inFlight.complete(token);
+            scheduleRefresh(tenant, token);
+        } catch (Throwable e) {
+            // waiters must never hang on an authentication that broke
+            inFlight.completeExceptionally(e);
+        }
+    }
+
+    private void scheduleRefresh(String tenant, Token<A> token) {
+        long delay = Duration.between(Instant.now(), token.getExpiresAt().minus(refreshAhead)).toMillis();
+        refresher.schedule(() -> refresh(tenant, token), Math.max(delay, 0), TimeUnit.MILLISECONDS);
+    }
+
+    private void refresh(String tenant, Token<A> expiring) {
+        CompletableFuture<Token<A>> current = tokens.get(tenant);
+        if (current == null || !current.isDone() || current.isCompletedExceptionally() || current.join() != expiring) {
+            // invalidated or already replaced by a caller
+            return;
+        }
+        try {
+            Token<A> token = authenticator.authenticate(tenant);
+            if (tokens.replace(tenant, current, CompletableFuture.completedFuture(token))) {
+                scheduleRefresh(tenant, token);
+            }
+        } catch (RuntimeException e) {
+            if (Instant.now().plus(RETRY_DELAY).isBefore(expiring.getExpiresAt())) {
+                refresher.schedule(() -> refresh(tenant, expiring), RETRY_DELAY.toMillis(), TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private static <A> Token<A> join(CompletableFuture<Token<A>> token) {
+        try {
+            return token.join();
+        } catch (CompletionException e) {
+            // callers which waited for the failed authentication get its error, next ones authenticate again
+            throw e.getCause() instanceof RuntimeException
+                    ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        }
+    }
+
+    private static boolean isUnusable(CompletableFuture<? extends Token<?>> token) {
+        return token.isDone() && (token.isCompletedExceptionally() || token.join().isExpired());
+    }
+
+    @FunctionalInterface
+    public interface Authenticator<A> extends AutoCloseable {
+
+        Token<A> authenticate(String tenant);
+
+        /**
+         * Releases what the authenticator keeps between authentications, called when the manager closes.
+         */
+        @Override
+        default void close() {
+        }
+
+    }
+
+    public static class Token<A> {
+
+        private final String id;
+        private final Instant expiresAt;
+        private final A access;
+
+        public Token(String id, Instant expiresAt, A access) {
+            this.id = id;
+            this.expiresAt = expiresAt;
+            this.access = access;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public Instant getExpiresAt() {
+            return expiresAt;
+        }
+
+        public A getAccess() {
+            return access;
+        }
+
+        public boolean isExpired() {
+            return !Instant.now().isBefore(expiresAt);
+        }
+
+        @Override
+        public String toString() {
+            return "Token{expiresAt=" + expiresAt + '}';
+        }
+    }
+
+}
@@ -0,0 +1,260 @@
+package org.github.hnyp.osapitest.common.capacity;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Local HTTP endpoint answering capacity questions from the last published {@link CapacityView}.
+ * <p>
+ * The pipeline publishes a new view after every refresh, requests read whichever view is current when they start,
+ * so they never wait for a refresh and a batch is answered from a single view.
+ * <ul>
+ * <li>{@code GET /capacity/hosts?zone=nova&ramMb=1024&diskGb=10&vcpus=2&vports=5&limit=10} - hosts which could fit
+ * a VM of that size, {@code zone}, {@code region} and {@code limit} are optional</li>
+ * <li>{@code POST /capacity/hosts} with a JSON array of such queries - the results in the same order</li>
+ * <li>{@code GET /capacity/status} - regions, failures of the last refresh and its time</li>
+ * </ul>
+ * Until the first view is published requests are answered with 503.
+ */
+public class CapacityService implements AutoCloseable {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final AtomicReference<CapacityView> view = new AtomicReference<>(CapacityView.empty());
+    private final PipelineMetrics metrics;
+    private final ExecutorService executor;
+    private final HttpServer server;
+
+    /**
+     * Starts listening on the loopback interface.
+     *
+     * @param port 0 for any free port
+     */
+    public CapacityService(int port, int threads, PipelineMetrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread thread = new Thread(r, "capacity-service");
+            thread.setDaemon(true);
+            return thread;
+        });
+        // responses are written as headers then body, with Nagle on clients wait for a delayed ACK (~40 ms) each time,
+        // read once when the server class is loaded so it has to be set before the first create
+        if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+            System.setProperty("sun.net.httpserver.nodelay", "true");
+        }
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/capacity/hosts", exchange -> handle(exchange, this::hosts));
+        server.createContext("/capacity/status", exchange -> handle(exchange, this::status));
+        server.setExecutor(executor);
+        server.start();
+    }
+
+    public void publish(CapacityView next) {
+        view.set(next);
+    }
+
+    public CapacityView current() {
+        return view.get();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        long startedAt = System.nanoTime();
+        String endpoint = exchange.getRequestMethod() + " " + exchange.getHttpContext().getPath();
+        int status = 500;
+        try {
+            CapacityView current = view.get();
+            ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+            if (current.getRefreshedAt() == null) {
+                status = 503;
+                writeError(body, "Inventory is not collected yet");
+            } else {
+                try (JsonGenerator json = JSON.createGenerator(body, JsonEncoding.UTF8)) {
+                    status = handler.handle(exchange, current, json);
+                } catch (BadRequestException | JsonParseException | NumberFormatException e) {
+                    status = 400;
+                    body.reset();
+                    writeError(body, e.getMessage());
+                }
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/json");
+            exchange.sendResponseHeaders(status, body.size());
+            try (OutputStream out = exchange.getResponseBody()) {
+                body.writeTo(out);
+            }
+        } finally {
+            exchange.close();
+            metrics.capacityQuery(endpoint, status, System.nanoTime() - startedAt);
+        }
+    }
+
+    private int hosts(HttpExchange exchange, CapacityView current, JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        if (!"GET".equals(exchange.getRequestMethod()) && !"POST".equals(exchange.getRequestMethod())) {
+            json.writeStringField("error", "Method " + exchange.getRequestMethod() + " is not supported");
+            json.writeEndObject();
+            return 405;
+        }
+        json.writeStringField("refreshedAt", current.getRefreshedAt().toString());
+        if ("GET".equals(exchange.getRequestMethod())) {
+            writeHosts(json, current, current.fit(query(parameters(exchange.getRequestURI().getRawQuery()))));
+        } else {
+            List<CapacityView.Query> queries = queries(exchange.getRequestBody());
+            json.writeArrayFieldStart("results");
+            for (CapacityView.Query query : queries) {
+                json.writeStartObject();
+                writeHosts(json, current, current.fit(query));
+                json.writeEndObject();
+            }
+            json.writeEndArray();
+        }
+        json.writeEndObject();
+        return 200;
+    }
+
+    private int status(HttpExchange exchange, CapacityView current, JsonGenerator json) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("refreshedAt", current.getRefreshedAt().toString());
+        json.writeNumberField("hosts", current.hostCount());
+        json.writeArrayFieldStart("regions");
+        for (String region : current.getInventory().regions()) {
+            json.writeString(region);
+        }
+        json.writeEndArray();
+        json.writeObjectFieldStart("failures");
+        for (Map.Entry<String, String> failure : current.getInventory().getFailures().entrySet()) {
+            json.writeStringField(failure.getKey(), failure.getValue());
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+        return 200;
+    }
+
+    private static void writeHosts(JsonGenerator json, CapacityView view, int[] hosts) throws IOException {
+        json.writeArrayFieldStart("hosts");
+        for (int host : hosts) {
+            json.writeStartObject();
+            json.writeStringField("region", view.region(host));
+            json.writeStringField("host", view.hostId(host));
+            json.writeStringField("zone", view.zone(host));
+            json.writeNumberField("freeRamMb", view.freeRamMb(host));
+            json.writeNumberField("freeDiskGb", view.freeDiskGb(host));
+            json.writeNumberField("freeVcpus", view.freeVcpus(host));
+            if (view.isVportsLimited()) {
+                json.writeNumberField("freeVports", view.freeVports(host));
+            }
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+    }
+
+    private static void writeError(ByteArrayOutputStream body, String message) throws IOException {
+        try (JsonGenerator json = JSON.createGenerator(body, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            json.writeStringField("error", message);
+            json.writeEndObject();
+        }
+    }
+
+    private static CapacityView.Query query(Map<String, String> fields) {
+        return new CapacityView.Query(fields.get("zone"), fields.get("region"),
+                intField(fields, "ramMb", 0), intField(fields, "diskGb", 0), intField(fields, "vcpus", 0),
+                intField(fields, "vports", 0), intField(fields, "limit", Integer.MAX_VALUE));
+    }
+
+    // resource amounts and limit, a negative one is the client's error and would break the fit
+    private static int intField(Map<String, String> fields, String name, int defaultValue) {
+        String value = fields.get(name);
+        int parsed = value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+        if (parsed < 0) {
+            throw new BadRequestException(name + " must not be negative, got " + parsed);
+        }
+        return parsed;
+    }
+
+    private static Map<String, String> parameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return parameters;
+        }
+        for (String parameter : rawQuery.split("&")) {
+            int eq = parameter.indexOf('=');
+            String name = eq < 0 ? parameter : parameter.substring(0, eq);
+            String value = eq < 0 ? "" : parameter.substring(eq + 1);
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8),
+                    URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    // [{"zone": "nova", "ramMb": 1024, ...}, ...], the same fields as the query parameters
+    private static List<CapacityView.Query> queries(InputStream body) throws IOException {
+        List<CapacityView.Query> queries = new ArrayList<>();
+        try (JsonParser json = JSON.createParser(body)) {
+            if (json.nextToken() != JsonToken.START_ARRAY) {
+                throw new BadRequestException("Expected an array of queries");
+            }
+            while (json.nextToken() == JsonToken.START_OBJECT) {
+                Map<String, String> fields = new HashMap<>();
+                while (json.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = json.getCurrentName();
+                    json.nextToken();
+                    if (json.getCurrentToken().isScalarValue()) {
+                        fields.put(field, json.getValueAsString());
+                    } else {
+                        json.skipChildren();
+                    }
+                }
+                queries.add(query(fields));
+            }
+        }
+        return queries;
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+        /**
+         * @return response status
+         */
+        int handle(HttpExchange exchange, CapacityView current, JsonGenerator json) throws IOException;
+    }
+
+    private static class BadRequestException extends RuntimeException {
+        BadRequestException(String message) {
+            super(message);
+        }
+    }
+
+}
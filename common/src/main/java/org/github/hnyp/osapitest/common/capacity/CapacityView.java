@@ -0,0 +1,268 @@
+package org.github.hnyp.osapitest.common.capacity;
+
+import org.github.hnyp.osapitest.common.inventory.CompactInventory;
+import org.github.hnyp.osapitest.common.inventory.RegionalInventory;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * Free capacity of every host of a {@link RegionalInventory}, indexed for fit queries.
+ * <p>
+ * Free amounts are computed once per refresh: RAM and disk as the hypervisor reports them, vcpus less the flavors of
+ * the host's servers, vports less the ports of its servers. Hosts of each availability zone (and of all of them) are
+ * kept ordered by free RAM descending, so a query scans only the hosts with enough RAM and checks the other
+ * resources on them. Instances are immutable, a refresh builds a new one, so readers never wait for a refresh.
+ */
+public class CapacityView {
+
+    private static final int[] NO_HOSTS = new int[0];
+    private static final CapacityView EMPTY = new CapacityView(RegionalInventory.empty(), 0, null);
+
+    private final RegionalInventory inventory;
+    private final Instant refreshedAt;
+    private final boolean vportsLimited;
+
+    private final String[] region;
+    private final String[] hostId;
+    private final String[] zone;
+    private final int[] freeRamMb;
+    private final int[] freeDiskGb;
+    private final int[] freeVcpus;
+    private final int[] freeVports;
+
+    private final int[] allHosts;
+    private final Map<String, int[]> hostsPerZone;
+
+    private CapacityView(RegionalInventory inventory, int maxVports, Instant refreshedAt) {
+        this.inventory = inventory;
+        this.refreshedAt = refreshedAt;
+        this.vportsLimited = maxVports > 0;
+
+        int hosts = inventory.regions().stream().mapToInt(r -> inventory.inventory(r).hostCount()).sum();
+        region = new String[hosts];
+        hostId = new String[hosts];
+        zone = new String[hosts];
+        freeRamMb = new int[hosts];
+        freeDiskGb = new int[hosts];
+        freeVcpus = new int[hosts];
+        freeVports = new int[hosts];
+        int next = 0;
+        for (String regionName : inventory.regions()) {
+            CompactInventory regionInventory = inventory.inventory(regionName);
+            int[] usedVcpus = regionInventory.usedVcpusPerHost();
+            int[] usedVports = regionInventory.portsPerHost();
+            for (int host = 0; host < regionInventory.hostCount(); host++, next++) {
+                int hostZone = regionInventory.hostZone(host);
+                region[next] = regionName;
+                hostId[next] = regionInventory.hostId(host);
+                zone[next] = hostZone == CompactInventory.NONE ? null : regionInventory.zoneId(hostZone);
+                freeRamMb[next] = regionInventory.freeRamMb(host);
+                freeDiskGb[next] = regionInventory.freeDiskGb(host);
+                freeVcpus[next] = regionInventory.vcpus(host) - usedVcpus[host];
+                freeVports[next] = vportsLimited ? maxVports - usedVports[host] : Integer.MAX_VALUE;
+            }
+        }
+
+        Comparator<Integer> mostRamFirst = Comparator.comparingInt((Integer host) -> freeRamMb[host]).reversed();
+        allHosts = IntStream.range(0, hosts).boxed().sorted(mostRamFirst).mapToInt(Integer::intValue).toArray();
+        Map<String, List<Integer>> zoneHosts = new HashMap<>();
+        for (int host : allHosts) {
+            if (zone[host] != null) {
+                zoneHosts.computeIfAbsent(zone[host], z -> new ArrayList<>()).add(host);
+            }
+        }
+        Map<String, int[]> perZone = new HashMap<>();
+        zoneHosts.forEach((z, ordered) -> perZone.put(z, ordered.stream().mapToInt(Integer::intValue).toArray()));
+        hostsPerZone = Collections.unmodifiableMap(perZone);
+    }
+
+    /**
+     * @param maxVports vports a host could have, 0 if vports are not limited
+     */
+    public static CapacityView of(RegionalInventory inventory, int maxVports, Instant refreshedAt) {
+        return new CapacityView(inventory, maxVports, refreshedAt);
+    }
+
+    /**
+     * @return view of no hosts, used until the inventory is collected for the first time
+     */
+    public static CapacityView empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @return hosts which could fit the query, ordered by free RAM descending
+     */
+    public int[] fit(Query query) {
+        int[] candidates = query.zone == null ? allHosts : hostsPerZone.getOrDefault(query.zone, NO_HOSTS);
+        int enoughRam = enoughRam(candidates, query.ramMb);
+        int[] found = new int[Math.min(enoughRam, query.limit)];
+        int count = 0;
+        for (int i = 0; i < enoughRam && count < found.length; i++) {
+            int host = candidates[i];
+            if (freeDiskGb[host] >= query.diskGb
+                    && freeVcpus[host] >= query.vcpus
+                    && freeVports[host] >= query.vports
+                    && (query.region == null || query.region.equals(region[host]))) {
+                found[count++] = host;
+            }
+        }
+        return count == found.length ? found : Arrays.copyOf(found, count);
+    }
+
+    // number of leading hosts with at least given free RAM
+    private int enoughRam(int[] hosts, int ramMb) {
+        int low = 0;
+        int high = hosts.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (freeRamMb[hosts[middle]] >= ramMb) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    public RegionalInventory getInventory() {
+        return inventory;
+    }
+
+    /**
+     * @return when the inventory of the view was collected, {@code null} for the {@link #empty()} view
+     */
+    public Instant getRefreshedAt() {
+        return refreshedAt;
+    }
+
+    public boolean isVportsLimited() {
+        return vportsLimited;
+    }
+
+    public int hostCount() {
+        return hostId.length;
+    }
+
+    public String region(int host) {
+        return region[host];
+    }
+
+    public String hostId(int host) {
+        return hostId[host];
+    }
+
+    /**
+     * @return availability zone of the host, {@code null} if it's not known
+     */
+    public String zone(int host) {
+        return zone[host];
+    }
+
+    public int freeRamMb(int host) {
+        return freeRamMb[host];
+    }
+
+    public int freeDiskGb(int host) {
+        return freeDiskGb[host];
+    }
+
+    public int freeVcpus(int host) {
+        return freeVcpus[host];
+    }
+
+    /**
+     * @return free vports of the host, {@link Integer#MAX_VALUE} if vports are not limited
+     */
+    public int freeVports(int host) {
+        return freeVports[host];
+    }
+
+    @Override
+    public String toString() {
+        return "CapacityView{" +
+                "refreshedAt=" + refreshedAt +
+                ", hosts=" + hostId.length +
+                ", zones=" + hostsPerZone.keySet() +
+                '}';
+    }
+
+    /**
+     * Resources one VM needs, optionally restricted to an availability zone and a region.
+     */
+    public static class Query {
+
+        private final String zone;
+        private final String region;
+        private final int ramMb;
+        private final int diskGb;
+        private final int vcpus;
+        private final int vports;
+        private final int limit;
+
+        /**
+         * @param zone   availability zone, {@code null} for any
+         * @param region region, {@code null} for any
+         * @param limit  max hosts to return
+         */
+        public Query(String zone, String region, int ramMb, int diskGb, int vcpus, int vports, int limit) {
+            this.zone = zone;
+            this.region = region;
+            this.ramMb = ramMb;
+            this.diskGb = diskGb;
+            this.vcpus = vcpus;
+            this.vports = vports;
+            this.limit = limit;
+        }
+
+        public String getZone() {
+            return zone;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        public int getRamMb() {
+            return ramMb;
+        }
+
+        public int getDiskGb() {
+            return diskGb;
+        }
+
+        public int getVcpus() {
+            return vcpus;
+        }
+
+        public int getVports() {
+            return vports;
+        }
+
+        public int getLimit() {
+            return limit;
+        }
+
+        @Override
+        public String toString() {
+            return "Query{" +
+                    "zone='" + zone + '\'' +
+                    ", region='" + region + '\'' +
+                    ", ramMb=" + ramMb +
+                    ", diskGb=" + diskGb +
+                    ", vcpus=" + vcpus +
+                    ", vports=" + vports +
+                    ", limit=" + limit +
+                    '}';
+        }
+    }
+
+}
@@ -0,0 +1,201 @@
+package org.github.hnyp.osapitest.common.concurrent;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Concurrency limit of one service endpoint, adjusted AIMD style from the outcome of every request.
+ * <ul>
+ * <li>a throttling response (413/429/503) cuts the limit by the backoff ratio</li>
+ * <li>a response much slower than usual for its operation (latency above tolerance times the baseline)
+ * cuts it by a tenth, the service is queueing requests</li>
+ * <li>any other response adds {@code 1 / limit}, i.e. about one more request per round-trip,
+ * as long as the limit is actually used</li>
+ * </ul>
+ * A decrease is applied once per congestion signal: responses to requests sent before the last decrease are
+ * already accounted for by it, otherwise a burst of 429s of one moment would collapse the limit to the minimum.
+ * <p>
+ * The baseline latency is kept per operation (method and path), listings of servers and of flavors differ too much
+ * to share one. It follows the fastest responses and drifts slowly up so that a single lucky response does not make
+ * every following one look slow.
+ * <p>
+ * Guarded by a {@link ReentrantLock} rather than the monitor: requests of virtual threads wait here, and a virtual
+ * thread waiting on a monitor pins its carrier thread (JDK 21).
+ */
+public class AdaptiveLimiter {
+
+    // samples for the baseline to catch up with a latency which became usual
+    private static final int BASELINE_WINDOW = 100;
+    private static final double SLOW_DECREASE_RATIO = 0.9;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double backoffRatio;
+    private final double latencyTolerance;
+    private final Map<String, Double> baselineNanos = new HashMap<>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition slotFreed = lock.newCondition();
+
+    private double limit;
+    private int inFlight;
+    // bumped on every decrease, permits of an older epoch don't decrease again
+    private long epoch;
+
+    /**
+     * @param backoffRatio     limit is multiplied by it on throttling, e.g. 0.5
+     * @param latencyTolerance responses slower than the baseline times this are congestion, e.g. 2.0
+     */
+    public AdaptiveLimiter(int initialLimit, int minLimit, int maxLimit, double backoffRatio, double latencyTolerance) {
+        if (minLimit < 1 || maxLimit < minLimit) {
+            throw new IllegalArgumentException("Expected 1 <= min <= max, got " + minLimit + ", " + maxLimit);
+        }
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.backoffRatio = backoffRatio;
+        this.latencyTolerance = latencyTolerance;
+        this.limit = Math.max(minLimit, Math.min(maxLimit, initialLimit));
+    }
+
+    /**
+     * Blocks until the request fits the limit.
+     *
+     * @param operation method and path of the request, latency of the same operations is compared
+     */
+    public Permit acquire(String operation) throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while (inFlight >= (int) limit) {
+                slotFreed.await();
+            }
+            inFlight++;
+            return new Permit(this, operation, epoch, inFlight);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return permit of a request which is not limited, releasing it does nothing
+     */
+    public static Permit unlimited() {
+        return Permit.UNLIMITED;
+    }
+
+    public double getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight() {
+        lock.lock();
+        try {
+            return inFlight;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(Permit permit, Outcome outcome) {
+        lock.lock();
+        try {
+            inFlight--;
+            long latency = System.nanoTime() - permit.startedAt;
+            if (outcome == Outcome.THROTTLED) {
+                decrease(permit, backoffRatio);
+            } else if (outcome == Outcome.SUCCESS) {
+                if (latency > latencyTolerance * baseline(permit.operation, latency)) {
+                    decrease(permit, SLOW_DECREASE_RATIO);
+                } else if (permit.inFlightAtStart * 2 >= limit) {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+            slotFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void decrease(Permit permit, double ratio) {
+        if (permit.epoch == epoch) {
+            limit = Math.max(minLimit, limit * ratio);
+            epoch++;
+        }
+    }
+
+    // baseline before the sample is accounted for
+    private double baseline(String operation, long latency) {
+        Double baseline = baselineNanos.get(operation);
+        if (baseline == null || latency < baseline) {
+            baselineNanos.put(operation, (double) latency);
+            return baseline == null ? latency : baseline;
+        }
+        baselineNanos.put(operation, baseline + (latency - baseline) / BASELINE_WINDOW);
+        return baseline;
+    }
+
+    @Override
+    public String toString() {
+        lock.lock();
+        try {
+            return "AdaptiveLimiter{" +
+                    "limit=" + String.format("%.1f", limit) +
+                    ", inFlight=" + inFlight +
+                    ", min=" + minLimit +
+                    ", max=" + maxLimit +
+                    '}';
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public enum Outcome {
+        /**
+         * response received, its latency is a sample
+         */
+        SUCCESS,
+        /**
+         * service asked to slow down
+         */
+        THROTTLED,
+        /**
+         * no response or an error which tells nothing about the load, e.g. 404
+         */
+        IGNORED
+    }
+
+    /**
+     * Slot of one request, released exactly once with the outcome of the request.
+     */
+    public static class Permit {
+
+        private static final Permit UNLIMITED = new Permit(null, null, 0, 0);
+
+        private final AdaptiveLimiter limiter;
+        private final String operation;
+        private final long epoch;
+        private final int inFlightAtStart;
+        private final long startedAt = System.nanoTime();
+        private boolean released;
+
+        private Permit(AdaptiveLimiter limiter, String operation, long epoch, int inFlightAtStart) {
+            this.limiter = limiter;
+            this.operation = operation;
+            this.epoch = epoch;
+            this.inFlightAtStart = inFlightAtStart;
+        }
+
+        public void release(Outcome outcome) {
+            if (limiter != null && !released) {
+                released = true;
+                limiter.release(this, outcome);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,246 @@
+package org.github.hnyp.osapitest.common.concurrent;
+
+import org.github.hnyp.osapitest.common.Settings;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+
+import java.net.URI;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Keeps requests of the pipelines within what the control plane sustains: an {@link AdaptiveLimiter} per service
+ * endpoint and retries of throttled requests.
+ * <p>
+ * A service is the scheme, host, port and first path segment of the request URL ({@code http://api:8774/v2},
+ * {@code https://cloud/compute}), which tells Nova from Neutron whether they are on their own ports or behind one proxy.
+ * <p>
+ * Throttled requests (413/429, and 503 which gateways answer when overloaded) are retried up to the max attempts.
+ * The delay honours {@code Retry-After} when the response has one, plus up to the base delay of jitter so the requests
+ * throttled together don't come back together; otherwise it is a random delay up to the exponentially growing bound
+ * ("full jitter"). A {@code Retry-After} longer than the max delay fails the request instead.
+ * <p>
+ * SDKs differ in how a throttling response reaches the caller, so each transport classifies its own responses
+ * or failures into a {@link Throttle} and uses either {@link #call} or {@link #acquire} and {@link #retryDelayMillis}.
+ */
+public class Backpressure {
+
+    private static final Backpressure DISABLED = new Backpressure(null, 0, 0, 0, PipelineMetrics.disabled());
+
+    private final Supplier<AdaptiveLimiter> limiters;
+    private final int maxAttempts;
+    private final long baseDelayMillis;
+    private final long maxDelayMillis;
+    private final PipelineMetrics metrics;
+    private final Map<String, AdaptiveLimiter> limiterPerService = new ConcurrentHashMap<>();
+
+    /**
+     * @param limiters    new limiter of a service, {@code null} for no limits
+     * @param maxAttempts attempts of a throttled request, retries included
+     */
+    public Backpressure(Supplier<AdaptiveLimiter> limiters, int maxAttempts, long baseDelayMillis,
+                        long maxDelayMillis, PipelineMetrics metrics) {
+        this.limiters = limiters;
+        this.maxAttempts = maxAttempts;
+        this.baseDelayMillis = baseDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.metrics = metrics;
+    }
+
+    public static Backpressure fromSettings(PipelineMetrics metrics) {
+        Supplier<AdaptiveLimiter> limiters = Settings.LIMITER_ENABLED
+                ? () -> new AdaptiveLimiter(Settings.LIMITER_INITIAL_CONCURRENCY, Settings.LIMITER_MIN_CONCURRENCY,
+                Settings.LIMITER_MAX_CONCURRENCY, Settings.LIMITER_BACKOFF_PERCENT / 100.0,
+                Settings.LIMITER_LATENCY_TOLERANCE_PERCENT / 100.0)
+                : null;
+        return new Backpressure(limiters, Settings.RETRY_MAX_ATTEMPTS, Settings.RETRY_BASE_DELAY_MILLIS,
+                Settings.RETRY_MAX_DELAY_MILLIS, metrics);
+    }
+
+    /**
+     * Neither limits nor retries, requests are sent as they come.
+     */
+    public static Backpressure disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * @return scheme, authority and first path segment of the URL
+     */
+    public static String service(URI uri) {
+        String path = uri.getRawPath() == null ? "" : uri.getRawPath();
+        int segmentEnd = path.indexOf('/', 1);
+        return uri.getScheme() + "://" + uri.getRawAuthority() + (segmentEnd < 0 ? path : path.substring(0, segmentEnd));
+    }
+
+    /**
+     * Sends the request within the limit of its service, retrying it while it's throttled.
+     *
+     * @param attempt    sends the request once, throws on error statuses
+     * @param classifier throttling of a failure of the attempt, {@code null} for any other failure
+     */
+    public <T> T call(URI uri, String endpoint, Supplier<T> attempt,
+                      Function<RuntimeException, Throttle> classifier) {
+        String service = service(uri);
+        for (int attemptNumber = 1; ; attemptNumber++) {
+            AdaptiveLimiter.Permit permit = acquire(service, endpoint);
+            // released on any exit, errors and failing classifiers included, a lost permit shrinks the limit for good
+            AdaptiveLimiter.Outcome outcome = AdaptiveLimiter.Outcome.IGNORED;
+            RuntimeException throttled;
+            Throttle throttle;
+            try {
+                T result = attempt.get();
+                outcome = AdaptiveLimiter.Outcome.SUCCESS;
+                return result;
+            } catch (RuntimeException e) {
+                throttle = classifier.apply(e);
+                if (throttle == null) {
+                    throw e;
+                }
+                outcome = AdaptiveLimiter.Outcome.THROTTLED;
+                throttled = e;
+            } finally {
+                permit.release(outcome);
+            }
+            long delay = retryDelayMillis(service, endpoint, attemptNumber, throttle);
+            if (delay < 0) {
+                throw throttled;
+            }
+            sleep(delay, uri);
+        }
+    }
+
+    /**
+     * Waits for a slot of the service, the permit has to be released with the outcome of the request.
+     */
+    public AdaptiveLimiter.Permit acquire(String service, String endpoint) {
+        if (limiters == null) {
+            return AdaptiveLimiter.unlimited();
+        }
+        AdaptiveLimiter limiter = limiterPerService.computeIfAbsent(service, s -> {
+            AdaptiveLimiter created = limiters.get();
+            metrics.concurrencyLimit(s, created::getLimit);
+            return created;
+        });
+        try {
+            return limiter.acquire(endpoint);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a slot of " + service, e);
+        }
+    }
+
+    /**
+     * Records the throttled attempt and tells when to repeat it.
+     *
+     * @param attempt number of the throttled attempt, from 1
+     * @return delay before the next attempt, -1 if the request should fail
+     */
+    public long retryDelayMillis(String service, String endpoint, int attempt, Throttle throttle) {
+        metrics.throttled(service, endpoint);
+        if (attempt >= maxAttempts) {
+            return -1;
+        }
+        long delay;
+        if (throttle.getRetryAfterMillis() >= 0) {
+            if (throttle.getRetryAfterMillis() > maxDelayMillis) {
+                return -1;
+            }
+            delay = throttle.getRetryAfterMillis() + ThreadLocalRandom.current().nextLong(baseDelayMillis + 1);
+        } else {
+            long bound = Math.min(maxDelayMillis, baseDelayMillis << Math.min(attempt - 1, 20));
+            delay = ThreadLocalRandom.current().nextLong(bound + 1);
+        }
+        metrics.retry(endpoint);
+        return delay;
+    }
+
+    /**
+     * @return limiters of the services requested so far, by service
+     */
+    public Map<String, AdaptiveLimiter> getLimiters() {
+        return limiterPerService;
+    }
+
+    private static void sleep(long millis, URI uri) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to repeat " + uri, e);
+        }
+    }
+
+    /**
+     * What a throttling response asked for.
+     */
+    public static class Throttle {
+
+        private static final int PAYLOAD_TOO_LARGE = 413;
+        private static final int TOO_MANY_REQUESTS = 429;
+        private static final int SERVICE_UNAVAILABLE = 503;
+
+        private final int status;
+        private final long retryAfterMillis;
+
+        public Throttle(int status, long retryAfterMillis) {
+            this.status = status;
+            this.retryAfterMillis = retryAfterMillis;
+        }
+
+        /**
+         * Nova answers over-limit with 413 (older releases) or 429, Neutron and gateways with 429 or 503.
+         */
+        public static boolean isThrottling(int status) {
+            return status == TOO_MANY_REQUESTS || status == PAYLOAD_TOO_LARGE || status == SERVICE_UNAVAILABLE;
+        }
+
+        /**
+         * @param retryAfter value of the header (seconds or HTTP date), {@code null} if there is none
+         * @return throttle of the response, {@code null} if the status is not throttling
+         */
+        public static Throttle of(int status, String retryAfter) {
+            return isThrottling(status) ? new Throttle(status, retryAfterMillis(retryAfter)) : null;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return delay the service asked for, -1 if it did not
+         */
+        public long getRetryAfterMillis() {
+            return retryAfterMillis;
+        }
+
+        private static long retryAfterMillis(String retryAfter) {
+            if (retryAfter == null || retryAfter.trim().isEmpty()) {
+                return -1;
+            }
+            String value = retryAfter.trim();
+            try {
+                return Math.max(0, Long.parseLong(value) * 1000);
+            } catch (NumberFormatException e) {
+                try {
+                    ZonedDateTime at = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME);
+                    return Math.max(0, Duration.between(ZonedDateTime.now(at.getZone()), at).toMillis());
+                } catch (DateTimeParseException notDate) {
+                    return -1;
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Throttle{status=" + status + ", retryAfterMillis=" + retryAfterMillis + '}';
+        }
+    }
+
+}
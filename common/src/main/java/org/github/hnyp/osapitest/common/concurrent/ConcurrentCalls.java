@@ -0,0 +1,218 @@
+package org.github.hnyp.osapitest.common.concurrent;
+
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+
+import java.lang.reflect.InvocationTargetException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs independent blocking API calls concurrently on a bounded pool, or on a virtual thread each.
+ * <p>
+ * Every call gets a timeout counted from submission. When it expires, or the returned future is cancelled,
+ * the underlying task is interrupted so a hanging endpoint does not hold a pool thread for the rest of the pass.
+ * A virtual thread blocked on a socket is released by the interrupt as well, the socket is closed.
+ * Calls are measured as steps of {@link PipelineMetrics} under their names.
+ * <p>
+ * Virtual threads don't bound the calls in flight, whatever sends the requests has to (see {@link EndpointCap}).
+ */
+public class ConcurrentCalls implements AutoCloseable {
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService timer;
+    private final Duration defaultTimeout;
+    private final PipelineMetrics metrics;
+
+    public ConcurrentCalls(int maxConcurrency, Duration defaultTimeout) {
+        this(maxConcurrency, defaultTimeout, PipelineMetrics.disabled());
+    }
+
+    public ConcurrentCalls(int maxConcurrency, Duration defaultTimeout, PipelineMetrics metrics) {
+        this(Executors.newFixedThreadPool(maxConcurrency, daemonThreads("api-call")), defaultTimeout, metrics);
+    }
+
+    /**
+     * @param executor runs the calls, shut down on {@link #close}
+     */
+    public ConcurrentCalls(ExecutorService executor, Duration defaultTimeout, PipelineMetrics metrics) {
+        this.executor = executor;
+        this.timer = Executors.newSingleThreadScheduledExecutor(daemonThreads("api-call-timer"));
+        this.defaultTimeout = defaultTimeout;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Calls on a new virtual thread each, needs the {@code java21} build running on Java 21+.
+     */
+    public static ConcurrentCalls virtualThreads(Duration defaultTimeout, PipelineMetrics metrics) {
+        try {
+            Class<?> virtualThreads = Class.forName(ConcurrentCalls.class.getPackage().getName() + ".VirtualThreads");
+            ExecutorService executor = (ExecutorService) virtualThreads.getDeclaredMethod("newExecutor", String.class)
+                    .invoke(null, "api-call");
+            return new ConcurrentCalls(executor, defaultTimeout, metrics);
+        } catch (ClassNotFoundException | UnsupportedClassVersionError e) {
+            throw new IllegalStateException("Virtual threads need the java21 build (-Pjava21) and Java 21+", e);
+        } catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+            throw new IllegalStateException("Virtual threads executor not created", e);
+        }
+    }
+
+    public <T> CompletableFuture<T> submit(String name, Callable<T> call) {
+        return submit(name, defaultTimeout, call);
+    }
+
+    public <T> CompletableFuture<T> submit(String name, Duration timeout, Callable<T> call) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Callable<T> step = metrics.step(name, call);
+        Future<?> task = executor.submit(() -> {
+            try {
+                result.complete(step.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            }
+        });
+        ScheduledFuture<?> deadline = timer.schedule(
+                () -> result.completeExceptionally(new TimeoutException(name + " did not complete within " + timeout)),
+                timeout.toMillis(), TimeUnit.MILLISECONDS);
+        result.whenComplete((value, error) -> {
+            deadline.cancel(false);
+            if (error != null) {
+                task.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Calls submitted through the scope are cancelled together, see {@link Scope}.
+     */
+    public Scope scope() {
+        return new Scope();
+    }
+
+    /**
+     * Waits for the call result, rethrowing its failure unchecked.
+     * <p>
+     * The wait is interruptible: a caller which is itself a cancelled call (a pass waiting for its listings) stops
+     * waiting, and leaving the {@link Scope} it waits in cancels the calls of the scope in turn.
+     */
+    public static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } catch (CancellationException e) {
+            throw new RuntimeException("Call cancelled", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a call", e);
+        }
+    }
+
+    /**
+     * Interrupts calls still in flight.
+     */
+    @Override
+    public void close() {
+        executor.shutdownNow();
+        timer.shutdownNow();
+    }
+
+    /**
+     * Calls of one unit of work, e.g. the listings of a pass: the first failing call cancels the others, they are
+     * of no use without it, and closing the scope cancels the calls still running, so none outlives the code which
+     * submitted it. Cancelled calls fail with {@link CancellationException} caused by the failure.
+     */
+    public class Scope implements AutoCloseable {
+
+        private final List<CompletableFuture<?>> calls = new ArrayList<>();
+        private Throwable failure;
+
+        private Scope() {
+        }
+
+        public <T> CompletableFuture<T> submit(String name, Callable<T> call) {
+            return submit(name, defaultTimeout, call);
+        }
+
+        public <T> CompletableFuture<T> submit(String name, Duration timeout, Callable<T> call) {
+            Throwable failed;
+            synchronized (this) {
+                failed = failure;
+            }
+            if (failed != null) {
+                // not even started once the scope failed
+                CompletableFuture<T> cancelled = new CompletableFuture<>();
+                cancel(cancelled, failed);
+                return cancelled;
+            }
+            CompletableFuture<T> result = ConcurrentCalls.this.submit(name, timeout, call);
+            synchronized (this) {
+                calls.add(result);
+                failed = failure;
+            }
+            if (failed != null) {
+                cancel(result, failed);
+            }
+            result.whenComplete((value, error) -> {
+                if (error != null) {
+                    failed(error);
+                }
+            });
+            return result;
+        }
+
+        /**
+         * Cancels the calls still running.
+         */
+        @Override
+        public void close() {
+            failed(new CancellationException("Scope closed"));
+        }
+
+        private void failed(Throwable error) {
+            List<CompletableFuture<?>> running;
+            synchronized (this) {
+                if (failure != null) {
+                    return;
+                }
+                failure = error;
+                running = new ArrayList<>(calls);
+            }
+            running.forEach(call -> cancel(call, error));
+        }
+
+        private void cancel(CompletableFuture<?> call, Throwable cause) {
+            CancellationException cancelled = new CancellationException("Call cancelled by its scope");
+            cancelled.initCause(cause);
+            call.completeExceptionally(cancelled);
+        }
+    }
+
+    private static ThreadFactory daemonThreads(String prefix) {
+        AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+}
@@ -0,0 +1,54 @@
+package org.github.hnyp.osapitest.common.concurrent;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+
+/**
+ * Fixed cap of requests in flight per endpoint (method and path template), taken before {@link Backpressure}.
+ * <p>
+ * Calls on virtual threads are not bounded by a pool, a scan of hundreds of tenants would otherwise put all of
+ * their requests of one endpoint in front of its service at once. The cap bounds the requests of virtual threads
+ * per endpoint, and with that keeps few of them parked in the {@link AdaptiveLimiter} waiting for a slot.
+ */
+public class EndpointCap {
+
+    private static final EndpointCap UNLIMITED = new EndpointCap(0);
+
+    private final int maxConcurrency;
+    private final Map<String, Semaphore> permitsPerEndpoint = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxConcurrency requests of an endpoint in flight at once, 0 for no cap
+     */
+    public EndpointCap(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public static EndpointCap unlimited() {
+        return UNLIMITED;
+    }
+
+    /**
+     * Sends the request once less than the max requests of its endpoint are in flight.
+     */
+    public <T> T call(String endpoint, Supplier<T> request) {
+        if (maxConcurrency <= 0) {
+            return request.get();
+        }
+        Semaphore permits = permitsPerEndpoint.computeIfAbsent(endpoint, e -> new Semaphore(maxConcurrency, true));
+        try {
+            permits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a slot of " + endpoint, e);
+        }
+        try {
+            return request.get();
+        } finally {
+            permits.release();
+        }
+    }
+
+}
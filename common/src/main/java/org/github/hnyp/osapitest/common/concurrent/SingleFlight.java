@@ -0,0 +1,110 @@
+package org.github.hnyp.osapitest.common.concurrent;
+
+import org.github.hnyp.osapitest.common.Settings;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces identical listings requested at the same moment: the first caller sends the listing, callers asking
+ * for the same one while it's in flight wait for it and get the same result (or failure). With a freshness window
+ * the result is also handed to callers asking within that time after it completed, failures are never reused.
+ * <p>
+ * A listing is identified by its name (servers, flavors, ...) and a key which has to cover everything its response
+ * depends on: region, tenant of the token, query parameters. Results are shared, callers must not modify them.
+ * Every call is counted as {@code sent}, {@code joined} (in flight) or {@code fresh} (within the window).
+ * <p>
+ * Delta listings are keyed by the sync instant of the snapshot asking for them, which differs between snapshots
+ * and passes, so in practice only full listings (first pass, SDKs without deltas) fan in. Listings which a snapshot
+ * compares with its own delta, like the live ids dropping deleted entities, must not go through here: ids listed
+ * before the delta would make entities created in between look deleted.
+ */
+public class SingleFlight {
+
+    private final long freshnessNanos;
+    private final PipelineMetrics metrics;
+    private final Map<String, Flight> flights = new ConcurrentHashMap<>();
+
+    /**
+     * @param freshness how long a completed listing is reused, zero shares in-flight listings only
+     */
+    public SingleFlight(Duration freshness, PipelineMetrics metrics) {
+        this.freshnessNanos = freshness.toNanos();
+        this.metrics = metrics;
+    }
+
+    public static SingleFlight fromSettings(PipelineMetrics metrics) {
+        return new SingleFlight(Duration.ofMillis(Settings.LISTING_COALESCE_FRESHNESS_MILLIS), metrics);
+    }
+
+    /**
+     * @param listing name of the listing, a metrics tag
+     * @param key     what the response depends on besides the listing
+     */
+    public <T> T call(String listing, String key, Supplier<T> call) {
+        String flightKey = listing + " " + key;
+        long now = System.nanoTime();
+        Flight created = new Flight();
+        Flight flight = flights.compute(flightKey,
+                (k, current) -> current != null && current.isReusable(now, freshnessNanos) ? current : created);
+        if (flight != created) {
+            metrics.listingCall(listing, flight.result.isDone() ? "fresh" : "joined");
+            return await(flight, flightKey);
+        }
+        metrics.listingCall(listing, "sent");
+        try {
+            T result = call.get();
+            flight.completedAt = System.nanoTime();
+            flight.result.complete(result);
+            return result;
+        } catch (RuntimeException | Error e) {
+            flight.result.completeExceptionally(e);
+            throw e;
+        } finally {
+            if (freshnessNanos <= 0 || flight.result.isCompletedExceptionally()) {
+                flights.remove(flightKey, flight);
+            }
+            // listings with changes-since keys are not asked again, drop them once they are stale
+            long completedAt = System.nanoTime();
+            flights.values().removeIf(f -> f.result.isDone() && !f.isReusable(completedAt, freshnessNanos));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T await(Flight flight, String flightKey) {
+        try {
+            return (T) flight.result.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for " + flightKey, e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    private static class Flight {
+
+        private final CompletableFuture<Object> result = new CompletableFuture<>();
+        private volatile long completedAt;
+
+        // in flight, or completed successfully within the freshness window
+        boolean isReusable(long now, long freshnessNanos) {
+            if (!result.isDone()) {
+                return true;
+            }
+            return !result.isCompletedExceptionally() && now - completedAt <= freshnessNanos;
+        }
+    }
+
+}
@@ -0,0 +1,46 @@
+package org.github.hnyp.osapitest.common.disk;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the fetched capacity of a region for the TTL, passes repeated more often than that don't fetch it again.
+ * A region is fetched by one caller at a time, the others wait for its result; a failed fetch is not cached.
+ * The wait is on a {@link ReentrantLock}, a virtual thread blocked on a monitor during the fetch would pin its carrier.
+ */
+public class CachedDiskCapacity implements DiskCapacityProvider {
+
+    private final DiskCapacityProvider delegate;
+    private final long ttlNanos;
+    private final Map<String, Entry> entryPerRegion = new ConcurrentHashMap<>();
+
+    public CachedDiskCapacity(DiskCapacityProvider delegate, Duration ttl) {
+        this.delegate = delegate;
+        this.ttlNanos = ttl.toNanos();
+    }
+
+    @Override
+    public DiskCapacity fetch(String region) throws IOException {
+        Entry entry = entryPerRegion.computeIfAbsent(region, r -> new Entry());
+        entry.lock.lock();
+        try {
+            if (entry.capacity == null || System.nanoTime() - entry.fetchedAt > ttlNanos) {
+                entry.capacity = delegate.fetch(region);
+                entry.fetchedAt = System.nanoTime();
+            }
+            return entry.capacity;
+        } finally {
+            entry.lock.unlock();
+        }
+    }
+
+    private static class Entry {
+        private final ReentrantLock lock = new ReentrantLock();
+        private DiskCapacity capacity;
+        private long fetchedAt;
+    }
+
+}
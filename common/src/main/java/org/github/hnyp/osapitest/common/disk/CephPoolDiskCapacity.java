@@ -0,0 +1,120 @@
+package org.github.hnyp.osapitest.common.disk;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Function;
+
+/**
+ * Free disk of hosts keeping ephemeral disks in a Ceph pool: the {@code max_avail} of the pool, which is shared
+ * by every host of the region. Ceph accounts for replication and the fullest OSD in it already.
+ * <p>
+ * Read from the output of {@code ceph df --format json} saved to a file per region by whatever has access to
+ * the cluster (a cron job on a monitor, an exporter), so the pipeline needs no Ceph client or credentials:
+ * <pre>
+ * {"stats": {...}, "pools": [{"name": "vms", "id": 2, "stats": {"bytes_used": 1024, "max_avail": 1099511627776}}]}
+ * </pre>
+ * A pool is shared, so hosts which each look like they fit a VM don't all fit one at once: the capacity reports it
+ * as {@link DiskCapacity#sharedPoolGb()} and the placement of a batch takes disk of all its VMs from the pool.
+ */
+public class CephPoolDiskCapacity implements DiskCapacityProvider {
+
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final long GB = 1024L * 1024 * 1024;
+
+    private final Function<String, Path> filePerRegion;
+    private final String pool;
+
+    /**
+     * @param filePerRegion {@code ceph df} output of the region's cluster
+     * @param pool          pool of Nova ephemeral disks ({@code images_rbd_pool} of nova.conf)
+     */
+    public CephPoolDiskCapacity(Function<String, Path> filePerRegion, String pool) {
+        this.filePerRegion = filePerRegion;
+        this.pool = pool;
+    }
+
+    @Override
+    public DiskCapacity fetch(String region) throws IOException {
+        Path file = filePerRegion.apply(region);
+        int freeDiskGb;
+        try (InputStream in = Files.newInputStream(file)) {
+            freeDiskGb = (int) Math.min(Integer.MAX_VALUE, maxAvailBytes(in, file) / GB);
+        }
+        return new PoolCapacity(freeDiskGb);
+    }
+
+    private long maxAvailBytes(InputStream in, Path file) throws IOException {
+        try (JsonParser json = JSON.createParser(in)) {
+            if (json.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Expected ceph df object in " + file);
+            }
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                if ("pools".equals(field) && json.nextToken() == JsonToken.START_ARRAY) {
+                    while (json.nextToken() == JsonToken.START_OBJECT) {
+                        long maxAvail = poolMaxAvail(json);
+                        if (maxAvail >= 0) {
+                            return maxAvail;
+                        }
+                    }
+                } else {
+                    json.nextToken();
+                    json.skipChildren();
+                }
+            }
+        }
+        throw new IOException("No max_avail of pool " + pool + " in " + file);
+    }
+
+    // reads the pool object, max_avail of the configured pool, -1 for the other pools
+    private long poolMaxAvail(JsonParser json) throws IOException {
+        String name = null;
+        long maxAvail = -1;
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            json.nextToken();
+            if ("name".equals(field)) {
+                name = json.getValueAsString();
+            } else if ("stats".equals(field) && json.getCurrentToken() == JsonToken.START_OBJECT) {
+                while (json.nextToken() == JsonToken.FIELD_NAME) {
+                    String stat = json.getCurrentName();
+                    json.nextToken();
+                    if ("max_avail".equals(stat)) {
+                        maxAvail = json.getValueAsLong(-1);
+                    } else {
+                        json.skipChildren();
+                    }
+                }
+            } else {
+                json.skipChildren();
+            }
+        }
+        return pool.equals(name) ? maxAvail : -1;
+    }
+
+    private static class PoolCapacity implements DiskCapacity {
+
+        private final int freeDiskGb;
+
+        PoolCapacity(int freeDiskGb) {
+            this.freeDiskGb = freeDiskGb;
+        }
+
+        @Override
+        public int freeDiskGb(String host, int hypervisorFreeDiskGb) {
+            return freeDiskGb;
+        }
+
+        @Override
+        public int sharedPoolGb() {
+            return freeDiskGb;
+        }
+    }
+
+}
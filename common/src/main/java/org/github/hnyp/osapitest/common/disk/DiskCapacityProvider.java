@@ -0,0 +1,68 @@
+package org.github.hnyp.osapitest.common.disk;
+
+import org.github.hnyp.osapitest.common.Settings;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * Source of the free disk of compute hosts, step 2.2 of the pipeline.
+ * <p>
+ * Hypervisors report the local disk of the compute ({@code disk_available_least}), which says nothing on farms
+ * keeping ephemeral disks in Ceph; there the free disk is what the pool has left. Fetching does not depend on
+ * the Nova listings, so a pass starts it together with them and asks it for the numbers of its hosts once
+ * the hypervisors are listed.
+ */
+@FunctionalInterface
+public interface DiskCapacityProvider {
+
+    /**
+     * @return free disk of the region's hosts
+     */
+    DiskCapacity fetch(String region) throws IOException;
+
+    /**
+     * Provider of {@code disk.capacity.source}, cached for {@code disk.capacity.ttl.seconds}.
+     */
+    static DiskCapacityProvider fromSettings() {
+        switch (Settings.DISK_CAPACITY_SOURCE) {
+            case "hypervisor":
+                return hypervisor();
+            case "ceph":
+                DiskCapacityProvider ceph = new CephPoolDiskCapacity(
+                        region -> Paths.get(Settings.DISK_CEPH_DF_FILE.replace("{region}", region)), Settings.DISK_CEPH_POOL);
+                return new CachedDiskCapacity(ceph, Duration.ofSeconds(Settings.DISK_CAPACITY_TTL_SECONDS));
+            default:
+                throw new IllegalArgumentException("Unknown disk.capacity.source " + Settings.DISK_CAPACITY_SOURCE
+                        + ", expected hypervisor or ceph");
+        }
+    }
+
+    /**
+     * Free disk as hypervisors report it, nothing to fetch.
+     */
+    static DiskCapacityProvider hypervisor() {
+        return region -> (host, hypervisorFreeDiskGb) -> hypervisorFreeDiskGb;
+    }
+
+    /**
+     * Free disk of the hosts of one region.
+     */
+    @FunctionalInterface
+    interface DiskCapacity {
+        /**
+         * @param hypervisorFreeDiskGb {@code disk_available_least} of the host's hypervisor
+         */
+        int freeDiskGb(String host, int hypervisorFreeDiskGb);
+
+        /**
+         * @return free disk of a pool shared by all hosts, which every VM placed on any of them takes from,
+         * -1 if hosts have disks of their own
+         */
+        default int sharedPoolGb() {
+            return -1;
+        }
+    }
+
+}
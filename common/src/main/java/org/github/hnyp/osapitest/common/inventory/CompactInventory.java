@@ -0,0 +1,316 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.util.Arrays;
+
+/**
+ * Columnar inventory of one region: hosts with their availability zones, flavors, servers, networks and ports.
+ * <p>
+ * Ids are interned to int indices by {@link IdIndex}, attributes are kept in primitive arrays indexed by them,
+ * so an entity costs a few ints instead of a DTO with boxed fields and its own copies of host and flavor ids.
+ * References which are not known are {@link #NONE}. Port ids are not kept, nothing looks ports up by id.
+ * <p>
+ * Instances are immutable, they are assembled with {@link Builder}.
+ */
+public class CompactInventory {
+
+    public static final int NONE = -1;
+
+    private final IdIndex hosts;
+    private final int[] hostFreeRamMb;
+    private final int[] hostFreeDiskGb;
+    private final int[] hostVcpus;
+    private final int[] hostZone;
+
+    private final IdIndex zones;
+
+    private final IdIndex flavors;
+    private final int[] flavorVcpus;
+
+    private final IdIndex servers;
+    private final int[] serverHost;
+    private final int[] serverFlavor;
+
+    private final IdIndex networks;
+
+    private final int portCount;
+    private final int[] portServer;
+    private final int[] portNetwork;
+
+    private CompactInventory(Builder builder) {
+        this.hosts = builder.hosts.compact();
+        this.hostFreeRamMb = Arrays.copyOf(builder.hostFreeRamMb, hosts.size());
+        this.hostFreeDiskGb = Arrays.copyOf(builder.hostFreeDiskGb, hosts.size());
+        this.hostVcpus = Arrays.copyOf(builder.hostVcpus, hosts.size());
+        this.hostZone = Arrays.copyOf(builder.hostZone, hosts.size());
+        this.zones = builder.zones.compact();
+        this.flavors = builder.flavors.compact();
+        this.flavorVcpus = Arrays.copyOf(builder.flavorVcpus, flavors.size());
+        this.servers = builder.servers.compact();
+        this.serverHost = Arrays.copyOf(builder.serverHost, servers.size());
+        this.serverFlavor = Arrays.copyOf(builder.serverFlavor, servers.size());
+        this.networks = builder.networks.compact();
+        this.portCount = builder.portCount;
+        this.portServer = Arrays.copyOf(builder.portServer, portCount);
+        this.portNetwork = Arrays.copyOf(builder.portNetwork, portCount);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    public int hostCount() {
+        return hosts.size();
+    }
+
+    public String hostId(int host) {
+        return hosts.idOf(host);
+    }
+
+    public int hostIndex(String hostId) {
+        return hosts.indexOf(hostId);
+    }
+
+    public int freeRamMb(int host) {
+        return hostFreeRamMb[host];
+    }
+
+    public int freeDiskGb(int host) {
+        return hostFreeDiskGb[host];
+    }
+
+    /**
+     * @return total vcpus of the host's hypervisor
+     */
+    public int vcpus(int host) {
+        return hostVcpus[host];
+    }
+
+    /**
+     * @return availability zone index of the host, {@link #NONE} if it's not known
+     */
+    public int hostZone(int host) {
+        return hostZone[host];
+    }
+
+    public int zoneCount() {
+        return zones.size();
+    }
+
+    public String zoneId(int zone) {
+        return zones.idOf(zone);
+    }
+
+    public int zoneIndex(String zoneId) {
+        return zones.indexOf(zoneId);
+    }
+
+    public int flavorCount() {
+        return flavors.size();
+    }
+
+    public String flavorId(int flavor) {
+        return flavors.idOf(flavor);
+    }
+
+    public int flavorVcpus(int flavor) {
+        return flavorVcpus[flavor];
+    }
+
+    public int serverCount() {
+        return servers.size();
+    }
+
+    public String serverId(int server) {
+        return servers.idOf(server);
+    }
+
+    public int serverHost(int server) {
+        return serverHost[server];
+    }
+
+    public int serverFlavor(int server) {
+        return serverFlavor[server];
+    }
+
+    public int networkCount() {
+        return networks.size();
+    }
+
+    public String networkId(int network) {
+        return networks.idOf(network);
+    }
+
+    public int networkIndex(String networkId) {
+        return networks.indexOf(networkId);
+    }
+
+    public int portCount() {
+        return portCount;
+    }
+
+    public int portServer(int port) {
+        return portServer[port];
+    }
+
+    public int portNetwork(int port) {
+        return portNetwork[port];
+    }
+
+    /**
+     * @return vcpus of servers' flavors summed per host index, servers without host or known flavor are skipped
+     */
+    public int[] usedVcpusPerHost() {
+        int[] used = new int[hosts.size()];
+        for (int server = 0; server < serverHost.length; server++) {
+            int host = serverHost[server];
+            int flavor = serverFlavor[server];
+            if (host != NONE && flavor != NONE) {
+                used[host] += flavorVcpus[flavor];
+            }
+        }
+        return used;
+    }
+
+    /**
+     * @return count of ports attached to servers of each host index
+     */
+    public int[] portsPerHost() {
+        int[] ports = new int[hosts.size()];
+        for (int port = 0; port < portCount; port++) {
+            int host = serverHost[portServer[port]];
+            if (host != NONE) {
+                ports[host]++;
+            }
+        }
+        return ports;
+    }
+
+    @Override
+    public String toString() {
+        return "CompactInventory{" +
+                "hosts=" + hosts.size() +
+                ", zones=" + zones.size() +
+                ", flavors=" + flavors.size() +
+                ", servers=" + servers.size() +
+                ", networks=" + networks.size() +
+                ", ports=" + portCount +
+                '}';
+    }
+
+    /**
+     * Collects entities in any order: references to hosts, flavors or servers which were not added (yet) are interned
+     * with zero capacity / no host, adding the entity later fills them in. Not thread safe.
+     */
+    public static class Builder {
+
+        private final IdIndex hosts = new IdIndex();
+        private int[] hostFreeRamMb = new int[16];
+        private int[] hostFreeDiskGb = new int[16];
+        private int[] hostVcpus = new int[16];
+        private int[] hostZone = new int[16];
+
+        private final IdIndex zones = new IdIndex();
+
+        private final IdIndex flavors = new IdIndex();
+        private int[] flavorVcpus = new int[16];
+
+        private final IdIndex servers = new IdIndex();
+        private int[] serverHost = new int[16];
+        private int[] serverFlavor = new int[16];
+
+        private final IdIndex networks = new IdIndex();
+
+        private int portCount;
+        private int[] portServer = new int[16];
+        private int[] portNetwork = new int[16];
+
+        private Builder() {
+        }
+
+        public Builder host(String id, int freeRamMb, int freeDiskGb, int vcpus) {
+            return host(id, null, freeRamMb, freeDiskGb, vcpus);
+        }
+
+        /**
+         * @param zone availability zone of the host, {@code null} if it's not known
+         */
+        public Builder host(String id, String zone, int freeRamMb, int freeDiskGb, int vcpus) {
+            int host = internHost(id);
+            hostZone[host] = zone == null ? NONE : zones.intern(zone);
+            hostFreeRamMb[host] = freeRamMb;
+            hostFreeDiskGb[host] = freeDiskGb;
+            hostVcpus[host] = vcpus;
+            return this;
+        }
+
+        public Builder flavor(String id, int vcpus) {
+            flavorVcpus[internFlavor(id)] = vcpus;
+            return this;
+        }
+
+        public Builder server(String id, String hostId, String flavorId) {
+            int server = internServer(id);
+            serverHost[server] = hostId == null ? NONE : internHost(hostId);
+            serverFlavor[server] = flavorId == null ? NONE : internFlavor(flavorId);
+            return this;
+        }
+
+        public Builder network(String id) {
+            networks.intern(id);
+            return this;
+        }
+
+        public Builder port(String deviceId, String networkId) {
+            if (portCount == portServer.length) {
+                portServer = Arrays.copyOf(portServer, portCount * 2);
+                portNetwork = Arrays.copyOf(portNetwork, portCount * 2);
+            }
+            portServer[portCount] = internServer(deviceId);
+            portNetwork[portCount] = networkId == null ? NONE : networks.intern(networkId);
+            portCount++;
+            return this;
+        }
+
+        public CompactInventory build() {
+            return new CompactInventory(this);
+        }
+
+        private int internHost(String id) {
+            int size = hosts.size();
+            int host = hosts.intern(id);
+            if (host == size) {
+                if (host == hostFreeRamMb.length) {
+                    hostFreeRamMb = Arrays.copyOf(hostFreeRamMb, host * 2);
+                    hostFreeDiskGb = Arrays.copyOf(hostFreeDiskGb, host * 2);
+                    hostVcpus = Arrays.copyOf(hostVcpus, host * 2);
+                    hostZone = Arrays.copyOf(hostZone, host * 2);
+                }
+                hostZone[host] = NONE;
+            }
+            return host;
+        }
+
+        private int internFlavor(String id) {
+            int flavor = flavors.intern(id);
+            if (flavor == flavorVcpus.length) {
+                flavorVcpus = Arrays.copyOf(flavorVcpus, flavor * 2);
+            }
+            return flavor;
+        }
+
+        private int internServer(String id) {
+            int size = servers.size();
+            int server = servers.intern(id);
+            if (server == size) {
+                if (server == serverHost.length) {
+                    serverHost = Arrays.copyOf(serverHost, server * 2);
+                    serverFlavor = Arrays.copyOf(serverFlavor, server * 2);
+                }
+                serverHost[server] = NONE;
+                serverFlavor[server] = NONE;
+            }
+            return server;
+        }
+    }
+
+}
@@ -0,0 +1,31 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+/**
+ * Fields of a Nova flavor the pipelines need: id and vcpus.
+ */
+public class FlavorSummary {
+
+    private final String id;
+    private final int vcpus;
+
+    public FlavorSummary(String id, int vcpus) {
+        this.id = id;
+        this.vcpus = vcpus;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public int getVcpus() {
+        return vcpus;
+    }
+
+    @Override
+    public String toString() {
+        return "FlavorSummary{" +
+                "id='" + id + '\'' +
+                ", vcpus=" + vcpus +
+                '}';
+    }
+}
@@ -0,0 +1,106 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.util.Arrays;
+
+/**
+ * Interns string ids (hosts, flavors, VMs, networks) to dense int indices 0..size-1.
+ * <p>
+ * Open addressing over plain arrays, no boxed values and no entry objects per id.
+ */
+public class IdIndex {
+
+    private static final int ABSENT = -1;
+
+    private String[] ids;
+    private String[] slotKeys;
+    private int[] slotValues;
+    private int size;
+
+    public IdIndex() {
+        this(16);
+    }
+
+    public IdIndex(int expectedSize) {
+        int capacity = Integer.highestOneBit(Math.max(expectedSize, 8) * 2 - 1) << 1;
+        ids = new String[Math.max(expectedSize, 8)];
+        slotKeys = new String[capacity];
+        slotValues = new int[capacity];
+    }
+
+    /**
+     * @return index of the id, assigning the next free one if the id is new
+     */
+    public int intern(String id) {
+        int slot = slotOf(id);
+        if (slotKeys[slot] != null) {
+            return slotValues[slot];
+        }
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        ids[size] = id;
+        slotKeys[slot] = id;
+        slotValues[slot] = size;
+        size++;
+        if (size * 2 > slotKeys.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    /**
+     * @return index of the id or -1 if it was never interned
+     */
+    public int indexOf(String id) {
+        int slot = slotOf(id);
+        return slotKeys[slot] != null ? slotValues[slot] : ABSENT;
+    }
+
+    public String idOf(int index) {
+        return ids[index];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Copy with arrays trimmed to size, for immutable inventories.
+     */
+    IdIndex compact() {
+        IdIndex copy = new IdIndex(size);
+        for (int i = 0; i < size; i++) {
+            copy.intern(ids[i]);
+        }
+        return copy;
+    }
+
+    private int slotOf(String id) {
+        int mask = slotKeys.length - 1;
+        int slot = mix(id.hashCode()) & mask;
+        while (slotKeys[slot] != null && !slotKeys[slot].equals(id)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        String[] oldKeys = slotKeys;
+        int[] oldValues = slotValues;
+        slotKeys = new String[oldKeys.length * 2];
+        slotValues = new int[oldKeys.length * 2];
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldKeys[i] != null) {
+                int slot = slotOf(oldKeys[i]);
+                slotKeys[slot] = oldKeys[i];
+                slotValues[slot] = oldValues[i];
+            }
+        }
+    }
+
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+
+}
@@ -0,0 +1,158 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Entities of one kind kept between passes and refreshed with deltas.
+ * <p>
+ * The first refresh is a full listing, next ones ask only for entities changed since the previous refresh
+ * (Nova {@code changes-since}, Neutron {@code changed_since}). Changed entities replace the kept ones,
+ * entities not matching {@code keep} (e.g. servers that became DELETED) are dropped.
+ * Backends which don't report deletions in deltas could provide a cheap id listing to reconcile with.
+ * <p>
+ * Views maintained from the entities (e.g. {@link PhysnetAggregates}) {@link #listen} to the changes instead of
+ * recomputing from all entities, a delta refresh notifies them about the changed and removed entities only.
+ *
+ * @param <T> entity type
+ */
+public class IncrementalView<T> {
+
+    private final String name;
+    private final Function<? super T, String> id;
+    private final Predicate<? super T> keep;
+    private final Duration overlap;
+
+    private final Map<String, T> entities = new HashMap<>();
+    private final List<Consumer<? super T>> changeListeners = new ArrayList<>();
+    private final List<Consumer<? super T>> removeListeners = new ArrayList<>();
+    private Instant syncedAt;
+
+    /**
+     * @param overlap how far back before the previous refresh to ask for changes, covers clock skew with the API
+     */
+    public IncrementalView(String name, Function<? super T, String> id, Predicate<? super T> keep, Duration overlap) {
+        this.name = name;
+        this.id = id;
+        this.keep = keep;
+        this.overlap = overlap;
+    }
+
+    /**
+     * @param lister lists entities changed since given instant, or all of them when it's {@code null}
+     * @return current entities
+     */
+    public synchronized List<T> refresh(Function<Instant, ? extends Collection<? extends T>> lister) {
+        return refresh(lister, null);
+    }
+
+    /**
+     * @param liveIds lists ids of all existing entities, used to drop ones deleted since the previous refresh;
+     *                not called on a full refresh
+     */
+    public synchronized List<T> refresh(Function<Instant, ? extends Collection<? extends T>> lister,
+                                        Supplier<Set<String>> liveIds) {
+        Instant requestedAt = Instant.now();
+        boolean full = syncedAt == null;
+        Collection<? extends T> changed = lister.apply(full ? null : syncedAt.minus(overlap));
+        if (full) {
+            clear();
+        }
+        for (T entity : changed) {
+            if (keep.test(entity)) {
+                put(entity);
+            } else {
+                remove(id.apply(entity));
+            }
+        }
+        if (!full && liveIds != null) {
+            Set<String> live = liveIds.get();
+            for (Iterator<T> it = entities.values().iterator(); it.hasNext(); ) {
+                T entity = it.next();
+                if (!live.contains(id.apply(entity))) {
+                    it.remove();
+                    removeListeners.forEach(listener -> listener.accept(entity));
+                }
+            }
+        }
+        syncedAt = requestedAt;
+        return new ArrayList<>(entities.values());
+    }
+
+    /**
+     * Registers callbacks of the changes made from now on, called while the view is locked.
+     *
+     * @param changed called with an added entity or a new version of a kept one
+     * @param removed called with the removed version of an entity
+     */
+    public synchronized void listen(Consumer<? super T> changed, Consumer<? super T> removed) {
+        changeListeners.add(changed);
+        removeListeners.add(removed);
+    }
+
+    /**
+     * Forgets the state, next refresh is a full listing.
+     */
+    public synchronized void invalidate() {
+        syncedAt = null;
+    }
+
+    /**
+     * Replaces the state with one kept by a previous process, next refresh asks for changes since {@code syncedAt}.
+     */
+    synchronized void restore(Collection<? extends T> restored, Instant syncedAt) {
+        clear();
+        for (T entity : restored) {
+            put(entity);
+        }
+        this.syncedAt = syncedAt;
+    }
+
+    private void put(T entity) {
+        entities.put(id.apply(entity), entity);
+        changeListeners.forEach(listener -> listener.accept(entity));
+    }
+
+    private void remove(String entityId) {
+        T removed = entities.remove(entityId);
+        if (removed != null) {
+            removeListeners.forEach(listener -> listener.accept(removed));
+        }
+    }
+
+    private void clear() {
+        if (!removeListeners.isEmpty()) {
+            entities.values().forEach(entity -> removeListeners.forEach(listener -> listener.accept(entity)));
+        }
+        entities.clear();
+    }
+
+    synchronized List<T> entities() {
+        return new ArrayList<>(entities.values());
+    }
+
+    synchronized Instant getSyncedAt() {
+        return syncedAt;
+    }
+
+    public synchronized int size() {
+        return entities.size();
+    }
+
+    @Override
+    public synchronized String toString() {
+        return name + "{size=" + entities.size() + ", syncedAt=" + syncedAt + '}';
+    }
+
+}
@@ -0,0 +1,305 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * On-disk snapshot of one region for warm restarts: the {@link CompactInventory} of the last pass, so that capacity
+ * is answered right after the start, and the state of {@link InventorySnapshot}, so that the first pass after
+ * the start asks for deltas instead of full listings.
+ * <p>
+ * Versioned binary file read through a memory mapping. The inventory is written column by column the way
+ * {@link CompactInventory} keeps it, references are indices into the id columns. The file ends with CRC32
+ * of its content. It's written to a temporary file in the same directory which is moved over the previous one
+ * atomically, so a crash in the middle of a write leaves the previous snapshot intact.
+ */
+public class InventoryFile {
+
+    static final int MAGIC = 0x4F534149; // "OSAI"
+    // 2: availability zones of hosts
+    static final int VERSION = 2;
+
+    private static final long NEVER_SYNCED = Long.MIN_VALUE;
+    private static final int NULL_STRING = -1;
+
+    private InventoryFile() {
+    }
+
+    public static void write(Path file, CompactInventory inventory, InventorySnapshot snapshot) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        Path tmp = Files.createTempFile(dir, file.getFileName().toString(), ".tmp");
+        try {
+            try (FileOutputStream fileOut = new FileOutputStream(tmp.toFile())) {
+                CRC32 crc = new CRC32();
+                DataOutputStream out = new DataOutputStream(
+                        new BufferedOutputStream(new CheckedOutputStream(fileOut, crc), 1 << 16));
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                writeInventory(out, inventory);
+                writeView(out, snapshot.getServers(), (o, vm) -> {
+                    writeString(o, vm.getId());
+                    writeString(o, vm.getStatus());
+                    writeString(o, vm.getFlavorId());
+                    writeString(o, vm.getHost());
+                });
+                writeView(out, snapshot.getFlavors(), (o, flavor) -> {
+                    writeString(o, flavor.getId());
+                    o.writeInt(flavor.getVcpus());
+                });
+                writeView(out, snapshot.getPorts(), (o, port) -> {
+                    writeString(o, port.getId());
+                    writeString(o, port.getDeviceId());
+                    writeString(o, port.getNetworkId());
+                });
+                out.flush();
+                fileOut.write(ByteBuffer.allocate(Integer.BYTES).putInt((int) crc.getValue()).array());
+                fileOut.getFD().sync();
+            }
+            Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tmp);
+            throw e;
+        }
+    }
+
+    /**
+     * Restores the state of {@code snapshot} from the file, it's left untouched when the file can't be read.
+     *
+     * @return inventory of the pass the file was written after
+     * @throws IOException when the file is corrupt or of another version as well
+     */
+    public static CompactInventory read(Path file, InventorySnapshot snapshot) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        if (buffer.limit() < 3 * Integer.BYTES) {
+            throw new IOException("Truncated inventory file " + file);
+        }
+        int contentLength = buffer.limit() - Integer.BYTES;
+        CRC32 crc = new CRC32();
+        crc.update(buffer.duplicate().limit(contentLength));
+        if ((int) crc.getValue() != buffer.getInt(contentLength)) {
+            throw new IOException("Checksum mismatch of inventory file " + file);
+        }
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Not an inventory file " + file);
+        }
+        int version = buffer.getInt();
+        if (version != VERSION) {
+            throw new IOException("Unsupported version " + version + " of inventory file " + file);
+        }
+
+        try {
+            CompactInventory inventory = readInventory(buffer);
+            RestoredView<ServerSummary> servers = readView(buffer, b -> new ServerSummary(
+                    readString(b), readString(b), readString(b), readString(b)));
+            RestoredView<FlavorSummary> flavors = readView(buffer, b -> new FlavorSummary(readString(b), b.getInt()));
+            RestoredView<PortSummary> ports = readView(buffer, b -> new PortSummary(
+                    readString(b), readString(b), readString(b)));
+            if (buffer.position() != contentLength) {
+                throw new IOException("Unexpected trailing content of inventory file " + file);
+            }
+            servers.restoreTo(snapshot.getServers());
+            flavors.restoreTo(snapshot.getFlavors());
+            ports.restoreTo(snapshot.getPorts());
+            return inventory;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt inventory file " + file, e);
+        }
+    }
+
+    private static void writeInventory(DataOutputStream out, CompactInventory inventory) throws IOException {
+        out.writeInt(inventory.zoneCount());
+        for (int zone = 0; zone < inventory.zoneCount(); zone++) {
+            writeString(out, inventory.zoneId(zone));
+        }
+
+        out.writeInt(inventory.hostCount());
+        for (int host = 0; host < inventory.hostCount(); host++) {
+            writeString(out, inventory.hostId(host));
+        }
+        for (int host = 0; host < inventory.hostCount(); host++) {
+            out.writeInt(inventory.freeRamMb(host));
+        }
+        for (int host = 0; host < inventory.hostCount(); host++) {
+            out.writeInt(inventory.freeDiskGb(host));
+        }
+        for (int host = 0; host < inventory.hostCount(); host++) {
+            out.writeInt(inventory.vcpus(host));
+        }
+        for (int host = 0; host < inventory.hostCount(); host++) {
+            out.writeInt(inventory.hostZone(host));
+        }
+
+        out.writeInt(inventory.flavorCount());
+        for (int flavor = 0; flavor < inventory.flavorCount(); flavor++) {
+            writeString(out, inventory.flavorId(flavor));
+        }
+        for (int flavor = 0; flavor < inventory.flavorCount(); flavor++) {
+            out.writeInt(inventory.flavorVcpus(flavor));
+        }
+
+        out.writeInt(inventory.serverCount());
+        for (int server = 0; server < inventory.serverCount(); server++) {
+            writeString(out, inventory.serverId(server));
+        }
+        for (int server = 0; server < inventory.serverCount(); server++) {
+            out.writeInt(inventory.serverHost(server));
+        }
+        for (int server = 0; server < inventory.serverCount(); server++) {
+            out.writeInt(inventory.serverFlavor(server));
+        }
+
+        out.writeInt(inventory.networkCount());
+        for (int network = 0; network < inventory.networkCount(); network++) {
+            writeString(out, inventory.networkId(network));
+        }
+
+        out.writeInt(inventory.portCount());
+        for (int port = 0; port < inventory.portCount(); port++) {
+            out.writeInt(inventory.portServer(port));
+        }
+        for (int port = 0; port < inventory.portCount(); port++) {
+            out.writeInt(inventory.portNetwork(port));
+        }
+    }
+
+    // ids are added in the order they were written, so the builder interns them to the same indices
+    private static CompactInventory readInventory(ByteBuffer in) {
+        CompactInventory.Builder builder = CompactInventory.builder();
+
+        String[] zoneIds = readStrings(in);
+
+        String[] hostIds = readStrings(in);
+        int[] freeRamMb = readInts(in, hostIds.length);
+        int[] freeDiskGb = readInts(in, hostIds.length);
+        int[] vcpus = readInts(in, hostIds.length);
+        int[] hostZone = readInts(in, hostIds.length);
+        for (int host = 0; host < hostIds.length; host++) {
+            builder.host(hostIds[host], idAt(zoneIds, hostZone[host]), freeRamMb[host], freeDiskGb[host], vcpus[host]);
+        }
+
+        String[] flavorIds = readStrings(in);
+        int[] flavorVcpus = readInts(in, flavorIds.length);
+        for (int flavor = 0; flavor < flavorIds.length; flavor++) {
+            builder.flavor(flavorIds[flavor], flavorVcpus[flavor]);
+        }
+
+        String[] serverIds = readStrings(in);
+        int[] serverHost = readInts(in, serverIds.length);
+        int[] serverFlavor = readInts(in, serverIds.length);
+        for (int server = 0; server < serverIds.length; server++) {
+            builder.server(serverIds[server], idAt(hostIds, serverHost[server]), idAt(flavorIds, serverFlavor[server]));
+        }
+
+        String[] networkIds = readStrings(in);
+        for (String networkId : networkIds) {
+            builder.network(networkId);
+        }
+
+        int portCount = in.getInt();
+        int[] portServer = readInts(in, portCount);
+        int[] portNetwork = readInts(in, portCount);
+        for (int port = 0; port < portCount; port++) {
+            builder.port(serverIds[portServer[port]], idAt(networkIds, portNetwork[port]));
+        }
+        return builder.build();
+    }
+
+    private static <T> void writeView(DataOutputStream out, IncrementalView<T> view, EntityWriter<T> writer)
+            throws IOException {
+        Instant syncedAt = view.getSyncedAt();
+        List<T> entities = view.entities();
+        out.writeLong(syncedAt == null ? NEVER_SYNCED : syncedAt.toEpochMilli());
+        out.writeInt(entities.size());
+        for (T entity : entities) {
+            writer.write(out, entity);
+        }
+    }
+
+    private static <T> RestoredView<T> readView(ByteBuffer in, Function<ByteBuffer, T> reader) {
+        long syncedAt = in.getLong();
+        int count = in.getInt();
+        List<T> entities = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            entities.add(reader.apply(in));
+        }
+        return new RestoredView<>(entities, syncedAt == NEVER_SYNCED ? null : Instant.ofEpochMilli(syncedAt));
+    }
+
+    private static String idAt(String[] ids, int index) {
+        return index == CompactInventory.NONE ? null : ids[index];
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_STRING);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == NULL_STRING) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String[] readStrings(ByteBuffer in) {
+        String[] values = new String[in.getInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = readString(in);
+        }
+        return values;
+    }
+
+    private static int[] readInts(ByteBuffer in, int count) {
+        int[] values = new int[count];
+        in.asIntBuffer().get(values);
+        in.position(in.position() + count * Integer.BYTES);
+        return values;
+    }
+
+    private interface EntityWriter<T> {
+        void write(DataOutputStream out, T entity) throws IOException;
+    }
+
+    private static class RestoredView<T> {
+
+        private final List<T> entities;
+        private final Instant syncedAt;
+
+        RestoredView(List<T> entities, Instant syncedAt) {
+            this.entities = entities;
+            this.syncedAt = syncedAt;
+        }
+
+        void restoreTo(IncrementalView<T> view) {
+            view.restore(entities, syncedAt);
+        }
+    }
+
+}
@@ -0,0 +1,115 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * Hash join of VMs, vports and networks, independent of the SDK the entities come from.
+ * <p>
+ * Ports are indexed by {@code device_id} and networks by {@code id} in a single pass each, after that
+ * VM ↔ OS-EXT-SRV-ATTR:host, VM.id ↔ Vport.device_id and Network.id ↔ Vport.network_id are resolved
+ * with hash lookups, so the whole join is O(VMs + ports + networks).
+ *
+ * @param <S> server (VM) type
+ * @param <P> port type
+ * @param <N> network type
+ */
+public class InventoryJoin<S, P, N> {
+
+    private final Function<S, String> serverId;
+    private final Function<S, String> serverHost;
+    private final Function<P, String> portDeviceId;
+    private final Function<P, String> portNetworkId;
+    private final Function<N, String> networkId;
+
+    public InventoryJoin(Function<S, String> serverId, Function<S, String> serverHost,
+                         Function<P, String> portDeviceId, Function<P, String> portNetworkId,
+                         Function<N, String> networkId) {
+        this.serverId = serverId;
+        this.serverHost = serverHost;
+        this.portDeviceId = portDeviceId;
+        this.portNetworkId = portNetworkId;
+        this.networkId = networkId;
+    }
+
+    /**
+     * Joins given servers with ports and networks. Servers without host or ports without device are skipped.
+     */
+    public Result<S, P, N> join(Collection<? extends S> servers, Collection<? extends P> ports,
+                                Collection<? extends N> networks) {
+        Map<String, List<P>> portsByDeviceId = new HashMap<>(capacityFor(ports.size()));
+        for (P port : ports) {
+            String deviceId = portDeviceId.apply(port);
+            if (deviceId != null && !deviceId.isEmpty()) {
+                portsByDeviceId.computeIfAbsent(deviceId, k -> new ArrayList<>(1)).add(port);
+            }
+        }
+
+        Map<String, N> networksById = new HashMap<>(capacityFor(networks.size()));
+        for (N network : networks) {
+            networksById.put(networkId.apply(network), network);
+        }
+
+        Map<String, List<P>> portsByServerId = new HashMap<>(capacityFor(servers.size()));
+        Map<String, List<P>> portsByHost = new HashMap<>();
+        for (S server : servers) {
+            String host = serverHost.apply(server);
+            if (host == null) {
+                continue;
+            }
+            List<P> hostPorts = portsByHost.computeIfAbsent(host, k -> new ArrayList<>());
+            List<P> serverPorts = portsByDeviceId.get(serverId.apply(server));
+            if (serverPorts != null) {
+                portsByServerId.put(serverId.apply(server), serverPorts);
+                hostPorts.addAll(serverPorts);
+            }
+        }
+
+        return new Result<>(portsByServerId, portsByHost, networksById, portNetworkId);
+    }
+
+    private static int capacityFor(int size) {
+        return (int) (size / 0.75f) + 1;
+    }
+
+    public static class Result<S, P, N> {
+
+        private final Map<String, List<P>> portsByServerId;
+        private final Map<String, List<P>> portsByHost;
+        private final Map<String, N> networksById;
+        private final Function<P, String> portNetworkId;
+
+        Result(Map<String, List<P>> portsByServerId, Map<String, List<P>> portsByHost,
+               Map<String, N> networksById, Function<P, String> portNetworkId) {
+            this.portsByServerId = portsByServerId;
+            this.portsByHost = portsByHost;
+            this.networksById = networksById;
+            this.portNetworkId = portNetworkId;
+        }
+
+        /**
+         * All ports (every NIC of multi-NIC VMs included) of the joined VMs, per compute host.
+         */
+        public Map<String, List<P>> getPortsByHost() {
+            return Collections.unmodifiableMap(portsByHost);
+        }
+
+        public List<P> getPortsOfServer(String serverId) {
+            return portsByServerId.getOrDefault(serverId, Collections.emptyList());
+        }
+
+        /**
+         * @return network the port is plugged into, or {@code null} if the network is not known
+         */
+        public N getNetworkOf(P port) {
+            return networksById.get(portNetworkId.apply(port));
+        }
+
+    }
+
+}
@@ -0,0 +1,56 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.time.Duration;
+import java.util.Set;
+
+/**
+ * In-memory inventory of one region refreshed incrementally between passes,
+ * with {@link PhysnetAggregates} kept up to date by the changes of its views.
+ */
+public class InventorySnapshot {
+
+    private final IncrementalView<ServerSummary> servers;
+    private final IncrementalView<FlavorSummary> flavors;
+    private final IncrementalView<PortSummary> ports;
+    private final PhysnetAggregates physnets = new PhysnetAggregates();
+
+    /**
+     * @param activeServerStatuses servers in other statuses (DELETED included) are dropped from the snapshot
+     */
+    public InventorySnapshot(Set<String> activeServerStatuses, Duration overlap) {
+        this.servers = new IncrementalView<>("servers", ServerSummary::getId,
+                vm -> activeServerStatuses.contains(vm.getStatus()), overlap);
+        // deleted flavors are kept, existing VMs still refer to them
+        this.flavors = new IncrementalView<>("flavors", FlavorSummary::getId, f -> true, overlap);
+        this.ports = new IncrementalView<>("ports", PortSummary::getId,
+                p -> p.getDeviceId() != null && !p.getDeviceId().isEmpty(), overlap);
+        servers.listen(physnets::serverChanged, physnets::serverRemoved);
+        flavors.listen(physnets::flavorChanged, physnets::flavorRemoved);
+        ports.listen(physnets::portChanged, physnets::portRemoved);
+    }
+
+    public IncrementalView<ServerSummary> getServers() {
+        return servers;
+    }
+
+    public IncrementalView<FlavorSummary> getFlavors() {
+        return flavors;
+    }
+
+    public IncrementalView<PortSummary> getPorts() {
+        return ports;
+    }
+
+    /**
+     * @return used vCPUs and vports per host and physnet of the servers and ports of the snapshot,
+     * networks are up to date as of the last {@link PhysnetAggregates#networks} of a pass
+     */
+    public PhysnetAggregates getPhysnets() {
+        return physnets;
+    }
+
+    @Override
+    public String toString() {
+        return "InventorySnapshot{" + servers + ", " + flavors + ", " + ports + '}';
+    }
+}
@@ -0,0 +1,168 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import org.github.hnyp.osapitest.common.Settings;
+import org.github.hnyp.osapitest.common.TokenManager;
+import org.github.hnyp.osapitest.common.concurrent.Backpressure;
+import org.github.hnyp.osapitest.common.metrics.CountingInputStream;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Requests pages of hot listings with the JDK HTTP client and decodes them with {@link ProjectionDecoder}
+ * instead of the DTOs of an SDK. The SDK stays in charge of auth and endpoint discovery: the token is the one
+ * shared through {@link TokenManager}, base URLs come from the service catalog of its access.
+ * <p>
+ * A 401 invalidates the token and the page is requested once more with a new one, other statuses except 200
+ * fail with {@link HttpStatusException}. Requests are recorded to {@link PipelineMetrics} like the SDK transports do,
+ * and sent within the {@link Backpressure} of their service, throttled pages are requested again.
+ */
+public class ListingClient {
+
+    private final HttpClient http;
+    private final TokenManager<?> tokens;
+    private final String tenant;
+    private final PipelineMetrics metrics;
+    private final Backpressure backpressure;
+
+    public ListingClient(TokenManager<?> tokens, String tenant, PipelineMetrics metrics, Backpressure backpressure) {
+        this.http = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(Duration.ofMillis(Settings.HTTP_CONNECT_TIMEOUT_MILLIS))
+                .build();
+        this.tokens = tokens;
+        this.tenant = tenant;
+        this.metrics = metrics;
+        this.backpressure = backpressure;
+    }
+
+    /**
+     * @param baseUrl endpoint of the service from the catalog
+     * @param path    e.g. {@code /servers/detail}
+     * @param query   query parameters, repeated ones have several values
+     * @param marker  marker of the page, {@code null} for the first one
+     */
+    public <T> PagedListing.Page<T> page(URI baseUrl, String path, Map<String, List<String>> query,
+                                         String marker, int limit, PageDecoder<T> decoder) {
+        StringBuilder uri = new StringBuilder(baseUrl.toString().replaceAll("/+$", "")).append(path)
+                .append("?limit=").append(limit);
+        query.forEach((name, values) -> values.forEach(value -> appendParam(uri, name, value)));
+        if (marker != null) {
+            appendParam(uri, "marker", marker);
+        }
+        URI pageUri = URI.create(uri.toString());
+        String endpoint = PipelineMetrics.endpoint("GET", pageUri.getRawPath());
+        return backpressure.call(pageUri, endpoint, () -> get(tokens, pageUri, endpoint, decoder),
+                ListingClient::throttle);
+    }
+
+    private <A, T> PagedListing.Page<T> get(TokenManager<A> tokens, URI uri, String endpoint, PageDecoder<T> decoder) {
+        boolean retried = false;
+        while (true) {
+            TokenManager.Token<A> token = tokens.get(tenant);
+            HttpRequest.Builder request = HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofMillis(Settings.HTTP_SOCKET_TIMEOUT_MILLIS))
+                    .header("X-Auth-Token", token.getId())
+                    .header("Accept", "application/json");
+            if (Settings.HTTP_COMPRESSION) {
+                request.header("Accept-Encoding", "gzip");
+            }
+            HttpResponse<InputStream> response = send(request.build(), endpoint);
+            int status = response.statusCode();
+            try (InputStream body = body(response, endpoint)) {
+                if (status == 401 && !retried) {
+                    tokens.invalidate(tenant, token);
+                    metrics.retry(endpoint);
+                    retried = true;
+                    continue;
+                }
+                if (status != 200) {
+                    throw new HttpStatusException(status, response.headers().firstValue("Retry-After").orElse(null),
+                            "GET " + uri + " failed with status " + status);
+                }
+                return decoder.decode(body);
+            } catch (IOException e) {
+                throw new UncheckedIOException("GET " + uri + " failed", e);
+            }
+        }
+    }
+
+    // latency until the response headers, as recorded for the SDK transports
+    private HttpResponse<InputStream> send(HttpRequest request, String endpoint) {
+        long startedAt = System.nanoTime();
+        int status = 0;
+        try {
+            HttpResponse<InputStream> response = http.send(request, HttpResponse.BodyHandlers.ofInputStream());
+            status = response.statusCode();
+            return response;
+        } catch (IOException e) {
+            throw new UncheckedIOException("GET " + request.uri() + " failed", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("GET " + request.uri() + " interrupted", e);
+        } finally {
+            metrics.request(endpoint, status, System.nanoTime() - startedAt);
+        }
+    }
+
+    // bytes are counted as they come over the wire, before decompression
+    private InputStream body(HttpResponse<InputStream> response, String endpoint) throws IOException {
+        InputStream body = new CountingInputStream(response.body(), bytes -> metrics.responseBytes(endpoint, bytes));
+        boolean gzip = response.headers().firstValue("Content-Encoding").map("gzip"::equalsIgnoreCase).orElse(false);
+        return gzip ? new GZIPInputStream(body) : body;
+    }
+
+    private static Backpressure.Throttle throttle(RuntimeException failure) {
+        if (failure instanceof HttpStatusException) {
+            HttpStatusException statusException = (HttpStatusException) failure;
+            return Backpressure.Throttle.of(statusException.getStatus(), statusException.getRetryAfter());
+        }
+        return null;
+    }
+
+    private static void appendParam(StringBuilder uri, String name, String value) {
+        uri.append('&').append(URLEncoder.encode(name, StandardCharsets.UTF_8))
+                .append('=').append(URLEncoder.encode(value, StandardCharsets.UTF_8));
+    }
+
+    @FunctionalInterface
+    public interface PageDecoder<T> {
+        PagedListing.Page<T> decode(InputStream body) throws IOException;
+    }
+
+    public static class HttpStatusException extends RuntimeException {
+
+        private final int status;
+        private final String retryAfter;
+
+        HttpStatusException(int status, String retryAfter, String message) {
+            super(message);
+            this.status = status;
+            this.retryAfter = retryAfter;
+        }
+
+        public int getStatus() {
+            return status;
+        }
+
+        /**
+         * @return Retry-After header of the response, {@code null} if there was none
+         */
+        public String getRetryAfter() {
+            return retryAfter;
+        }
+    }
+
+}
@@ -0,0 +1,124 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Filters and projected fields of a listing, translated into server side query parameters where the backend
+ * supports them. Whatever could not be pushed down is evaluated on the client.
+ *
+ * @param <T> listed entity type
+ */
+public class ListingQuery<T> {
+
+    private final Map<String, Filter<T>> filters = new LinkedHashMap<>();
+    private final List<Predicate<? super T>> clientOnlyFilters = new ArrayList<>();
+    private final Set<String> fields = new LinkedHashSet<>();
+
+    /**
+     * Keeps entities which attribute equals to one of given values.
+     *
+     * @param param     query parameter name the filter maps to, e.g. {@code status}, {@code device_id}
+     * @param attribute the same attribute read from the entity, for client side evaluation
+     */
+    public ListingQuery<T> filter(String param, Collection<String> values, Function<? super T, String> attribute) {
+        filters.put(param, new Filter<>(param, new LinkedHashSet<>(values), attribute));
+        return this;
+    }
+
+    /**
+     * Condition which has no query parameter counterpart and is always evaluated on the client.
+     */
+    public ListingQuery<T> require(Predicate<? super T> condition) {
+        clientOnlyFilters.add(condition);
+        return this;
+    }
+
+    /**
+     * Attributes the pipeline reads, everything else could be left out of the response.
+     */
+    public ListingQuery<T> fields(String... names) {
+        Collections.addAll(fields, names);
+        return this;
+    }
+
+    public Plan<T> plan(QuerySupport support) {
+        Map<String, List<String>> queryParameters = new LinkedHashMap<>();
+        List<Predicate<? super T>> clientFilters = new ArrayList<>(clientOnlyFilters);
+        for (Filter<T> filter : filters.values()) {
+            if (support.supports(filter.param, filter.values.size())) {
+                queryParameters.put(filter.param, new ArrayList<>(filter.values));
+            } else {
+                clientFilters.add(filter::test);
+            }
+        }
+        if (!fields.isEmpty() && support.supportsFields()) {
+            queryParameters.put("fields", new ArrayList<>(fields));
+        }
+        return new Plan<>(queryParameters, clientFilters);
+    }
+
+    public static class Plan<T> {
+
+        private final Map<String, List<String>> queryParameters;
+        private final List<Predicate<? super T>> clientFilters;
+
+        Plan(Map<String, List<String>> queryParameters, List<Predicate<? super T>> clientFilters) {
+            this.queryParameters = Collections.unmodifiableMap(queryParameters);
+            this.clientFilters = clientFilters;
+        }
+
+        /**
+         * Parameters to send, repeated parameters have several values.
+         */
+        public Map<String, List<String>> getQueryParameters() {
+            return queryParameters;
+        }
+
+        /**
+         * Evaluates filters that were not pushed to the server.
+         */
+        public boolean test(T entity) {
+            for (Predicate<? super T> filter : clientFilters) {
+                if (!filter.test(entity)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String toString() {
+            return "Plan{" +
+                    "queryParameters=" + queryParameters +
+                    ", clientFilters=" + clientFilters.size() +
+                    '}';
+        }
+    }
+
+    private static class Filter<T> {
+
+        private final String param;
+        private final Set<String> values;
+        private final Function<? super T, String> attribute;
+
+        Filter(String param, Set<String> values, Function<? super T, String> attribute) {
+            this.param = param;
+            this.values = values;
+            this.attribute = attribute;
+        }
+
+        boolean test(T entity) {
+            return values.contains(attribute.apply(entity));
+        }
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+/**
+ * Marker based listing which is consumed page by page.
+ * <p>
+ * Only one page of SDK objects is referenced at a time, it's filtered and projected while the next page
+ * is not requested yet, so peak heap depends on page size rather than on the size of the fleet.
+ *
+ * @param <T> listed entity type
+ */
+public class PagedListing<T> {
+
+    private final PageFetcher<T> fetcher;
+    private final int pageSize;
+
+    public PagedListing(PageFetcher<T> fetcher, int pageSize) {
+        this.fetcher = fetcher;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * Requests pages until there's no next marker and passes every entity to the consumer.
+     *
+     * @return number of pages requested
+     */
+    public int forEach(Consumer<? super T> consumer) {
+        int pages = 0;
+        String marker = null;
+        do {
+            Page<T> page = fetcher.fetch(marker, pageSize);
+            pages++;
+            boolean empty = true;
+            for (T item : page.items) {
+                consumer.accept(item);
+                empty = false;
+            }
+            // some backends return the same marker back on the last page
+            marker = empty || Objects.equals(marker, page.nextMarker) ? null : page.nextMarker;
+        } while (marker != null);
+        return pages;
+    }
+
+    public <R> List<R> collect(Predicate<? super T> filter, Function<? super T, ? extends R> projection) {
+        List<R> result = new ArrayList<>();
+        forEach(item -> {
+            if (filter.test(item)) {
+                result.add(projection.apply(item));
+            }
+        });
+        return result;
+    }
+
+    @FunctionalInterface
+    public interface PageFetcher<T> {
+
+        /**
+         * @param marker id of the last entity of previous page, {@code null} for the first page
+         */
+        Page<T> fetch(String marker, int limit);
+
+    }
+
+    public static class Page<T> {
+
+        private final Iterable<? extends T> items;
+        private final String nextMarker;
+
+        public Page(Iterable<? extends T> items, String nextMarker) {
+            this.items = items;
+            this.nextMarker = nextMarker;
+        }
+
+    }
+
+}
@@ -0,0 +1,282 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Used vCPUs and vports per compute host and physical network, maintained as servers, ports, flavors and networks
+ * change instead of joining all of them on every pass.
+ * <p>
+ * It is the join of VM ↔ OS-EXT-SRV-ATTR:host, VM.id ↔ Vport.device_id, Vport.network_id ↔ Network.id and
+ * {@code provider:physical_network} of the network, aggregated per (host, physnet):
+ * <ul>
+ * <li>vports - ports of the host's VMs plugged into networks of the physnet</li>
+ * <li>used vCPUs - vCPUs (flavor) of the host's VMs having at least one such port, a VM with two NICs on one
+ * physnet is counted once</li>
+ * </ul>
+ * A server or port change adjusts the aggregates it contributes to, i.e. the physnets of a server's ports,
+ * so it costs O(1) for the usual VM with a few ports. A network moved to another physnet re-attributes its ports,
+ * a flavor with changed vCPUs its servers. Networks without a physnet (overlay) are not aggregated. Ports may come
+ * before their server and servers before their flavor, they start counting once the other side is known.
+ * <p>
+ * Fed by the listeners of {@link IncrementalView}s (see {@link InventorySnapshot}) and {@link #networks} of
+ * a pass, thread safe. The views keep the entities, the aggregates keep only what the join needs: host and flavor
+ * of a server, device and network of a port, with host, flavor and network ids interned to indices of the few
+ * distinct values a fleet has.
+ */
+public class PhysnetAggregates {
+
+    private final IdIndex hosts = new IdIndex();
+    private final IdIndex flavors = new IdIndex();
+    private final IdIndex networks = new IdIndex();
+    private final Map<String, ServerRef> servers = new HashMap<>();
+    private final Map<String, PortRef> ports = new HashMap<>();
+    private final Map<String, Integer> vcpusPerFlavor = new HashMap<>();
+    private final Map<String, String> physnetPerNetwork = new HashMap<>();
+
+    private final Map<String, Set<String>> serversPerFlavor = new HashMap<>();
+    private final Map<String, Set<String>> portsPerNetwork = new HashMap<>();
+    // server id -> physnet -> ports of the server on it, kept for unknown servers as well
+    private final Map<String, Map<String, Integer>> portCountPerServer = new HashMap<>();
+    // host -> physnet -> usage
+    private final Map<String, Map<String, Usage>> usagePerHost = new HashMap<>();
+
+    public synchronized void serverChanged(ServerSummary server) {
+        serverRemoved(server);
+        ServerRef ref = new ServerRef(intern(hosts, server.getHost()), intern(flavors, server.getFlavorId()));
+        servers.put(server.getId(), ref);
+        serversPerFlavor.computeIfAbsent(flavorId(ref), f -> new HashSet<>()).add(server.getId());
+        addServer(server.getId(), ref, 1);
+    }
+
+    public synchronized void serverRemoved(ServerSummary server) {
+        ServerRef previous = servers.remove(server.getId());
+        if (previous != null) {
+            addServer(server.getId(), previous, -1);
+            removeFromIndex(serversPerFlavor, flavorId(previous), server.getId());
+        }
+    }
+
+    public synchronized void portChanged(PortSummary port) {
+        portRemoved(port);
+        PortRef ref = new PortRef(port.getDeviceId(), intern(networks, port.getNetworkId()));
+        ports.put(port.getId(), ref);
+        portsPerNetwork.computeIfAbsent(networkId(ref), n -> new HashSet<>()).add(port.getId());
+        addPort(ref, 1);
+    }
+
+    public synchronized void portRemoved(PortSummary port) {
+        PortRef previous = ports.remove(port.getId());
+        if (previous != null) {
+            addPort(previous, -1);
+            removeFromIndex(portsPerNetwork, networkId(previous), port.getId());
+        }
+    }
+
+    public synchronized void flavorChanged(FlavorSummary flavor) {
+        setVcpus(flavor.getId(), flavor.getVcpus());
+    }
+
+    public synchronized void flavorRemoved(FlavorSummary flavor) {
+        setVcpus(flavor.getId(), null);
+    }
+
+    /**
+     * Brings networks up to date with a listing, only networks which are new, gone or moved to another physnet
+     * touch the aggregates.
+     *
+     * @param physnetPerNetwork physical network of every network which has one
+     */
+    public synchronized void networks(Map<String, String> physnetPerNetwork) {
+        Set<String> gone = new HashSet<>(this.physnetPerNetwork.keySet());
+        gone.removeAll(physnetPerNetwork.keySet());
+        gone.forEach(network -> setPhysnet(network, null));
+        physnetPerNetwork.forEach(this::setPhysnet);
+    }
+
+    /**
+     * @return usage of the host per physnet, empty if none of its VMs is on a physnet
+     */
+    public synchronized Map<String, Usage> usageOf(String host) {
+        Map<String, Usage> usage = usagePerHost.get(host);
+        if (usage == null) {
+            return Collections.emptyMap();
+        }
+        Map<String, Usage> copy = new TreeMap<>();
+        usage.forEach((physnet, u) -> copy.put(physnet, new Usage(u.usedVcpus, u.vports)));
+        return copy;
+    }
+
+    public synchronized int usedVcpus(String host, String physnet) {
+        Usage usage = usagePerHost.getOrDefault(host, Collections.emptyMap()).get(physnet);
+        return usage == null ? 0 : usage.usedVcpus;
+    }
+
+    public synchronized int vports(String host, String physnet) {
+        Usage usage = usagePerHost.getOrDefault(host, Collections.emptyMap()).get(physnet);
+        return usage == null ? 0 : usage.vports;
+    }
+
+    /**
+     * @return physnets of all known networks
+     */
+    public synchronized Set<String> physnets() {
+        return new HashSet<>(physnetPerNetwork.values());
+    }
+
+    private void setVcpus(String flavorId, Integer vcpus) {
+        if (Objects.equals(vcpusPerFlavor.get(flavorId), vcpus)) {
+            return;
+        }
+        Set<String> flavorServers = serversPerFlavor.getOrDefault(flavorId, Collections.emptySet());
+        flavorServers.forEach(id -> addServer(id, servers.get(id), -1));
+        if (vcpus == null) {
+            vcpusPerFlavor.remove(flavorId);
+        } else {
+            vcpusPerFlavor.put(flavorId, vcpus);
+        }
+        flavorServers.forEach(id -> addServer(id, servers.get(id), 1));
+    }
+
+    private void setPhysnet(String networkId, String physnet) {
+        if (Objects.equals(physnetPerNetwork.get(networkId), physnet)) {
+            return;
+        }
+        Set<String> networkPorts = portsPerNetwork.getOrDefault(networkId, Collections.emptySet());
+        networkPorts.forEach(id -> addPort(ports.get(id), -1));
+        if (physnet == null) {
+            physnetPerNetwork.remove(networkId);
+        } else {
+            physnetPerNetwork.put(networkId, physnet);
+        }
+        networkPorts.forEach(id -> addPort(ports.get(id), 1));
+    }
+
+    // sign 1 adds the contribution of the server's ports to its host, -1 takes it back
+    private void addServer(String serverId, ServerRef server, int sign) {
+        Map<String, Integer> portCounts = portCountPerServer.get(serverId);
+        if (server.host == CompactInventory.NONE || portCounts == null) {
+            return;
+        }
+        String host = hosts.idOf(server.host);
+        int vcpus = vcpusPerFlavor.getOrDefault(flavorId(server), 0);
+        portCounts.forEach((physnet, count) -> update(host, physnet, sign * vcpus, sign * count));
+    }
+
+    private void addPort(PortRef port, int sign) {
+        String physnet = physnetPerNetwork.get(networkId(port));
+        if (physnet == null || port.deviceId == null) {
+            return;
+        }
+        Map<String, Integer> portCounts = portCountPerServer.computeIfAbsent(port.deviceId, s -> new HashMap<>());
+        int before = portCounts.getOrDefault(physnet, 0);
+        int after = before + sign;
+        if (after == 0) {
+            portCounts.remove(physnet);
+            if (portCounts.isEmpty()) {
+                portCountPerServer.remove(port.deviceId);
+            }
+        } else {
+            portCounts.put(physnet, after);
+        }
+        ServerRef server = servers.get(port.deviceId);
+        if (server != null && server.host != CompactInventory.NONE) {
+            // vCPUs of the server count on the physnet while it has at least one port there
+            int vcpus = before == 0 || after == 0 ? sign * vcpusPerFlavor.getOrDefault(flavorId(server), 0) : 0;
+            update(hosts.idOf(server.host), physnet, vcpus, sign);
+        }
+    }
+
+    private String flavorId(ServerRef server) {
+        return idOf(flavors, server.flavor);
+    }
+
+    private String networkId(PortRef port) {
+        return idOf(networks, port.network);
+    }
+
+    private static int intern(IdIndex index, String id) {
+        return id == null ? CompactInventory.NONE : index.intern(id);
+    }
+
+    private static String idOf(IdIndex index, int id) {
+        return id == CompactInventory.NONE ? null : index.idOf(id);
+    }
+
+    private void update(String host, String physnet, int vcpus, int vports) {
+        Map<String, Usage> hostUsage = usagePerHost.computeIfAbsent(host, h -> new HashMap<>());
+        Usage usage = hostUsage.computeIfAbsent(physnet, p -> new Usage(0, 0));
+        usage.usedVcpus += vcpus;
+        usage.vports += vports;
+        if (usage.vports == 0) {
+            hostUsage.remove(physnet);
+            if (hostUsage.isEmpty()) {
+                usagePerHost.remove(host);
+            }
+        }
+    }
+
+    private static void removeFromIndex(Map<String, Set<String>> index, String key, String id) {
+        Set<String> ids = index.get(key);
+        if (ids != null && ids.remove(id) && ids.isEmpty()) {
+            index.remove(key);
+        }
+    }
+
+    // what the join needs of a server: indices of its host (NONE if not scheduled yet) and flavor
+    private static class ServerRef {
+
+        private final int host;
+        private final int flavor;
+
+        ServerRef(int host, int flavor) {
+            this.host = host;
+            this.flavor = flavor;
+        }
+    }
+
+    // what the join needs of a port: the server it's bound to and index of its network
+    private static class PortRef {
+
+        private final String deviceId;
+        private final int network;
+
+        PortRef(String deviceId, int network) {
+            this.deviceId = deviceId;
+            this.network = network;
+        }
+    }
+
+    /**
+     * Used vCPUs and vports of a host on one physnet.
+     */
+    public static class Usage {
+
+        private int usedVcpus;
+        private int vports;
+
+        Usage(int usedVcpus, int vports) {
+            this.usedVcpus = usedVcpus;
+            this.vports = vports;
+        }
+
+        public int getUsedVcpus() {
+            return usedVcpus;
+        }
+
+        public int getVports() {
+            return vports;
+        }
+
+        @Override
+        public String toString() {
+            return "usedVcpus=" + usedVcpus + ", vports=" + vports;
+        }
+    }
+
+}
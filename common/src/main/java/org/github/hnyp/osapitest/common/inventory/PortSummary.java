@@ -0,0 +1,38 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+/**
+ * Fields of a Neutron port the pipelines need: id, device_id and network_id.
+ */
+public class PortSummary {
+
+    private final String id;
+    private final String deviceId;
+    private final String networkId;
+
+    public PortSummary(String id, String deviceId, String networkId) {
+        this.id = id;
+        this.deviceId = deviceId;
+        this.networkId = networkId;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getDeviceId() {
+        return deviceId;
+    }
+
+    public String getNetworkId() {
+        return networkId;
+    }
+
+    @Override
+    public String toString() {
+        return "PortSummary{" +
+                "id='" + id + '\'' +
+                ", deviceId='" + deviceId + '\'' +
+                ", networkId='" + networkId + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,185 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decodes pages of Nova servers and Neutron ports token by token straight into {@link ServerSummary} and
+ * {@link PortSummary}. Only the projected fields are read, everything else (addresses, metadata, links, security
+ * groups...) is skipped by the parser without building any objects, so decoding costs a fraction of binding
+ * the SDK DTOs.
+ * <p>
+ * The next marker is taken from the {@code next} link of the page ({@code servers_links}, {@code ports_links}).
+ */
+public class ProjectionDecoder {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private ProjectionDecoder() {
+    }
+
+    /**
+     * {@code id}, {@code status}, {@code flavor.id} and {@code OS-EXT-SRV-ATTR:host} of {@code /servers/detail}.
+     */
+    public static PagedListing.Page<ServerSummary> servers(InputStream body) throws IOException {
+        return decode(body, "servers", ProjectionDecoder::readServer);
+    }
+
+    /**
+     * {@code id}, {@code device_id} and {@code network_id} of {@code /ports}.
+     */
+    public static PagedListing.Page<PortSummary> ports(InputStream body) throws IOException {
+        return decode(body, "ports", ProjectionDecoder::readPort);
+    }
+
+    private static <T> PagedListing.Page<T> decode(InputStream body, String collection, EntityReader<T> reader)
+            throws IOException {
+        String links = collection + "_links";
+        List<T> items = new ArrayList<>();
+        String nextMarker = null;
+        try (JsonParser json = JSON.createParser(body)) {
+            expect(json, json.nextToken(), JsonToken.START_OBJECT);
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                JsonToken value = json.nextToken();
+                if (value == JsonToken.START_ARRAY && collection.equals(field)) {
+                    while (json.nextToken() == JsonToken.START_OBJECT) {
+                        items.add(reader.read(json));
+                    }
+                } else if (value == JsonToken.START_ARRAY && links.equals(field)) {
+                    nextMarker = readNextMarker(json);
+                } else {
+                    json.skipChildren();
+                }
+            }
+        }
+        return new PagedListing.Page<>(items, nextMarker);
+    }
+
+    private static ServerSummary readServer(JsonParser json) throws IOException {
+        String id = null;
+        String status = null;
+        String flavorId = null;
+        String host = null;
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            JsonToken value = json.nextToken();
+            switch (field) {
+                case "id":
+                    id = json.getValueAsString();
+                    break;
+                case "status":
+                    status = json.getValueAsString();
+                    break;
+                case "OS-EXT-SRV-ATTR:host":
+                    host = json.getValueAsString();
+                    break;
+                case "flavor":
+                    if (value == JsonToken.START_OBJECT) {
+                        flavorId = readId(json);
+                    } else {
+                        json.skipChildren();
+                    }
+                    break;
+                default:
+                    json.skipChildren();
+            }
+        }
+        return new ServerSummary(id, status, flavorId, host);
+    }
+
+    private static PortSummary readPort(JsonParser json) throws IOException {
+        String id = null;
+        String deviceId = null;
+        String networkId = null;
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            json.nextToken();
+            switch (field) {
+                case "id":
+                    id = json.getValueAsString();
+                    break;
+                case "device_id":
+                    deviceId = json.getValueAsString();
+                    break;
+                case "network_id":
+                    networkId = json.getValueAsString();
+                    break;
+                default:
+                    json.skipChildren();
+            }
+        }
+        return new PortSummary(id, deviceId, networkId);
+    }
+
+    // "id" of a nested object, the parser is left at its end
+    private static String readId(JsonParser json) throws IOException {
+        String id = null;
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            json.nextToken();
+            if ("id".equals(field)) {
+                id = json.getValueAsString();
+            } else {
+                json.skipChildren();
+            }
+        }
+        return id;
+    }
+
+    private static String readNextMarker(JsonParser json) throws IOException {
+        String nextMarker = null;
+        while (json.nextToken() == JsonToken.START_OBJECT) {
+            String href = null;
+            String rel = null;
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                json.nextToken();
+                if ("href".equals(field)) {
+                    href = json.getValueAsString();
+                } else if ("rel".equals(field)) {
+                    rel = json.getValueAsString();
+                } else {
+                    json.skipChildren();
+                }
+            }
+            if ("next".equals(rel) && href != null) {
+                nextMarker = marker(href);
+            }
+        }
+        return nextMarker;
+    }
+
+    private static String marker(String href) {
+        String query = URI.create(href).getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            if (param.startsWith("marker=")) {
+                return URLDecoder.decode(param.substring("marker=".length()), StandardCharsets.UTF_8);
+            }
+        }
+        return null;
+    }
+
+    private static void expect(JsonParser json, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but was " + actual + " at " + json.getCurrentLocation());
+        }
+    }
+
+    private interface EntityReader<T> {
+        T read(JsonParser json) throws IOException;
+    }
+
+}
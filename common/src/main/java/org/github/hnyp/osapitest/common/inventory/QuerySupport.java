@@ -0,0 +1,39 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Describes which listing query parameters a backend (SDK + endpoint) can send to the server.
+ */
+public class QuerySupport {
+
+    private final Map<String, Integer> maxValuesPerParam = new HashMap<>();
+    private boolean fields;
+
+    /**
+     * Declares filter parameter as supported, {@code maxValues} limits how many repeated values could be sent
+     * (1 for single valued parameters).
+     */
+    public QuerySupport param(String name, int maxValues) {
+        maxValuesPerParam.put(name, maxValues);
+        return this;
+    }
+
+    /**
+     * Declares support of Neutron style {@code fields=} projection.
+     */
+    public QuerySupport fields() {
+        this.fields = true;
+        return this;
+    }
+
+    boolean supports(String param, int valuesCount) {
+        return valuesCount <= maxValuesPerParam.getOrDefault(param, 0);
+    }
+
+    boolean supportsFields() {
+        return fields;
+    }
+
+}
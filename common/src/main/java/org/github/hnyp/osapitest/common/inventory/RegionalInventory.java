@@ -0,0 +1,163 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Capacity view merged from the inventories of several regions, hosts are addressed by region and host id.
+ * <p>
+ * Regions are collected independently, a region whose pass failed keeps the inventory of its last successful pass
+ * and is reported in {@link #getFailures()} until it's collected again. Instances are immutable,
+ * every round of passes gives a new one with {@link #update}.
+ */
+public class RegionalInventory {
+
+    private static final RegionalInventory EMPTY = new RegionalInventory(
+            Collections.emptyMap(), Collections.emptyMap());
+
+    private final Map<String, CompactInventory> inventories;
+    private final Map<String, int[]> usedVcpus;
+    private final Map<String, String> failures;
+
+    private RegionalInventory(Map<String, CompactInventory> inventories, Map<String, String> failures) {
+        this.inventories = Collections.unmodifiableMap(new TreeMap<>(inventories));
+        this.failures = Collections.unmodifiableMap(new TreeMap<>(failures));
+        Map<String, int[]> used = new TreeMap<>();
+        inventories.forEach((region, inventory) -> used.put(region, inventory.usedVcpusPerHost()));
+        this.usedVcpus = used;
+    }
+
+    public static RegionalInventory empty() {
+        return EMPTY;
+    }
+
+    /**
+     * @param collected inventories of the regions collected by this round
+     * @param failed    failures of the regions which were not, their previous inventory is kept
+     */
+    public RegionalInventory update(Map<String, CompactInventory> collected, Map<String, ? extends Throwable> failed) {
+        Map<String, CompactInventory> merged = new TreeMap<>(inventories);
+        merged.putAll(collected);
+        Map<String, String> failures = new TreeMap<>();
+        failed.forEach((region, error) -> failures.put(region, String.valueOf(error)));
+        return new RegionalInventory(merged, failures);
+    }
+
+    public Set<String> regions() {
+        return inventories.keySet();
+    }
+
+    /**
+     * @return inventory of the region, {@code null} if it was never collected
+     */
+    public CompactInventory inventory(String region) {
+        return inventories.get(region);
+    }
+
+    /**
+     * @return failures of the last round by region
+     */
+    public Map<String, String> getFailures() {
+        return failures;
+    }
+
+    /**
+     * @return capacity of the host, {@code null} if the region or the host is not known
+     */
+    public HostCapacity host(String region, String hostId) {
+        CompactInventory inventory = inventories.get(region);
+        if (inventory == null) {
+            return null;
+        }
+        int host = inventory.hostIndex(hostId);
+        return host == CompactInventory.NONE ? null : hostCapacity(region, inventory, host);
+    }
+
+    /**
+     * @return capacity of every host, ordered by region
+     */
+    public List<HostCapacity> hosts() {
+        List<HostCapacity> hosts = new ArrayList<>();
+        inventories.forEach((region, inventory) -> {
+            for (int host = 0; host < inventory.hostCount(); host++) {
+                hosts.add(hostCapacity(region, inventory, host));
+            }
+        });
+        return hosts;
+    }
+
+    private HostCapacity hostCapacity(String region, CompactInventory inventory, int host) {
+        return new HostCapacity(region, inventory.hostId(host), inventory.freeRamMb(host), inventory.freeDiskGb(host),
+                inventory.vcpus(host), usedVcpus.get(region)[host]);
+    }
+
+    @Override
+    public String toString() {
+        int hosts = inventories.values().stream().mapToInt(CompactInventory::hostCount).sum();
+        return "RegionalInventory{" +
+                "regions=" + inventories.keySet() +
+                ", hosts=" + hosts +
+                ", failed=" + failures.keySet() +
+                '}';
+    }
+
+    public static class HostCapacity {
+
+        private final String region;
+        private final String hostId;
+        private final int freeRamMb;
+        private final int freeDiskGb;
+        private final int vcpus;
+        private final int usedVcpus;
+
+        HostCapacity(String region, String hostId, int freeRamMb, int freeDiskGb, int vcpus, int usedVcpus) {
+            this.region = region;
+            this.hostId = hostId;
+            this.freeRamMb = freeRamMb;
+            this.freeDiskGb = freeDiskGb;
+            this.vcpus = vcpus;
+            this.usedVcpus = usedVcpus;
+        }
+
+        public String getRegion() {
+            return region;
+        }
+
+        public String getHostId() {
+            return hostId;
+        }
+
+        public int getFreeRamMb() {
+            return freeRamMb;
+        }
+
+        public int getFreeDiskGb() {
+            return freeDiskGb;
+        }
+
+        public int getVcpus() {
+            return vcpus;
+        }
+
+        public int getUsedVcpus() {
+            return usedVcpus;
+        }
+
+        @Override
+        public String toString() {
+            return "HostCapacity{" +
+                    "region='" + region + '\'' +
+                    ", hostId='" + hostId + '\'' +
+                    ", freeRamMb=" + freeRamMb +
+                    ", freeDiskGb=" + freeDiskGb +
+                    ", vcpus=" + vcpus +
+                    ", usedVcpus=" + usedVcpus +
+                    '}';
+        }
+    }
+
+}
@@ -0,0 +1,45 @@
+package org.github.hnyp.osapitest.common.inventory;
+
+/**
+ * Fields of a Nova server the pipelines need: id, status, flavor.id and OS-EXT-SRV-ATTR:host.
+ */
+public class ServerSummary {
+
+    private final String id;
+    private final String status;
+    private final String flavorId;
+    private final String host;
+
+    public ServerSummary(String id, String status, String flavorId, String host) {
+        this.id = id;
+        this.status = status;
+        this.flavorId = flavorId;
+        this.host = host;
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getStatus() {
+        return status;
+    }
+
+    public String getFlavorId() {
+        return flavorId;
+    }
+
+    public String getHost() {
+        return host;
+    }
+
+    @Override
+    public String toString() {
+        return "ServerSummary{" +
+                "id='" + id + '\'' +
+                ", status='" + status + '\'' +
+                ", flavorId='" + flavorId + '\'' +
+                ", host='" + host + '\'' +
+                '}';
+    }
+}
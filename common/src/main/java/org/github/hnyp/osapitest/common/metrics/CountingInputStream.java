@@ -0,0 +1,68 @@
+package org.github.hnyp.osapitest.common.metrics;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.LongConsumer;
+
+/**
+ * Counts bytes of a response body while an SDK reads it, the count is reported once
+ * when the stream is exhausted or closed.
+ */
+public class CountingInputStream extends FilterInputStream {
+
+    private final LongConsumer onEnd;
+    private long count;
+    private boolean reported;
+
+    public CountingInputStream(InputStream in, LongConsumer onEnd) {
+        super(in);
+        this.onEnd = onEnd;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = super.read();
+        if (b == -1) {
+            report();
+        } else {
+            count++;
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        if (read == -1) {
+            report();
+        } else {
+            count += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = super.skip(n);
+        count += skipped;
+        return skipped;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            report();
+        }
+    }
+
+    private void report() {
+        if (!reported) {
+            reported = true;
+            onEnd.accept(count);
+        }
+    }
+
+}
@@ -0,0 +1,318 @@
+package org.github.hnyp.osapitest.common.metrics;
+
+import io.micrometer.core.instrument.Clock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.composite.CompositeMeterRegistry;
+import io.micrometer.core.instrument.distribution.HistogramSnapshot;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import io.micrometer.jmx.JmxConfig;
+import io.micrometer.jmx.JmxMeterRegistry;
+import org.github.hnyp.osapitest.common.Settings;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.function.DoubleSupplier;
+import java.util.function.Supplier;
+import java.util.regex.Pattern;
+
+/**
+ * Latency, payload and CPU metrics of the pipeline per step and per endpoint, kept in a Micrometer registry.
+ * <p>
+ * A step is a numbered listing of the pipeline, e.g. {@code 4.1) servers}. It's bound to the thread running the call,
+ * so HTTP requests an SDK sends on that thread are attributed to the step as well: requests of a step are its pages.
+ * An endpoint is the request method and path with ids replaced by {@code {id}}.
+ * Latencies keep p50/p95/p99 from HdrHistogram based distributions of Micrometer, all meters are published to JMX
+ * (domain {@code metrics}) unless {@code metrics.jmx} is off, and {@link #report} prints them after a pass.
+ */
+public class PipelineMetrics implements AutoCloseable {
+
+    public static final String STEP_DURATION = "osapitest.step.duration";
+    public static final String STEP_ENTITIES = "osapitest.step.entities";
+    public static final String HTTP_REQUESTS = "osapitest.http.requests";
+    public static final String HTTP_RESPONSE_BYTES = "osapitest.http.response.bytes";
+    public static final String HTTP_RETRIES = "osapitest.http.retries";
+    public static final String CPU_TIME = "osapitest.cpu.time";
+    public static final String CAPACITY_QUERIES = "osapitest.capacity.queries";
+    public static final String HTTP_THROTTLED = "osapitest.http.throttled";
+    public static final String CONCURRENCY_LIMIT = "osapitest.concurrency.limit";
+    public static final String LISTING_CALLS = "osapitest.listing.calls";
+
+    // requests sent outside of a step, e.g. background token refresh
+    static final String NO_STEP = "none";
+
+    private static final double[] PERCENTILES = {0.5, 0.95, 0.99};
+    private static final Pattern ID_SEGMENT = Pattern.compile(
+            "/([0-9a-fA-F]{32}|[0-9a-fA-F]{8}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{4}-[0-9a-fA-F]{12}|\\d+)(?=/|$)");
+    private static final ThreadLocal<String> CURRENT_STEP = new ThreadLocal<>();
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    private final MeterRegistry registry;
+
+    public PipelineMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    public static PipelineMetrics fromSettings() {
+        CompositeMeterRegistry registry = new CompositeMeterRegistry();
+        registry.add(new SimpleMeterRegistry());
+        if (Settings.METRICS_JMX) {
+            registry.add(new JmxMeterRegistry(JmxConfig.DEFAULT, Clock.SYSTEM));
+        }
+        return new PipelineMetrics(registry);
+    }
+
+    /**
+     * Metrics which are not kept anywhere.
+     */
+    public static PipelineMetrics disabled() {
+        return new PipelineMetrics(new CompositeMeterRegistry());
+    }
+
+    public MeterRegistry getRegistry() {
+        return registry;
+    }
+
+    /**
+     * @return step of the calling thread, {@code none} outside of {@link #step}
+     */
+    public static String currentStep() {
+        String step = CURRENT_STEP.get();
+        return step == null ? NO_STEP : step;
+    }
+
+    /**
+     * @return method and path of the request, without query and with ids replaced
+     */
+    public static String endpoint(String method, String path) {
+        int query = path.indexOf('?');
+        String withoutQuery = query < 0 ? path : path.substring(0, query);
+        return method + " " + ID_SEGMENT.matcher(withoutQuery).replaceAll("/{id}");
+    }
+
+    /**
+     * Wraps the call of a step: measures it, counts entities of collection and map results
+     * and binds the step to the thread for the requests sent by the call.
+     */
+    public <T> Callable<T> step(String step, Callable<T> call) {
+        return () -> {
+            String outer = CURRENT_STEP.get();
+            CURRENT_STEP.set(step);
+            long startedAt = System.nanoTime();
+            String outcome = "error";
+            try {
+                T result = call.call();
+                outcome = "success";
+                if (result instanceof Collection) {
+                    entities(step).record(((Collection<?>) result).size());
+                } else if (result instanceof Map) {
+                    entities(step).record(((Map<?, ?>) result).size());
+                }
+                return result;
+            } finally {
+                timer(STEP_DURATION, "step", step, "outcome", outcome)
+                        .record(System.nanoTime() - startedAt, TimeUnit.NANOSECONDS);
+                if (outer == null) {
+                    CURRENT_STEP.remove();
+                } else {
+                    CURRENT_STEP.set(outer);
+                }
+            }
+        };
+    }
+
+    /**
+     * Runs aggregation of the pipeline on the calling thread and records its CPU time.
+     */
+    public <T> T cpu(String stage, Supplier<T> aggregation) {
+        long startedAt = THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+        try {
+            return aggregation.get();
+        } finally {
+            if (startedAt >= 0) {
+                timer(CPU_TIME, "stage", stage).record(THREADS.getCurrentThreadCpuTime() - startedAt,
+                        TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * @param status HTTP status, 0 when no response was received
+     */
+    public void request(String endpoint, int status, long nanos) {
+        timer(HTTP_REQUESTS, "step", currentStep(), "endpoint", endpoint, "status", String.valueOf(status))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    public void responseBytes(String endpoint, long bytes) {
+        DistributionSummary.builder(HTTP_RESPONSE_BYTES)
+                .baseUnit("bytes")
+                .tags("step", currentStep(), "endpoint", endpoint)
+                .register(registry)
+                .record(bytes);
+    }
+
+    public void retry(String endpoint) {
+        Counter.builder(HTTP_RETRIES)
+                .tags("step", currentStep(), "endpoint", endpoint)
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * Counts a response which asked to slow down (413/429/503).
+     */
+    public void throttled(String service, String endpoint) {
+        Counter.builder(HTTP_THROTTLED)
+                .tags("step", currentStep(), "service", service, "endpoint", endpoint)
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * Publishes the current concurrency limit of a service.
+     */
+    public void concurrencyLimit(String service, DoubleSupplier limit) {
+        Gauge.builder(CONCURRENCY_LIMIT, limit::getAsDouble)
+                .tags("service", service)
+                .register(registry);
+    }
+
+    /**
+     * Counts a listing call of {@code SingleFlight}.
+     *
+     * @param outcome {@code sent}, {@code joined} an identical listing in flight or reused a {@code fresh} one
+     */
+    public void listingCall(String listing, String outcome) {
+        Counter.builder(LISTING_CALLS)
+                .tags("listing", listing, "outcome", outcome)
+                .register(registry)
+                .increment();
+    }
+
+    /**
+     * Records a request answered by the capacity service.
+     */
+    public void capacityQuery(String endpoint, int status, long nanos) {
+        timer(CAPACITY_QUERIES, "endpoint", endpoint, "status", String.valueOf(status))
+                .record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Prints percentiles of steps, endpoints, aggregations and capacity queries, concurrency limits of services
+     * and coalesced listings.
+     */
+    public void report(PrintStream out) {
+        out.printf("%-28s %8s %10s %10s %10s %10s %10s %12s %8s%n",
+                "step", "calls", "p50 ms", "p95 ms", "p99 ms", "entities", "pages", "bytes", "retries");
+        // percentiles of successful calls unless a step has failed calls only
+        Map<String, Timer> steps = new TreeMap<>();
+        registry.find(STEP_DURATION).timers().forEach(t -> steps.merge(t.getId().getTag("step"), t,
+                (a, b) -> "success".equals(a.getId().getTag("outcome")) ? a : b));
+        steps.forEach((step, timer) -> {
+            double[] percentiles = percentilesMillis(timer.takeSnapshot());
+            out.printf("%-28s %8d %10.1f %10.1f %10.1f %10.0f %10.0f %12.0f %8.0f%n", step,
+                    registry.find(STEP_DURATION).tag("step", step).timers().stream().mapToLong(Timer::count).sum(),
+                    percentiles[0], percentiles[1], percentiles[2],
+                    registry.find(STEP_ENTITIES).tag("step", step).summaries().stream()
+                            .mapToDouble(DistributionSummary::totalAmount).sum(),
+                    registry.find(HTTP_REQUESTS).tag("step", step).timers().stream()
+                            .mapToDouble(Timer::count).sum(),
+                    registry.find(HTTP_RESPONSE_BYTES).tag("step", step).summaries().stream()
+                            .mapToDouble(DistributionSummary::totalAmount).sum(),
+                    registry.find(HTTP_RETRIES).tag("step", step).counters().stream()
+                            .mapToDouble(Counter::count).sum());
+        });
+
+        out.printf("%n%-48s %-28s %6s %8s %10s %10s %10s%n",
+                "endpoint", "step", "status", "requests", "p50 ms", "p95 ms", "p99 ms");
+        Map<String, Timer> endpoints = new TreeMap<>();
+        registry.find(HTTP_REQUESTS).timers().forEach(t -> endpoints.put(
+                t.getId().getTag("endpoint") + " " + t.getId().getTag("status") + " " + t.getId().getTag("step"), t));
+        endpoints.values().forEach(timer -> {
+            double[] percentiles = percentilesMillis(timer.takeSnapshot());
+            out.printf("%-48s %-28s %6s %8d %10.1f %10.1f %10.1f%n", timer.getId().getTag("endpoint"),
+                    timer.getId().getTag("step"), timer.getId().getTag("status"), timer.count(),
+                    percentiles[0], percentiles[1], percentiles[2]);
+        });
+
+        out.printf("%n%-28s %8s %10s%n", "aggregation", "runs", "cpu ms");
+        registry.find(CPU_TIME).timers().forEach(timer -> out.printf("%-28s %8d %10.1f%n",
+                timer.getId().getTag("stage"), timer.count(), timer.totalTime(TimeUnit.MILLISECONDS)));
+
+        Collection<Gauge> limits = registry.find(CONCURRENCY_LIMIT).gauges();
+        if (!limits.isEmpty()) {
+            out.printf("%n%-48s %8s %10s%n", "service", "limit", "throttled");
+            limits.forEach(gauge -> {
+                String service = gauge.getId().getTag("service");
+                out.printf("%-48s %8.1f %10.0f%n", service, gauge.value(),
+                        registry.find(HTTP_THROTTLED).tag("service", service).counters().stream()
+                                .mapToDouble(Counter::count).sum());
+            });
+        }
+
+        Map<String, Map<String, Double>> listingCalls = new TreeMap<>();
+        registry.find(LISTING_CALLS).counters().forEach(counter -> listingCalls
+                .computeIfAbsent(counter.getId().getTag("listing"), l -> new TreeMap<>())
+                .merge(counter.getId().getTag("outcome"), counter.count(), Double::sum));
+        if (!listingCalls.isEmpty()) {
+            out.printf("%n%-28s %8s %8s %8s%n", "listing", "sent", "joined", "fresh");
+            listingCalls.forEach((listing, outcomes) -> out.printf("%-28s %8.0f %8.0f %8.0f%n", listing,
+                    outcomes.getOrDefault("sent", 0.0), outcomes.getOrDefault("joined", 0.0),
+                    outcomes.getOrDefault("fresh", 0.0)));
+        }
+
+        Collection<Timer> queries = registry.find(CAPACITY_QUERIES).timers();
+        if (!queries.isEmpty()) {
+            out.printf("%n%-28s %6s %8s %10s %10s %10s%n",
+                    "capacity query", "status", "queries", "p50 us", "p95 us", "p99 us");
+            queries.forEach(timer -> {
+                double[] percentiles = percentilesMillis(timer.takeSnapshot());
+                out.printf("%-28s %6s %8d %10.1f %10.1f %10.1f%n", timer.getId().getTag("endpoint"),
+                        timer.getId().getTag("status"), timer.count(),
+                        percentiles[0] * 1000, percentiles[1] * 1000, percentiles[2] * 1000);
+            });
+        }
+    }
+
+    @Override
+    public void close() {
+        registry.close();
+    }
+
+    private Timer timer(String name, String... tags) {
+        return Timer.builder(name)
+                .tags(tags)
+                .publishPercentiles(PERCENTILES)
+                .register(registry);
+    }
+
+    private DistributionSummary entities(String step) {
+        return DistributionSummary.builder(STEP_ENTITIES)
+                .tags("step", step)
+                .register(registry);
+    }
+
+    private static double[] percentilesMillis(HistogramSnapshot snapshot) {
+        double[] millis = new double[PERCENTILES.length];
+        for (ValueAtPercentile value : snapshot.percentileValues()) {
+            for (int i = 0; i < PERCENTILES.length; i++) {
+                if (value.percentile() == PERCENTILES[i]) {
+                    millis[i] = value.value(TimeUnit.MILLISECONDS);
+                }
+            }
+        }
+        return millis;
+    }
+
+}
@@ -0,0 +1,271 @@
+package org.github.hnyp.osapitest.common.placement;
+
+import org.github.hnyp.osapitest.common.inventory.CompactInventory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * Places a batch of VM requests onto hosts of a {@link CompactInventory}.
+ * <p>
+ * Hosts are kept in indexes ordered by free RAM, free disk, free vcpus and (optionally) free vports.
+ * A request walks the tails of the indexes which already have enough of each resource in turns, the first host found
+ * in all of them fits and is the tightest fit in the index it was found in. Capacity of the chosen host is reduced
+ * and re-indexed before the next request, so requests of the same batch never share the same headroom.
+ * Larger requests are placed first, smaller ones fill what's left.
+ * <p>
+ * When ephemeral disks are kept in a pool shared by all hosts (Ceph), disk is not a resource of the host:
+ * every placed request takes its disk from the one pool, a request which does not fit into it fits nowhere.
+ */
+public class PlacementEngine {
+
+    private final CompactInventory inventory;
+    private final CapacityIndex freeRam;
+    private final CapacityIndex freeDisk;
+    private final CapacityIndex freeVcpus;
+    private final CapacityIndex freeVports;
+    private int sharedDiskGb;
+
+    /**
+     * @param usedVcpus  vcpus used per host index, see {@link CompactInventory#usedVcpusPerHost()}
+     * @param usedVports ports per host index, see {@link CompactInventory#portsPerHost()}
+     * @param maxVports  vports a host could have, 0 if vports are not limited
+     */
+    public PlacementEngine(CompactInventory inventory, int[] usedVcpus, int[] usedVports, int maxVports) {
+        this(inventory, usedVcpus, usedVports, maxVports, -1);
+    }
+
+    /**
+     * @param sharedDiskGb free disk of the pool shared by all hosts, -1 if hosts have disks of their own
+     *                     ({@link CompactInventory#freeDiskGb(int)} is placed then)
+     */
+    public PlacementEngine(CompactInventory inventory, int[] usedVcpus, int[] usedVports, int maxVports,
+                           int sharedDiskGb) {
+        this.inventory = inventory;
+        this.sharedDiskGb = sharedDiskGb;
+        int hosts = inventory.hostCount();
+        int[] ram = new int[hosts];
+        int[] disk = new int[hosts];
+        int[] vcpus = new int[hosts];
+        for (int host = 0; host < hosts; host++) {
+            ram[host] = inventory.freeRamMb(host);
+            disk[host] = inventory.freeDiskGb(host);
+            vcpus[host] = inventory.vcpus(host) - usedVcpus[host];
+        }
+        this.freeRam = new CapacityIndex(ram);
+        this.freeDisk = sharedDiskGb < 0 ? new CapacityIndex(disk) : null;
+        this.freeVcpus = new CapacityIndex(vcpus);
+        if (maxVports > 0) {
+            int[] vports = new int[hosts];
+            for (int host = 0; host < hosts; host++) {
+                vports[host] = maxVports - usedVports[host];
+            }
+            this.freeVports = new CapacityIndex(vports);
+        } else {
+            this.freeVports = null;
+        }
+    }
+
+    /**
+     * @return assignments in order of the requests, host is null for the ones which did not fit anywhere
+     */
+    public synchronized List<Assignment> place(List<Request> requests) {
+        Integer[] order = new Integer[requests.size()];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparing(requests::get, Request.LARGEST_FIRST));
+
+        Assignment[] assignments = new Assignment[order.length];
+        // capacity only goes down, a request not smaller than one which did not fit won't fit either
+        List<Request> unplaced = new ArrayList<>();
+        for (int i : order) {
+            Request request = requests.get(i);
+            boolean hopeless = unplaced.stream().anyMatch(request::notSmallerThan);
+            int host = hopeless ? CompactInventory.NONE : findHost(request);
+            if (host == CompactInventory.NONE) {
+                if (!hopeless) {
+                    unplaced.add(request);
+                }
+            } else {
+                freeRam.reduce(host, request.getRamMb());
+                if (freeDisk != null) {
+                    freeDisk.reduce(host, request.getDiskGb());
+                } else {
+                    sharedDiskGb -= request.getDiskGb();
+                }
+                freeVcpus.reduce(host, request.getVcpus());
+                if (freeVports != null) {
+                    freeVports.reduce(host, request.getVports());
+                }
+            }
+            assignments[i] = new Assignment(request, host == CompactInventory.NONE ? null : inventory.hostId(host));
+        }
+        return Collections.unmodifiableList(Arrays.asList(assignments));
+    }
+
+    private int findHost(Request request) {
+        if (freeDisk == null && sharedDiskGb < request.getDiskGb()) {
+            return CompactInventory.NONE;
+        }
+        List<Iterator<Long>> candidates = new ArrayList<>(4);
+        candidates.add(freeRam.atLeast(request.getRamMb()));
+        if (freeDisk != null) {
+            candidates.add(freeDisk.atLeast(request.getDiskGb()));
+        }
+        candidates.add(freeVcpus.atLeast(request.getVcpus()));
+        if (freeVports != null) {
+            candidates.add(freeVports.atLeast(request.getVports()));
+        }
+        // a fitting host is in every tail, walking them in turns stops within the shortest one
+        while (true) {
+            for (Iterator<Long> tail : candidates) {
+                if (!tail.hasNext()) {
+                    return CompactInventory.NONE;
+                }
+                int host = CapacityIndex.host(tail.next());
+                if (fits(host, request)) {
+                    return host;
+                }
+            }
+        }
+    }
+
+    private boolean fits(int host, Request request) {
+        return freeRam.get(host) >= request.getRamMb()
+                && (freeDisk == null || freeDisk.get(host) >= request.getDiskGb())
+                && freeVcpus.get(host) >= request.getVcpus()
+                && (freeVports == null || freeVports.get(host) >= request.getVports());
+    }
+
+    /**
+     * Free amount of one resource per host, ordered by amount. Entries are (amount, host) packed to a long,
+     * so that lookups by amount need no probe objects.
+     */
+    private static class CapacityIndex {
+
+        private final int[] values;
+        private final NavigableSet<Long> ordered = new TreeSet<>();
+
+        CapacityIndex(int[] values) {
+            this.values = values;
+            for (int host = 0; host < values.length; host++) {
+                ordered.add(key(values[host], host));
+            }
+        }
+
+        int get(int host) {
+            return values[host];
+        }
+
+        void reduce(int host, int amount) {
+            ordered.remove(key(values[host], host));
+            values[host] -= amount;
+            ordered.add(key(values[host], host));
+        }
+
+        Iterator<Long> atLeast(int amount) {
+            return ordered.tailSet(key(amount, 0), true).iterator();
+        }
+
+        static int host(long key) {
+            return (int) key;
+        }
+
+        private static long key(int value, int host) {
+            return ((long) value << 32) | host;
+        }
+    }
+
+    public static class Request {
+
+        static final Comparator<Request> LARGEST_FIRST = Comparator.comparingInt(Request::getVcpus)
+                .thenComparingInt(Request::getRamMb)
+                .thenComparingInt(Request::getDiskGb)
+                .thenComparingInt(Request::getVports)
+                .reversed();
+
+        private final String name;
+        private final int ramMb;
+        private final int diskGb;
+        private final int vcpus;
+        private final int vports;
+
+        public Request(String name, int ramMb, int diskGb, int vcpus, int vports) {
+            this.name = name;
+            this.ramMb = ramMb;
+            this.diskGb = diskGb;
+            this.vcpus = vcpus;
+            this.vports = vports;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getRamMb() {
+            return ramMb;
+        }
+
+        public int getDiskGb() {
+            return diskGb;
+        }
+
+        public int getVcpus() {
+            return vcpus;
+        }
+
+        public int getVports() {
+            return vports;
+        }
+
+        boolean notSmallerThan(Request other) {
+            return ramMb >= other.ramMb && diskGb >= other.diskGb && vcpus >= other.vcpus && vports >= other.vports;
+        }
+
+        @Override
+        public String toString() {
+            return "Request{" +
+                    "name='" + name + '\'' +
+                    ", ramMb=" + ramMb +
+                    ", diskGb=" + diskGb +
+                    ", vcpus=" + vcpus +
+                    ", vports=" + vports +
+                    '}';
+        }
+    }
+
+    public static class Assignment {
+
+        private final Request request;
+        private final String host;
+
+        Assignment(Request request, String host) {
+            this.request = request;
+            this.host = host;
+        }
+
+        public Request getRequest() {
+            return request;
+        }
+
+        /**
+         * @return chosen host or null if the request did not fit
+         */
+        public String getHost() {
+            return host;
+        }
+
+        @Override
+        public String toString() {
+            return "Assignment{" + request.getName() + " -> " + (host == null ? "<no capacity>" : host) + '}';
+        }
+    }
+
+}
@@ -0,0 +1,19 @@
+package org.github.hnyp.osapitest.common.concurrent;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Executor of {@link ConcurrentCalls} starting a virtual thread per call, compiled by the {@code java21} profile only
+ * and loaded reflectively so that the Java 11 build keeps working without it.
+ */
+final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    static ExecutorService newExecutor(String prefix) {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(prefix + "-", 1).factory());
+    }
+
+}
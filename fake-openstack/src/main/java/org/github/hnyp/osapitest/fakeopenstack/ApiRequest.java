@@ -0,0 +1,179 @@
+package org.github.hnyp.osapitest.fakeopenstack;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * HTTP exchange of the fake API: path relative to the service, repeated query parameters and a streamed JSON response.
+ */
+class ApiRequest {
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final HttpExchange exchange;
+    private final String path;
+    private final Map<String, List<String>> query;
+
+    ApiRequest(HttpExchange exchange, String path) {
+        this.exchange = exchange;
+        this.path = path;
+        this.query = parseQuery(exchange.getRequestURI().getRawQuery());
+    }
+
+    String method() {
+        return exchange.getRequestMethod();
+    }
+
+    String path() {
+        return path;
+    }
+
+    String param(String name) {
+        List<String> values = query.get(name);
+        return values == null || values.isEmpty() ? null : values.get(0);
+    }
+
+    List<String> params(String name) {
+        return query.getOrDefault(name, Collections.emptyList());
+    }
+
+    int intParam(String name, int defaultValue) {
+        String value = param(name);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    /**
+     * @return ISO-8601 instant or epoch seconds (jclouds sends {@code changes-since} so), {@code null} if absent
+     */
+    Instant instantParam(String name) {
+        String value = param(name);
+        if (value == null || value.isEmpty()) {
+            return null;
+        }
+        return value.chars().allMatch(Character::isDigit)
+                ? Instant.ofEpochSecond(Long.parseLong(value)) : Instant.parse(value);
+    }
+
+    /**
+     * @return scheme, host and port the client used, for links and the service catalog
+     */
+    String baseUrl() {
+        String host = exchange.getRequestHeaders().getFirst("Host");
+        if (host == null) {
+            host = "localhost:" + exchange.getLocalAddress().getPort();
+        }
+        return "http://" + host;
+    }
+
+    /**
+     * @return URL of this request with the marker replaced, for pagination links
+     */
+    String nextPageUrl(String marker) {
+        StringBuilder url = new StringBuilder(baseUrl()).append(exchange.getRequestURI().getRawPath()).append('?');
+        query.forEach((name, values) -> {
+            if (!"marker".equals(name)) {
+                values.forEach(value -> url.append(encode(name)).append('=').append(encode(value)).append('&'));
+            }
+        });
+        return url.append("marker=").append(encode(marker)).toString();
+    }
+
+    byte[] body() throws IOException {
+        try (InputStream in = exchange.getRequestBody()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] chunk = new byte[4096];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                body.write(chunk, 0, read);
+            }
+            return body.toByteArray();
+        }
+    }
+
+    /**
+     * Streams the document with chunked encoding, gzipped when the client accepts it, so large listings are never
+     * held in memory.
+     */
+    void respond(int status, JsonBody body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+        boolean gzip = acceptEncoding != null && acceptEncoding.contains("gzip");
+        if (gzip) {
+            exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+        }
+        exchange.sendResponseHeaders(status, 0);
+        OutputStream out = gzip ? new GZIPOutputStream(exchange.getResponseBody(), 8192) : exchange.getResponseBody();
+        try (JsonGenerator json = JSON.createGenerator(out, JsonEncoding.UTF8)) {
+            json.writeStartObject();
+            body.write(json);
+            json.writeEndObject();
+        }
+    }
+
+    void respondError(int status, String message) throws IOException {
+        if (status == 503 || status == 429) {
+            exchange.getResponseHeaders().set("Retry-After", "1");
+        }
+        respond(status, json -> {
+            json.writeObjectFieldStart("error");
+            json.writeNumberField("code", status);
+            json.writeStringField("message", message);
+            json.writeEndObject();
+        });
+    }
+
+    private static Map<String, List<String>> parseQuery(String rawQuery) {
+        Map<String, List<String>> query = new LinkedHashMap<>();
+        if (rawQuery == null || rawQuery.isEmpty()) {
+            return query;
+        }
+        for (String pair : rawQuery.split("&")) {
+            int eq = pair.indexOf('=');
+            String name = decode(eq < 0 ? pair : pair.substring(0, eq));
+            String value = eq < 0 ? "" : decode(pair.substring(eq + 1));
+            query.computeIfAbsent(name, k -> new ArrayList<>()).add(value);
+        }
+        return query;
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @FunctionalInterface
+    interface JsonBody {
+
+        void write(JsonGenerator json) throws IOException;
+
+    }
+
+}
@@ -0,0 +1,204 @@
+package org.github.hnyp.osapitest.fakeopenstack;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Local stand-in of one OpenStack region for load and scale tests of the pipelines: Keystone v2, Nova v2 and Neutron
+ * v2.0 serving a synthetic {@link Fleet}, with optional latency and error injection.
+ * <p>
+ * Runs standalone with {@code key=value} arguments, e.g. {@code port=5000 hosts=2000 vms=100000 latency.ms=20},
+ * then point {@code keystone.url} of {@code credentials.properties} to it; or embedded in a benchmark:
+ * <pre>
+ * try (FakeOpenStack openStack = new FakeOpenStack(Fleet.generate(1, 100, 5000, 20, 2), Faults.NONE, 0)) {
+ *     openStack.start();
+ *     String keystoneUrl = openStack.getKeystoneUrl();
+ * }
+ * </pre>
+ */
+public class FakeOpenStack implements AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(FakeOpenStack.class);
+
+    private final Fleet fleet;
+    private final Faults faults;
+    private final HttpServer server;
+    private final ExecutorService executor;
+    private final Keystone keystone;
+    private final Nova nova;
+    private final Neutron neutron;
+
+    public FakeOpenStack(Fleet fleet, Faults faults, int port) throws IOException {
+        this(fleet, faults, port, 16, 1000, Duration.ofHours(1));
+    }
+
+    /**
+     * @param port     0 for any free port
+     * @param threads  requests served concurrently, like API workers of the real services
+     * @param maxLimit max page size of Nova listings
+     * @param tokenTtl expiry of issued tokens
+     */
+    public FakeOpenStack(Fleet fleet, Faults faults, int port, int threads, int maxLimit, Duration tokenTtl)
+            throws IOException {
+        this.fleet = fleet;
+        this.faults = faults;
+        this.keystone = new Keystone(fleet, tokenTtl);
+        this.nova = new Nova(fleet, maxLimit);
+        this.neutron = new Neutron(fleet);
+        this.server = HttpServer.create(new InetSocketAddress(port), 128);
+        this.executor = Executors.newFixedThreadPool(threads, runnable -> {
+            Thread thread = new Thread(runnable, "fake-openstack");
+            thread.setDaemon(true);
+            return thread;
+        });
+        server.setExecutor(executor);
+        server.createContext("/identity", exchange -> serve(exchange, "/identity/v2.0", false, keystone::handle));
+        server.createContext("/compute", exchange ->
+                serve(exchange, "/compute/v2/" + fleet.projectId(), true, nova::handle));
+        server.createContext("/network", exchange -> serve(exchange, "/network", true, neutron::handle));
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                throw new IllegalArgumentException("Expected key=value, got " + arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        Fleet fleet = Fleet.generate(
+                Long.parseLong(options.getOrDefault("seed", "1")),
+                intOption(options, "hosts", 200),
+                intOption(options, "vms", 5000),
+                intOption(options, "networks", 50),
+                intOption(options, "zones", 2));
+        Faults faults = new Faults(
+                intOption(options, "latency.ms", 0),
+                intOption(options, "jitter.ms", 0),
+                intOption(options, "error.percent", 0),
+                intOption(options, "error.status", 503),
+                intOption(options, "max.inflight", 0));
+        FakeOpenStack openStack = new FakeOpenStack(fleet, faults,
+                intOption(options, "port", 5000),
+                intOption(options, "threads", 16),
+                intOption(options, "max.limit", 1000),
+                Duration.ofMinutes(intOption(options, "token.ttl.minutes", 60)));
+        openStack.start();
+
+        System.out.println("Fake OpenStack started with " + fleet + ", " + faults);
+        System.out.println("credentials.properties:");
+        System.out.println("keystone.url=" + openStack.getKeystoneUrl());
+        System.out.println("username=admin");
+        System.out.println("password=any");
+        System.out.println("tenant=admin");
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    public String getKeystoneUrl() {
+        return "http://localhost:" + getPort() + "/identity/v2.0";
+    }
+
+    /**
+     * @return Nova endpoint of the catalog, for requests sent without an SDK
+     */
+    public String getComputeUrl() {
+        return "http://localhost:" + getPort() + "/compute/v2/" + fleet.projectId();
+    }
+
+    /**
+     * @return Neutron endpoint of the catalog, for requests sent without an SDK
+     */
+    public String getNetworkUrl() {
+        return "http://localhost:" + getPort() + "/network/v2.0";
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve(HttpExchange exchange, String prefix, boolean withFaults, Handler handler) throws IOException {
+        try {
+            String path = exchange.getRequestURI().getPath();
+            path = path.startsWith(prefix) ? path.substring(prefix.length()) : path;
+            // Neutron clients add the version to the catalog URL that already has one, or ask for *.json
+            path = path.replace("/v2.0", "");
+            if (path.endsWith(".json")) {
+                path = path.substring(0, path.length() - ".json".length());
+            }
+            if (path.length() > 1 && path.endsWith("/")) {
+                path = path.substring(0, path.length() - 1);
+            }
+            ApiRequest request = new ApiRequest(exchange, path);
+            if (!withFaults) {
+                handler.handle(request);
+                return;
+            }
+            if (!faults.enter()) {
+                request.respondError(429, "Too many requests in flight");
+                return;
+            }
+            try {
+                faults.delay();
+                int error = faults.error();
+                if (error != 0) {
+                    request.respondError(error, "Injected failure");
+                    return;
+                }
+                handler.handle(request);
+            } finally {
+                faults.leave();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (RuntimeException e) {
+            LOG.error("{} {} failed", exchange.getRequestMethod(), exchange.getRequestURI(), e);
+            exchange.sendResponseHeaders(500, -1);
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private static int intOption(Map<String, String> options, String key, int defaultValue) {
+        String value = options.get(key);
+        return value == null ? defaultValue : Integer.parseInt(value);
+    }
+
+    @Override
+    public String toString() {
+        return "FakeOpenStack{" + fleet + ", " + faults + ", port=" + getPort() + '}';
+    }
+
+    @FunctionalInterface
+    private interface Handler {
+
+        void handle(ApiRequest request) throws IOException;
+
+    }
+
+}
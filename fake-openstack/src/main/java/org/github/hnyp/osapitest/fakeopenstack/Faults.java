@@ -0,0 +1,80 @@
+package org.github.hnyp.osapitest.fakeopenstack;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Latency and errors injected into Nova and Neutron responses. Keystone is not affected,
+ * pipelines can't do anything without a token.
+ * <p>
+ * Requests above the max in flight are answered with 429 like a rate limited control plane does.
+ */
+public class Faults {
+
+    public static final Faults NONE = new Faults(0, 0, 0, 503);
+
+    private final int latencyMillis;
+    private final int jitterMillis;
+    private final int errorPercent;
+    private final int errorStatus;
+    private final int maxInFlight;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    public Faults(int latencyMillis, int jitterMillis, int errorPercent, int errorStatus) {
+        this(latencyMillis, jitterMillis, errorPercent, errorStatus, 0);
+    }
+
+    /**
+     * @param latencyMillis added before every response
+     * @param jitterMillis  random extra latency up to this value
+     * @param errorPercent  share of requests answered with {@code errorStatus}
+     * @param errorStatus   e.g. 500, or 503/429 which are sent with Retry-After
+     * @param maxInFlight   concurrent requests served, 0 for no limit
+     */
+    public Faults(int latencyMillis, int jitterMillis, int errorPercent, int errorStatus, int maxInFlight) {
+        this.latencyMillis = latencyMillis;
+        this.jitterMillis = jitterMillis;
+        this.errorPercent = errorPercent;
+        this.errorStatus = errorStatus;
+        this.maxInFlight = maxInFlight;
+    }
+
+    /**
+     * @return whether the request is within the max in flight, if so {@link #leave()} has to follow
+     */
+    boolean enter() {
+        if (maxInFlight > 0 && inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    void leave() {
+        if (maxInFlight > 0) {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    void delay() throws InterruptedException {
+        int delay = latencyMillis + (jitterMillis > 0 ? ThreadLocalRandom.current().nextInt(jitterMillis + 1) : 0);
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * @return status to fail the request with or 0
+     */
+    int error() {
+        return errorPercent > 0 && ThreadLocalRandom.current().nextInt(100) < errorPercent ? errorStatus : 0;
+    }
+
+    @Override
+    public String toString() {
+        return "Faults{latency=" + latencyMillis + "+" + jitterMillis + "ms" +
+                ", errors=" + errorPercent + "% " + errorStatus +
+                (maxInFlight > 0 ? ", maxInFlight=" + maxInFlight : "") + '}';
+    }
+
+}
@@ -0,0 +1,254 @@
+package org.github.hnyp.osapitest.fakeopenstack;
+
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.SplittableRandom;
+import java.util.UUID;
+
+/**
+ * Synthetic inventory of one region generated from a seed: compute hosts, flavors, servers, networks and ports.
+ * <p>
+ * Entities are rows of primitive arrays, their UUIDs are derived from the seed, kind and row index
+ * and are not stored, so that a 500k VM fleet takes a few MB. The same seed and sizes give the same fleet.
+ */
+public class Fleet {
+
+    static final String[] STATUSES = {"ACTIVE", "BUILD", "SHUTOFF", "ERROR"};
+    private static final int[] STATUS_PERCENTS = {90, 3, 5, 2};
+
+    // id, name, vcpus, ram (MB), disk (GB)
+    static final String[][] FLAVORS = {
+            {"1", "m1.tiny", "1", "512", "1"},
+            {"2", "m1.small", "1", "2048", "20"},
+            {"3", "m1.medium", "2", "4096", "40"},
+            {"4", "m1.large", "4", "8192", "80"},
+            {"5", "m1.xlarge", "8", "16384", "160"},
+            {"6", "vnf.sriov", "8", "16384", "40"},
+    };
+
+    static final String[] PHYSICAL_NETWORKS = {"physnet1", "physnet2", "sriov1", "sriov2"};
+
+    private static final int HOST_PROBES = 64;
+
+    private static final long KIND_SERVER = 1;
+    private static final long KIND_PORT = 2;
+    private static final long KIND_NETWORK = 3;
+    private static final long KIND_SUBNET = 4;
+    private static final long KIND_IMAGE = 5;
+    private static final long KIND_PROJECT = 6;
+
+    final long seed;
+    final Instant createdAt;
+    final Instant updatedAt;
+
+    final int hostCount;
+    final String[] availabilityZones;
+    final int[] hostZone;
+    final boolean[] hostUp;
+    final int[] hostVcpus;
+    final int[] hostRamMb;
+    final int[] hostDiskGb;
+    final int[] hostUsedVcpus;
+    final int[] hostUsedRamMb;
+    final int[] hostUsedDiskGb;
+    final int[] hostRunningVms;
+
+    final int serverCount;
+    final int[] serverHost;
+    final byte[] serverFlavor;
+    final byte[] serverStatus;
+
+    final int networkCount;
+    final int[] networkPhysical;
+
+    final int portCount;
+    final int[] portServer;
+    final int[] portNetwork;
+
+    private Fleet(long seed, int hosts, int servers, int networks, int zones) {
+        this.seed = seed;
+        this.createdAt = Instant.parse("2019-01-01T00:00:00Z");
+        this.updatedAt = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+        SplittableRandom random = new SplittableRandom(seed);
+
+        this.availabilityZones = new String[zones];
+        for (int zone = 0; zone < zones; zone++) {
+            availabilityZones[zone] = zone == 0 ? "nova" : "az" + (zone + 1);
+        }
+        this.hostCount = hosts;
+        this.hostZone = new int[hosts];
+        this.hostUp = new boolean[hosts];
+        this.hostVcpus = new int[hosts];
+        this.hostRamMb = new int[hosts];
+        this.hostDiskGb = new int[hosts];
+        this.hostUsedVcpus = new int[hosts];
+        this.hostUsedRamMb = new int[hosts];
+        this.hostUsedDiskGb = new int[hosts];
+        this.hostRunningVms = new int[hosts];
+        for (int host = 0; host < hosts; host++) {
+            hostZone[host] = host % zones;
+            hostUp[host] = random.nextInt(100) >= 2;
+            hostVcpus[host] = 48 + 16 * random.nextInt(4);
+            hostRamMb[host] = 1024 * (256 + 128 * random.nextInt(3));
+            hostDiskGb[host] = 1000 * (1 + random.nextInt(4));
+        }
+
+        this.serverCount = servers;
+        this.serverHost = new int[servers];
+        this.serverFlavor = new byte[servers];
+        this.serverStatus = new byte[servers];
+        int ports = 0;
+        byte[] serverPorts = new byte[servers];
+        for (int server = 0; server < servers; server++) {
+            int flavor = random.nextInt(FLAVORS.length);
+            int host = pickHost(random, flavor);
+            serverHost[server] = host;
+            serverFlavor[server] = (byte) flavor;
+            serverStatus[server] = (byte) pick(random, STATUS_PERCENTS);
+            hostUsedVcpus[host] += Integer.parseInt(FLAVORS[flavor][2]);
+            hostUsedRamMb[host] += Integer.parseInt(FLAVORS[flavor][3]);
+            hostUsedDiskGb[host] += Integer.parseInt(FLAVORS[flavor][4]);
+            hostRunningVms[host]++;
+            serverPorts[server] = (byte) (1 + random.nextInt(4));
+            ports += serverPorts[server];
+        }
+
+        this.networkCount = networks;
+        this.networkPhysical = new int[networks];
+        for (int network = 0; network < networks; network++) {
+            // a quarter of the networks are tenant overlays without physical network
+            networkPhysical[network] = network % 4 == 3 ? -1 : random.nextInt(PHYSICAL_NETWORKS.length);
+        }
+
+        // every 20th port is unbound (DHCP, reserved addresses)
+        int unbound = ports / 20;
+        this.portCount = ports + unbound;
+        this.portServer = new int[portCount];
+        this.portNetwork = new int[portCount];
+        int port = 0;
+        for (int server = 0; server < servers; server++) {
+            for (int i = 0; i < serverPorts[server]; i++) {
+                portServer[port] = server;
+                portNetwork[port] = random.nextInt(networks);
+                port++;
+            }
+        }
+        for (; port < portCount; port++) {
+            portServer[port] = -1;
+            portNetwork[port] = random.nextInt(networks);
+        }
+    }
+
+    public static Fleet generate(long seed, int hosts, int servers, int networks, int zones) {
+        return new Fleet(seed, hosts, servers, networks, zones);
+    }
+
+    String hostName(int host) {
+        return String.format("compute-%05d", host);
+    }
+
+    String serverId(int server) {
+        return id(KIND_SERVER, server);
+    }
+
+    String portId(int port) {
+        return id(KIND_PORT, port);
+    }
+
+    String networkId(int network) {
+        return id(KIND_NETWORK, network);
+    }
+
+    String subnetId(int network) {
+        return id(KIND_SUBNET, network);
+    }
+
+    String imageId() {
+        return id(KIND_IMAGE, 0);
+    }
+
+    String projectId() {
+        return id(KIND_PROJECT, 0).replace("-", "");
+    }
+
+    int serverIndex(String id) {
+        return index(KIND_SERVER, id, serverCount);
+    }
+
+    int portIndex(String id) {
+        return index(KIND_PORT, id, portCount);
+    }
+
+    int flavorIndex(String id) {
+        for (int flavor = 0; flavor < FLAVORS.length; flavor++) {
+            if (FLAVORS[flavor][0].equals(id)) {
+                return flavor;
+            }
+        }
+        return -1;
+    }
+
+    int hostIndex(String name) {
+        if (name.startsWith("compute-")) {
+            try {
+                int host = Integer.parseInt(name.substring("compute-".length()));
+                return host < hostCount ? host : -1;
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public String toString() {
+        return "Fleet{seed=" + seed +
+                ", zones=" + availabilityZones.length +
+                ", hosts=" + hostCount +
+                ", servers=" + serverCount +
+                ", networks=" + networkCount +
+                ", ports=" + portCount +
+                '}';
+    }
+
+    private String id(long kind, int index) {
+        return new UUID(seed * 31 + kind, index).toString();
+    }
+
+    // -1 for ids of other kinds, other seeds or out of range
+    private int index(long kind, String id, int count) {
+        try {
+            UUID uuid = UUID.fromString(id);
+            long index = uuid.getLeastSignificantBits();
+            return uuid.getMostSignificantBits() == seed * 31 + kind && index >= 0 && index < count ? (int) index : -1;
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    // like the scheduler, RAM and disk are not overcommitted while some of the probed hosts has room
+    private int pickHost(SplittableRandom random, int flavor) {
+        int ramMb = Integer.parseInt(FLAVORS[flavor][3]);
+        int diskGb = Integer.parseInt(FLAVORS[flavor][4]);
+        int first = random.nextInt(hostCount);
+        for (int probe = 0; probe < Math.min(hostCount, HOST_PROBES); probe++) {
+            int host = (first + probe) % hostCount;
+            if (hostUsedRamMb[host] + ramMb <= hostRamMb[host] && hostUsedDiskGb[host] + diskGb <= hostDiskGb[host]) {
+                return host;
+            }
+        }
+        return first;
+    }
+
+    private static int pick(SplittableRandom random, int[] percents) {
+        int roll = random.nextInt(100);
+        for (int i = 0; i < percents.length; i++) {
+            roll -= percents[i];
+            if (roll < 0) {
+                return i;
+            }
+        }
+        return 0;
+    }
+
+}
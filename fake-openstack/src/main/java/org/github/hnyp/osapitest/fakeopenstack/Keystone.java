@@ -0,0 +1,122 @@
+package org.github.hnyp.osapitest.fakeopenstack;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.UUID;
+
+/**
+ * Keystone v2 {@code POST /tokens}: any credentials are accepted, the catalog points Nova and Neutron to this server.
+ */
+class Keystone {
+
+    static final String REGION = "RegionOne";
+
+    private static final JsonFactory JSON = new JsonFactory();
+
+    private final Fleet fleet;
+    private final Duration tokenTtl;
+
+    Keystone(Fleet fleet, Duration tokenTtl) {
+        this.fleet = fleet;
+        this.tokenTtl = tokenTtl;
+    }
+
+    void handle(ApiRequest request) throws IOException {
+        if (!"POST".equals(request.method()) || !request.path().equals("/tokens")) {
+            request.respondError(404, "Not found: " + request.path());
+            return;
+        }
+        String tenant = "admin";
+        String user = "admin";
+        // password and token auth look alike for what matters here
+        try (JsonParser parser = JSON.createParser(request.body())) {
+            while (parser.nextToken() != null) {
+                if (parser.getCurrentToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.getCurrentName();
+                    if (("tenantName".equals(field) || "tenantId".equals(field) || "username".equals(field))
+                            && parser.nextToken() == JsonToken.VALUE_STRING) {
+                        if ("username".equals(field)) {
+                            user = parser.getText();
+                        } else {
+                            tenant = parser.getText();
+                        }
+                    }
+                }
+            }
+        }
+        String tenantName = tenant;
+        String userName = user;
+        String baseUrl = request.baseUrl();
+        Instant issuedAt = Instant.now().truncatedTo(ChronoUnit.SECONDS);
+
+        request.respond(200, json -> {
+            json.writeObjectFieldStart("access");
+
+            json.writeObjectFieldStart("token");
+            json.writeStringField("id", UUID.randomUUID().toString().replace("-", ""));
+            json.writeStringField("issued_at", issuedAt.toString());
+            json.writeStringField("expires", issuedAt.plus(tokenTtl).toString());
+            json.writeObjectFieldStart("tenant");
+            json.writeStringField("id", fleet.projectId());
+            json.writeStringField("name", tenantName);
+            json.writeStringField("description", "fake tenant");
+            json.writeBooleanField("enabled", true);
+            json.writeEndObject();
+            json.writeEndObject();
+
+            json.writeArrayFieldStart("serviceCatalog");
+            // Neutron URL carries the version: woorea uses it as is, openstack4j and jclouds normalize it
+            service(json, "compute", "nova", baseUrl + "/compute/v2/" + fleet.projectId());
+            service(json, "network", "neutron", baseUrl + "/network/v2.0");
+            service(json, "identity", "keystone", baseUrl + "/identity/v2.0");
+            json.writeEndArray();
+
+            json.writeObjectFieldStart("user");
+            json.writeStringField("id", UUID.nameUUIDFromBytes(userName.getBytes()).toString().replace("-", ""));
+            json.writeStringField("name", userName);
+            json.writeStringField("username", userName);
+            json.writeArrayFieldStart("roles");
+            json.writeStartObject();
+            json.writeStringField("name", "admin");
+            json.writeEndObject();
+            json.writeEndArray();
+            json.writeArrayFieldStart("roles_links");
+            json.writeEndArray();
+            json.writeEndObject();
+
+            json.writeObjectFieldStart("metadata");
+            json.writeNumberField("is_admin", 0);
+            json.writeArrayFieldStart("roles");
+            json.writeEndArray();
+            json.writeEndObject();
+
+            json.writeEndObject();
+        });
+    }
+
+    private static void service(JsonGenerator json, String type, String name, String url) throws IOException {
+        json.writeStartObject();
+        json.writeStringField("type", type);
+        json.writeStringField("name", name);
+        json.writeArrayFieldStart("endpoints");
+        json.writeStartObject();
+        json.writeStringField("id", UUID.nameUUIDFromBytes(name.getBytes()).toString().replace("-", ""));
+        json.writeStringField("region", REGION);
+        json.writeStringField("publicURL", url);
+        json.writeStringField("internalURL", url);
+        json.writeStringField("adminURL", url);
+        json.writeEndObject();
+        json.writeEndArray();
+        json.writeArrayFieldStart("endpoints_links");
+        json.writeEndArray();
+        json.writeEndObject();
+    }
+
+}
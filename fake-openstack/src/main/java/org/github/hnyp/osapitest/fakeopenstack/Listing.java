@@ -0,0 +1,63 @@
+package org.github.hnyp.osapitest.fakeopenstack;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.util.function.IntFunction;
+import java.util.function.IntPredicate;
+
+/**
+ * Paginated collection over fleet rows, in the shape Nova and Neutron use:
+ * {@code "servers": [...], "servers_links": [{"rel": "next", "href": "...&marker=<last id>"}]}.
+ */
+class Listing {
+
+    private final String collection;
+    private final int rowCount;
+    private final IntFunction<String> idOf;
+
+    Listing(String collection, int rowCount, IntFunction<String> idOf) {
+        this.collection = collection;
+        this.rowCount = rowCount;
+        this.idOf = idOf;
+    }
+
+    /**
+     * @param firstRow row to start from, the one after the marker
+     * @param limit    max rows of the page, the link to the next page is added only if more rows match
+     */
+    void write(ApiRequest request, JsonGenerator json, int firstRow, int limit, IntPredicate filter, RowWriter writer)
+            throws IOException {
+        json.writeArrayFieldStart(collection);
+        int written = 0;
+        int row = firstRow;
+        for (; row < rowCount && written < limit; row++) {
+            if (filter.test(row)) {
+                writer.write(json, row);
+                written++;
+            }
+        }
+        json.writeEndArray();
+
+        boolean more = false;
+        for (int next = row; next < rowCount && !more; next++) {
+            more = filter.test(next);
+        }
+        json.writeArrayFieldStart(collection + "_links");
+        if (more) {
+            json.writeStartObject();
+            json.writeStringField("rel", "next");
+            json.writeStringField("href", request.nextPageUrl(idOf.apply(row - 1)));
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+    }
+
+    @FunctionalInterface
+    interface RowWriter {
+
+        void write(JsonGenerator json, int row) throws IOException;
+
+    }
+
+}
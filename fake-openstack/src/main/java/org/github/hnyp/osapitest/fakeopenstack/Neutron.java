@@ -0,0 +1,223 @@
+package org.github.hnyp.osapitest.fakeopenstack;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+/**
+ * Neutron v2.0 ports and networks. Like Neutron, listings are not paginated unless the client asks for a limit,
+ * and {@code fields} narrows the attributes of each row.
+ */
+class Neutron {
+
+    private final Fleet fleet;
+    private final Listing ports;
+    private final Listing networks;
+
+    Neutron(Fleet fleet) {
+        this.fleet = fleet;
+        this.ports = new Listing("ports", fleet.portCount, fleet::portId);
+        this.networks = new Listing("networks", fleet.networkCount, fleet::networkId);
+    }
+
+    void handle(ApiRequest request) throws IOException {
+        switch (request.path()) {
+            case "/extensions":
+                request.respond(200, json -> {
+                    json.writeArrayFieldStart("extensions");
+                    json.writeEndArray();
+                });
+                break;
+            case "/ports":
+                listPorts(request);
+                break;
+            case "/networks":
+                listNetworks(request);
+                break;
+            default:
+                request.respondError(404, "Not found: " + request.path());
+        }
+    }
+
+    private void listPorts(ApiRequest request) throws IOException {
+        Set<Integer> devices = new HashSet<>();
+        for (String deviceId : request.params("device_id")) {
+            int server = fleet.serverIndex(deviceId);
+            // unknown devices must not match the unbound ports
+            devices.add(server < 0 ? Integer.MIN_VALUE : server);
+        }
+        Set<Integer> networkFilter = networkIndexes(request.params("network_id"));
+        Instant changedSince = request.instantParam("changed_since");
+        boolean unchanged = changedSince != null && changedSince.isAfter(fleet.updatedAt);
+        IntPredicate filter = port -> !unchanged
+                && (devices.isEmpty() || devices.contains(fleet.portServer[port]))
+                && (networkFilter == null || networkFilter.contains(fleet.portNetwork[port]));
+
+        String marker = request.param("marker");
+        int firstRow = marker == null ? 0 : fleet.portIndex(marker) + 1;
+        if (marker != null && firstRow == 0) {
+            request.respondError(400, "marker [" + marker + "] not found");
+            return;
+        }
+        Fields fields = new Fields(request.params("fields"));
+        int limit = request.intParam("limit", Integer.MAX_VALUE);
+        request.respond(200, json -> ports.write(request, json, firstRow, limit, filter,
+                (out, port) -> writePort(out, port, fields)));
+    }
+
+    private void writePort(JsonGenerator json, int port, Fields fields) throws IOException {
+        int server = fleet.portServer[port];
+        int network = fleet.portNetwork[port];
+        json.writeStartObject();
+        if (fields.has("id")) {
+            json.writeStringField("id", fleet.portId(port));
+        }
+        if (fields.has("name")) {
+            json.writeStringField("name", "");
+        }
+        if (fields.has("network_id")) {
+            json.writeStringField("network_id", fleet.networkId(network));
+        }
+        if (fields.has("tenant_id")) {
+            json.writeStringField("tenant_id", fleet.projectId());
+        }
+        if (fields.has("device_id")) {
+            json.writeStringField("device_id", server < 0 ? "" : fleet.serverId(server));
+        }
+        if (fields.has("device_owner")) {
+            json.writeStringField("device_owner", server < 0 ? "network:dhcp" : "compute:nova");
+        }
+        if (fields.has("mac_address")) {
+            json.writeStringField("mac_address", String.format("fa:16:3e:%02x:%02x:%02x",
+                    (port >> 16) & 0xff, (port >> 8) & 0xff, port & 0xff));
+        }
+        if (fields.has("status")) {
+            json.writeStringField("status", server < 0 ? "DOWN" : "ACTIVE");
+        }
+        if (fields.has("admin_state_up")) {
+            json.writeBooleanField("admin_state_up", true);
+        }
+        if (fields.has("fixed_ips")) {
+            json.writeArrayFieldStart("fixed_ips");
+            json.writeStartObject();
+            json.writeStringField("subnet_id", fleet.subnetId(network));
+            json.writeStringField("ip_address", "10." + (network & 0xff) + "." + ((port >> 8) & 0xff) + "." +
+                    (port & 0xff));
+            json.writeEndObject();
+            json.writeEndArray();
+        }
+        if (fields.has("binding:host_id")) {
+            json.writeStringField("binding:host_id", server < 0 ? "" : fleet.hostName(fleet.serverHost[server]));
+        }
+        if (fields.has("binding:vnic_type")) {
+            int physical = fleet.networkPhysical[network];
+            boolean direct = physical >= 0 && Fleet.PHYSICAL_NETWORKS[physical].startsWith("sriov");
+            json.writeStringField("binding:vnic_type", direct ? "direct" : "normal");
+        }
+        json.writeEndObject();
+    }
+
+    private void listNetworks(ApiRequest request) throws IOException {
+        Set<Integer> ids = networkIndexes(request.params("id"));
+        IntPredicate filter = network -> ids == null || ids.contains(network);
+        String marker = request.param("marker");
+        int firstRow = marker == null ? 0 : networkIndex(marker) + 1;
+        if (marker != null && firstRow == 0) {
+            request.respondError(400, "marker [" + marker + "] not found");
+            return;
+        }
+        Fields fields = new Fields(request.params("fields"));
+        int limit = request.intParam("limit", Integer.MAX_VALUE);
+        request.respond(200, json -> networks.write(request, json, firstRow, limit, filter,
+                (out, network) -> writeNetwork(out, network, fields)));
+    }
+
+    private void writeNetwork(JsonGenerator json, int network, Fields fields) throws IOException {
+        int physical = fleet.networkPhysical[network];
+        json.writeStartObject();
+        if (fields.has("id")) {
+            json.writeStringField("id", fleet.networkId(network));
+        }
+        if (fields.has("name")) {
+            json.writeStringField("name", String.format("net-%04d", network));
+        }
+        if (fields.has("status")) {
+            json.writeStringField("status", "ACTIVE");
+        }
+        if (fields.has("admin_state_up")) {
+            json.writeBooleanField("admin_state_up", true);
+        }
+        if (fields.has("tenant_id")) {
+            json.writeStringField("tenant_id", fleet.projectId());
+        }
+        if (fields.has("shared")) {
+            json.writeBooleanField("shared", physical >= 0);
+        }
+        if (fields.has("subnets")) {
+            json.writeArrayFieldStart("subnets");
+            json.writeString(fleet.subnetId(network));
+            json.writeEndArray();
+        }
+        if (fields.has("provider:network_type")) {
+            json.writeStringField("provider:network_type", physical < 0 ? "vxlan" : "vlan");
+        }
+        if (fields.has("provider:physical_network")) {
+            if (physical < 0) {
+                json.writeNullField("provider:physical_network");
+            } else {
+                json.writeStringField("provider:physical_network", Fleet.PHYSICAL_NETWORKS[physical]);
+            }
+        }
+        if (fields.has("provider:segmentation_id")) {
+            json.writeNumberField("provider:segmentation_id", 100 + network);
+        }
+        if (fields.has("router:external")) {
+            json.writeBooleanField("router:external", false);
+        }
+        if (fields.has("mtu")) {
+            json.writeNumberField("mtu", physical < 0 ? 1450 : 1500);
+        }
+        json.writeEndObject();
+    }
+
+    // null means no filter
+    private Set<Integer> networkIndexes(List<String> ids) {
+        if (ids.isEmpty()) {
+            return null;
+        }
+        Set<Integer> indexes = new HashSet<>();
+        for (String id : ids) {
+            indexes.add(networkIndex(id));
+        }
+        return indexes;
+    }
+
+    private int networkIndex(String id) {
+        for (int network = 0; network < fleet.networkCount; network++) {
+            if (fleet.networkId(network).equals(id)) {
+                return network;
+            }
+        }
+        return -1;
+    }
+
+    private static class Fields {
+
+        private final Set<String> names;
+
+        Fields(List<String> names) {
+            this.names = names.isEmpty() ? null : new HashSet<>(names);
+        }
+
+        boolean has(String name) {
+            return names == null || names.contains(name);
+        }
+
+    }
+
+}
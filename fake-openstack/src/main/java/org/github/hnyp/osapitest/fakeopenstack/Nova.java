@@ -0,0 +1,283 @@
+package org.github.hnyp.osapitest.fakeopenstack;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Nova v2 listings used by the pipelines: extensions, availability zones, hosts, hypervisors, servers and flavors.
+ * Servers and flavors are paginated like Nova does, pages are capped by {@code maxLimit} (osapi_max_limit).
+ */
+class Nova {
+
+    private static final String UPDATED_AT = "2019-01-01T00:00:00.000000";
+
+    // jclouds enables extension APIs only when Nova lists them
+    private static final String[][] EXTENSIONS = {
+            {"AvailabilityZone", "os-availability-zone", "http://docs.openstack.org/compute/ext/availabilityzone/api/v1.1"},
+            {"Hypervisors", "os-hypervisors", "http://docs.openstack.org/compute/ext/hypervisors/api/v1.1"},
+            {"Hosts", "os-hosts", "http://docs.openstack.org/compute/ext/hosts/api/v1.1"},
+            {"ExtendedServerAttributes", "OS-EXT-SRV-ATTR",
+                    "http://docs.openstack.org/compute/ext/extended_status/api/v1.1"},
+            {"ExtendedAvailabilityZone", "OS-EXT-AZ",
+                    "http://docs.openstack.org/compute/ext/extended_availability_zone/api/v2"},
+    };
+
+    private final Fleet fleet;
+    private final int maxLimit;
+    private final Listing servers;
+    private final Listing flavors;
+
+    Nova(Fleet fleet, int maxLimit) {
+        this.fleet = fleet;
+        this.maxLimit = maxLimit;
+        this.servers = new Listing("servers", fleet.serverCount, fleet::serverId);
+        this.flavors = new Listing("flavors", Fleet.FLAVORS.length, flavor -> Fleet.FLAVORS[flavor][0]);
+    }
+
+    void handle(ApiRequest request) throws IOException {
+        switch (request.path()) {
+            case "/extensions":
+                request.respond(200, this::writeExtensions);
+                break;
+            case "/os-availability-zone/detail":
+                request.respond(200, this::writeAvailabilityZones);
+                break;
+            case "/os-hosts":
+                request.respond(200, this::writeHosts);
+                break;
+            case "/os-hypervisors/detail":
+                request.respond(200, this::writeHypervisors);
+                break;
+            case "/servers/detail":
+                listServers(request);
+                break;
+            case "/flavors/detail":
+                listFlavors(request);
+                break;
+            default:
+                request.respondError(404, "Not found: " + request.path());
+        }
+    }
+
+    private void writeExtensions(JsonGenerator json) throws IOException {
+        json.writeArrayFieldStart("extensions");
+        for (String[] extension : EXTENSIONS) {
+            json.writeStartObject();
+            json.writeStringField("name", extension[0]);
+            json.writeStringField("alias", extension[1]);
+            json.writeStringField("namespace", extension[2]);
+            json.writeStringField("updated", "2013-01-30T00:00:00Z");
+            json.writeStringField("description", extension[0] + " support.");
+            json.writeArrayFieldStart("links");
+            json.writeEndArray();
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+    }
+
+    private void writeAvailabilityZones(JsonGenerator json) throws IOException {
+        json.writeArrayFieldStart("availabilityZoneInfo");
+        for (int zone = 0; zone < fleet.availabilityZones.length; zone++) {
+            json.writeStartObject();
+            json.writeStringField("zoneName", fleet.availabilityZones[zone]);
+            json.writeObjectFieldStart("zoneState");
+            json.writeBooleanField("available", true);
+            json.writeEndObject();
+            json.writeObjectFieldStart("hosts");
+            for (int host = zone; host < fleet.hostCount; host += fleet.availabilityZones.length) {
+                json.writeObjectFieldStart(fleet.hostName(host));
+                json.writeObjectFieldStart("nova-compute");
+                json.writeBooleanField("available", fleet.hostUp[host]);
+                json.writeBooleanField("active", fleet.hostUp[host]);
+                json.writeStringField("updated_at", UPDATED_AT);
+                json.writeEndObject();
+                json.writeEndObject();
+            }
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        json.writeStartObject();
+        json.writeStringField("zoneName", "internal");
+        json.writeObjectFieldStart("zoneState");
+        json.writeBooleanField("available", true);
+        json.writeEndObject();
+        json.writeObjectFieldStart("hosts");
+        json.writeObjectFieldStart("controller-1");
+        for (String service : new String[]{"nova-conductor", "nova-scheduler", "nova-consoleauth"}) {
+            json.writeObjectFieldStart(service);
+            json.writeBooleanField("available", true);
+            json.writeBooleanField("active", true);
+            json.writeStringField("updated_at", UPDATED_AT);
+            json.writeEndObject();
+        }
+        json.writeEndObject();
+        json.writeEndObject();
+        json.writeEndObject();
+        json.writeEndArray();
+    }
+
+    private void writeHosts(JsonGenerator json) throws IOException {
+        json.writeArrayFieldStart("hosts");
+        for (int host = 0; host < fleet.hostCount; host++) {
+            json.writeStartObject();
+            json.writeStringField("host_name", fleet.hostName(host));
+            json.writeStringField("service", "compute");
+            json.writeStringField("zone", fleet.availabilityZones[fleet.hostZone[host]]);
+            json.writeEndObject();
+        }
+        for (String service : new String[]{"conductor", "scheduler", "consoleauth"}) {
+            json.writeStartObject();
+            json.writeStringField("host_name", "controller-1");
+            json.writeStringField("service", service);
+            json.writeStringField("zone", "internal");
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+    }
+
+    private void writeHypervisors(JsonGenerator json) throws IOException {
+        json.writeArrayFieldStart("hypervisors");
+        for (int host = 0; host < fleet.hostCount; host++) {
+            int freeRam = fleet.hostRamMb[host] - fleet.hostUsedRamMb[host];
+            int freeDisk = fleet.hostDiskGb[host] - fleet.hostUsedDiskGb[host];
+            json.writeStartObject();
+            json.writeNumberField("id", host + 1);
+            json.writeStringField("hypervisor_hostname", fleet.hostName(host));
+            json.writeStringField("state", fleet.hostUp[host] ? "up" : "down");
+            json.writeStringField("status", "enabled");
+            json.writeStringField("hypervisor_type", "QEMU");
+            json.writeNumberField("hypervisor_version", 2012000);
+            json.writeStringField("host_ip", "10.0." + (host / 250) + "." + (host % 250 + 1));
+            json.writeNumberField("vcpus", fleet.hostVcpus[host]);
+            json.writeNumberField("vcpus_used", fleet.hostUsedVcpus[host]);
+            json.writeNumberField("memory_mb", fleet.hostRamMb[host]);
+            json.writeNumberField("memory_mb_used", fleet.hostUsedRamMb[host]);
+            json.writeNumberField("free_ram_mb", freeRam);
+            json.writeNumberField("local_gb", fleet.hostDiskGb[host]);
+            json.writeNumberField("local_gb_used", fleet.hostUsedDiskGb[host]);
+            json.writeNumberField("free_disk_gb", freeDisk);
+            json.writeNumberField("disk_available_least", freeDisk);
+            json.writeNumberField("current_workload", 0);
+            json.writeNumberField("running_vms", fleet.hostRunningVms[host]);
+            json.writeObjectFieldStart("service");
+            json.writeNumberField("id", host + 100);
+            json.writeStringField("host", fleet.hostName(host));
+            json.writeNullField("disabled_reason");
+            json.writeEndObject();
+            json.writeEndObject();
+        }
+        json.writeEndArray();
+    }
+
+    private void listServers(ApiRequest request) throws IOException {
+        List<String> statuses = request.params("status");
+        String host = request.param("host");
+        int hostFilter = host == null ? -1 : fleet.hostIndex(host);
+        Instant changesSince = request.instantParam("changes-since");
+        // the fleet does not change, everything was updated at startup
+        boolean unchanged = changesSince != null && changesSince.isAfter(fleet.updatedAt);
+
+        IntPredicate filter = server -> !unchanged
+                && (statuses.isEmpty() || statuses.contains(Fleet.STATUSES[fleet.serverStatus[server]]))
+                && (host == null || fleet.serverHost[server] == hostFilter);
+        String marker = request.param("marker");
+        int firstRow = marker == null ? 0 : fleet.serverIndex(marker) + 1;
+        if (marker != null && firstRow == 0) {
+            request.respondError(400, "marker [" + marker + "] not found");
+            return;
+        }
+        int limit = Math.min(request.intParam("limit", maxLimit), maxLimit);
+        String baseUrl = request.baseUrl() + "/compute/v2/" + fleet.projectId();
+        request.respond(200, json -> servers.write(request, json, firstRow, limit, filter,
+                (out, server) -> writeServer(out, server, baseUrl)));
+    }
+
+    private void writeServer(JsonGenerator json, int server, String baseUrl) throws IOException {
+        String id = fleet.serverId(server);
+        String host = fleet.hostName(fleet.serverHost[server]);
+        String status = Fleet.STATUSES[fleet.serverStatus[server]];
+        String flavorId = Fleet.FLAVORS[fleet.serverFlavor[server]][0];
+        json.writeStartObject();
+        json.writeStringField("id", id);
+        json.writeStringField("name", String.format("vm-%06d", server));
+        json.writeStringField("status", status);
+        json.writeStringField("tenant_id", fleet.projectId());
+        json.writeStringField("user_id", fleet.projectId());
+        json.writeStringField("hostId", Integer.toHexString(host.hashCode()));
+        json.writeStringField("created", fleet.createdAt.toString());
+        json.writeStringField("updated", fleet.updatedAt.toString());
+        json.writeStringField("accessIPv4", "");
+        json.writeStringField("accessIPv6", "");
+        json.writeNumberField("progress", status.equals("BUILD") ? 50 : 0);
+        json.writeNullField("key_name");
+        json.writeStringField("config_drive", "");
+        json.writeObjectFieldStart("metadata");
+        json.writeEndObject();
+        json.writeObjectFieldStart("addresses");
+        json.writeEndObject();
+        json.writeObjectFieldStart("image");
+        json.writeStringField("id", fleet.imageId());
+        writeLinks(json, baseUrl + "/images/" + fleet.imageId());
+        json.writeEndObject();
+        json.writeObjectFieldStart("flavor");
+        json.writeStringField("id", flavorId);
+        writeLinks(json, baseUrl + "/flavors/" + flavorId);
+        json.writeEndObject();
+        writeLinks(json, baseUrl + "/servers/" + id);
+        json.writeStringField("OS-DCF:diskConfig", "MANUAL");
+        json.writeStringField("OS-EXT-AZ:availability_zone",
+                fleet.availabilityZones[fleet.hostZone[fleet.serverHost[server]]]);
+        json.writeStringField("OS-EXT-SRV-ATTR:host", host);
+        json.writeStringField("OS-EXT-SRV-ATTR:hypervisor_hostname", host);
+        json.writeStringField("OS-EXT-SRV-ATTR:instance_name", String.format("instance-%08x", server));
+        json.writeNumberField("OS-EXT-STS:power_state", status.equals("ACTIVE") ? 1 : 4);
+        json.writeNullField("OS-EXT-STS:task_state");
+        json.writeStringField("OS-EXT-STS:vm_state", status.toLowerCase());
+        json.writeEndObject();
+    }
+
+    private void listFlavors(ApiRequest request) throws IOException {
+        String marker = request.param("marker");
+        int firstRow = marker == null ? 0 : fleet.flavorIndex(marker) + 1;
+        if (marker != null && firstRow == 0) {
+            request.respondError(400, "marker [" + marker + "] not found");
+            return;
+        }
+        int limit = Math.min(request.intParam("limit", maxLimit), maxLimit);
+        String baseUrl = request.baseUrl() + "/compute/v2/" + fleet.projectId();
+        request.respond(200, json -> flavors.write(request, json, firstRow, limit, flavor -> true, (out, flavor) -> {
+            String[] row = Fleet.FLAVORS[flavor];
+            out.writeStartObject();
+            out.writeStringField("id", row[0]);
+            out.writeStringField("name", row[1]);
+            out.writeNumberField("vcpus", Integer.parseInt(row[2]));
+            out.writeNumberField("ram", Integer.parseInt(row[3]));
+            out.writeNumberField("disk", Integer.parseInt(row[4]));
+            out.writeStringField("swap", "");
+            out.writeNumberField("rxtx_factor", 1.0);
+            out.writeNumberField("OS-FLV-EXT-DATA:ephemeral", 0);
+            out.writeBooleanField("OS-FLV-DISABLED:disabled", false);
+            out.writeBooleanField("os-flavor-access:is_public", true);
+            writeLinks(out, baseUrl + "/flavors/" + row[0]);
+            out.writeEndObject();
+        }));
+    }
+
+    private static void writeLinks(JsonGenerator json, String href) throws IOException {
+        json.writeArrayFieldStart("links");
+        json.writeStartObject();
+        json.writeStringField("rel", "self");
+        json.writeStringField("href", href);
+        json.writeEndObject();
+        json.writeStartObject();
+        json.writeStringField("rel", "bookmark");
+        json.writeStringField("href", href);
+        json.writeEndObject();
+        json.writeEndArray();
+    }
+
+}
@@ -0,0 +1,82 @@
+package org.github.hnyp.osapitest.jclouds;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableSet;
+import com.google.inject.Injector;
+import com.google.inject.Key;
+import com.google.inject.Module;
+import com.google.inject.TypeLiteral;
+import org.github.hnyp.osapitest.common.Credentials;
+import org.github.hnyp.osapitest.common.TokenManager;
+import org.github.hnyp.osapitest.common.concurrent.Backpressure;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+import org.jclouds.ContextBuilder;
+import org.jclouds.lifecycle.Closer;
+import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.jclouds.openstack.keystone.auth.domain.AuthInfo;
+import org.jclouds.openstack.keystone.config.KeystoneProperties;
+import org.jclouds.openstack.keystone.v2_0.domain.Access;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Password authentication of {@link TokenManager}, done with jclouds' own Keystone v2 authenticator.
+ * <p>
+ * The Keystone context of a tenant is built on its first authentication and reused by the refreshes, it holds
+ * an HTTP client and executor threads; the contexts are closed together with the token manager.
+ */
+class KeystoneAuthenticator implements TokenManager.Authenticator<Access> {
+
+    private static final Key<Function<org.jclouds.domain.Credentials, AuthInfo>> PASSWORD_AUTHENTICATION =
+            Key.get(new TypeLiteral<Function<org.jclouds.domain.Credentials, AuthInfo>>() {
+            });
+
+    private final PipelineMetrics metrics;
+    private final Backpressure backpressure;
+    private final ConcurrentMap<String, Injector> keystonePerTenant = new ConcurrentHashMap<>();
+
+    KeystoneAuthenticator(PipelineMetrics metrics, Backpressure backpressure) {
+        this.metrics = metrics;
+        this.backpressure = backpressure;
+    }
+
+    @Override
+    public TokenManager.Token<Access> authenticate(String tenant) {
+        Function<org.jclouds.domain.Credentials, AuthInfo> passwordAuthentication = keystonePerTenant
+                .computeIfAbsent(tenant, this::keystone)
+                .getInstance(PASSWORD_AUTHENTICATION);
+
+        Access access = (Access) passwordAuthentication.apply(
+                new org.jclouds.domain.Credentials(Credentials.USERNAME, Credentials.PASS));
+        return new TokenManager.Token<>(access.getToken().getId(), access.getToken().getExpires().toInstant(), access);
+    }
+
+    @Override
+    public void close() {
+        for (Injector keystone : keystonePerTenant.values()) {
+            try {
+                keystone.getInstance(Closer.class).close();
+            } catch (IOException e) {
+                throw new UncheckedIOException("Keystone context not closed", e);
+            }
+        }
+        keystonePerTenant.clear();
+    }
+
+    private Injector keystone(String tenant) {
+        Properties overrides = new Properties();
+        overrides.put(KeystoneProperties.TENANT_NAME, tenant);
+
+        return ContextBuilder.newBuilder("openstack-keystone")
+                .endpoint(Credentials.KEYSTONE_AUTH_URL)
+                .credentials(Credentials.USERNAME, Credentials.PASS)
+                .overrides(overrides)
+                .modules(ImmutableSet.<Module>of(new SLF4JLoggingModule(), new MeteredHttpModule(metrics, backpressure)))
+                .buildInjector();
+    }
+
+}
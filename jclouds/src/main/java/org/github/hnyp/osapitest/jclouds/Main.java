@@ -3,13 +3,46 @@ package org.github.hnyp.osapitest.jclouds;
 import static com.google.common.collect.Sets.newHashSet;
 import static java.util.Optional.ofNullable;
 import static java.util.stream.Collectors.toMap;
+import static org.github.hnyp.osapitest.common.concurrent.ConcurrentCalls.await;
 
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ImmutableMultimap;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Multimap;
 import com.google.common.collect.Sets;
+import com.google.inject.Injector;
+import com.google.inject.Key;
 import com.google.inject.Module;
+import com.google.inject.TypeLiteral;
 import org.github.hnyp.osapitest.common.Credentials;
+import org.github.hnyp.osapitest.common.Settings;
+import org.github.hnyp.osapitest.common.TokenManager;
+import org.github.hnyp.osapitest.common.capacity.CapacityService;
+import org.github.hnyp.osapitest.common.capacity.CapacityView;
+import org.github.hnyp.osapitest.common.concurrent.Backpressure;
+import org.github.hnyp.osapitest.common.concurrent.ConcurrentCalls;
+import org.github.hnyp.osapitest.common.concurrent.SingleFlight;
+import org.github.hnyp.osapitest.common.disk.DiskCapacityProvider;
+import org.github.hnyp.osapitest.common.inventory.CompactInventory;
+import org.github.hnyp.osapitest.common.inventory.FlavorSummary;
+import org.github.hnyp.osapitest.common.inventory.InventoryFile;
+import org.github.hnyp.osapitest.common.inventory.InventoryJoin;
+import org.github.hnyp.osapitest.common.inventory.InventorySnapshot;
+import org.github.hnyp.osapitest.common.inventory.ListingQuery;
+import org.github.hnyp.osapitest.common.inventory.PagedListing;
+import org.github.hnyp.osapitest.common.inventory.PhysnetAggregates;
+import org.github.hnyp.osapitest.common.inventory.PortSummary;
+import org.github.hnyp.osapitest.common.inventory.QuerySupport;
+import org.github.hnyp.osapitest.common.inventory.RegionalInventory;
+import org.github.hnyp.osapitest.common.inventory.ServerSummary;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+import org.github.hnyp.osapitest.common.placement.PlacementEngine;
 import org.jclouds.ContextBuilder;
 import org.jclouds.logging.slf4j.config.SLF4JLoggingModule;
+import org.jclouds.openstack.keystone.auth.domain.AuthInfo;
 import org.jclouds.openstack.keystone.config.KeystoneProperties;
+import org.jclouds.openstack.keystone.v2_0.domain.Access;
 import org.jclouds.openstack.neutron.v2.NeutronApi;
 import org.jclouds.openstack.neutron.v2.domain.Network;
 import org.jclouds.openstack.neutron.v2.domain.Port;
@@ -17,21 +50,39 @@ import org.jclouds.openstack.nova.v2_0.NovaApi;
 import org.jclouds.openstack.nova.v2_0.domain.Flavor;
 import org.jclouds.openstack.nova.v2_0.domain.Server;
 import org.jclouds.openstack.nova.v2_0.domain.Server.Status;
+import org.jclouds.openstack.nova.v2_0.domain.ServerExtendedAttributes;
 import org.jclouds.openstack.nova.v2_0.domain.regionscoped.AvailabilityZoneDetails;
 import org.jclouds.openstack.nova.v2_0.domain.regionscoped.AvailabilityZoneDetails.HostService;
 import org.jclouds.openstack.nova.v2_0.domain.regionscoped.HypervisorDetails;
-import org.jclouds.openstack.v2_0.domain.Resource;
+import org.jclouds.openstack.v2_0.domain.PaginatedCollection;
+import org.jclouds.openstack.v2_0.options.PaginationOptions;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Objects;
+import java.util.Optional;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.Function;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 public class Main {
 
@@ -43,21 +94,254 @@ public class Main {
     public static final int INPUT_CPUS = 2;
     public static final int INPUT_VPORTS_COUNT = 5;
 
-    public static void main(String[] args) throws IOException {
+    static final int DEFAULT_SERVICE_REFRESH_INTERVAL_SECONDS = 60;
+
+    static final Key<LoadingCache<org.jclouds.domain.Credentials, AuthInfo>> AUTH_CACHE =
+            Key.get(new TypeLiteral<LoadingCache<org.jclouds.domain.Credentials, AuthInfo>>() {
+            });
+
+    // Nova accepts repeated "status"; servers of all computes and ports of all devices are listed at once,
+    // so only the filters the listings use are declared
+    static final QuerySupport NOVA_SERVERS_QUERY_SUPPORT = new QuerySupport()
+            .param("status", Integer.MAX_VALUE);
+    // Neutron accepts "fields"
+    static final QuerySupport NEUTRON_PORTS_QUERY_SUPPORT = new QuerySupport()
+            .fields();
+
+    // full listing pushes status filter down, deltas must not: servers which left active statuses are needed
+    // to drop them from the snapshot
+    static final ListingQuery.Plan<Server> ACTIVE_SERVERS_QUERY = new ListingQuery<Server>()
+            .filter("status", ACTIVE_VM_STATUSES.stream().map(Status::name).collect(Collectors.toSet()),
+                    vm -> vm.getStatus().name())
+            .plan(NOVA_SERVERS_QUERY_SUPPORT);
+    static final ListingQuery.Plan<Server> CHANGED_SERVERS_QUERY = new ListingQuery<Server>()
+            .plan(NOVA_SERVERS_QUERY_SUPPORT);
+    static final ListingQuery.Plan<Flavor> FLAVORS_QUERY = new ListingQuery<Flavor>()
+            .plan(new QuerySupport());
+    // ports without device are dropped by the snapshot, so that unbound ports in deltas are removed as well
+    static final ListingQuery.Plan<Port> PORTS_QUERY = new ListingQuery<Port>()
+            .fields("id", "device_id", "network_id")
+            .plan(NEUTRON_PORTS_QUERY_SUPPORT);
+    static final ListingQuery.Plan<Port> PORT_IDS_QUERY = new ListingQuery<Port>()
+            .fields("id")
+            .plan(NEUTRON_PORTS_QUERY_SUPPORT);
+
+    static final InventoryJoin<ServerSummary, PortSummary, Network> SERVER_PORT_NETWORK_JOIN = new InventoryJoin<>(
+            ServerSummary::getId, ServerSummary::getHost,
+            PortSummary::getDeviceId, PortSummary::getNetworkId,
+            Network::getId);
+
+    public static void main(String[] args) throws IOException, InterruptedException {
         System.out.println("Nova API");
 
-        NovaApi novaApi = initApi("openstack-nova", NovaApi.class);
+        // requests of all jclouds contexts are measured, per step of the pipeline and per endpoint
+        PipelineMetrics metrics = PipelineMetrics.fromSettings();
+        // all regions and listings share a concurrency limit per service, adapted to its throttling and latency
+        Backpressure backpressure = Backpressure.fromSettings(metrics);
+
+        // password is sent to Keystone once, both APIs authenticate with the shared token
+        TokenManager<Access> tokens = new TokenManager<>(new KeystoneAuthenticator(metrics, backpressure),
+                Duration.ofSeconds(Settings.TOKEN_REFRESH_AHEAD_SECONDS));
+        NovaApi novaApi = initApi("openstack-nova", NovaApi.class, tokens, metrics, backpressure);
+        NeutronApi neutronApi = initApi("openstack-neutron", NeutronApi.class, tokens, metrics, backpressure);
+        // servers and ports bypass jclouds DTOs, only the fields the pipeline reads are decoded
+        ProjectedListings projectedListings = new ProjectedListings(tokens, metrics, backpressure);
+        SingleFlight listings = SingleFlight.fromSettings(metrics);
+        DiskCapacityProvider diskCapacity = DiskCapacityProvider.fromSettings();
 
         Set<String> configuredRegions = novaApi.getConfiguredRegions();
-        String region = configuredRegions.iterator().next();
-        System.out.println("Configured regions " + configuredRegions);
+        List<String> regions = Settings.REGIONS.isEmpty() ? new ArrayList<>(configuredRegions) : Settings.REGIONS;
+        System.out.println("Configured regions " + configuredRegions + ", collected " + regions);
+
+        // regions are collected at once, each one with its own pool of calls and snapshot,
+        // so that a slow or failing region neither queues calls of the others nor stops their passes
+        Map<String, ConcurrentCalls> callsPerRegion = new LinkedHashMap<>();
+        Map<String, InventorySnapshot> snapshotPerRegion = new LinkedHashMap<>();
+        for (String region : regions) {
+            callsPerRegion.put(region, new ConcurrentCalls(Settings.CALLS_CONCURRENCY,
+                    Duration.ofSeconds(Settings.CALLS_TIMEOUT_SECONDS), metrics));
+            snapshotPerRegion.put(region, new InventorySnapshot(
+                    ACTIVE_VM_STATUSES.stream().map(Status::name).collect(Collectors.toSet()),
+                    Duration.ofSeconds(Settings.REFRESH_OVERLAP_SECONDS)));
+        }
+        ConcurrentCalls regionPasses = new ConcurrentCalls(regions.size(),
+                Duration.ofSeconds(Settings.REGION_TIMEOUT_SECONDS));
+        // warm restart: inventories of the last passes are served until the regions are collected again,
+        // snapshots restored from the files make the first passes incremental
+        Map<String, CompactInventory> restored = new LinkedHashMap<>();
+        if (!Settings.SNAPSHOT_DIR.isEmpty()) {
+            for (String region : regions) {
+                restoreSnapshot(region, snapshotPerRegion.get(region))
+                        .ifPresent(inventory -> restored.put(region, inventory));
+            }
+        }
+        AtomicReference<RegionalInventory> capacity = new AtomicReference<>(
+                RegionalInventory.empty().update(restored, Collections.emptyMap()));
+        if (!restored.isEmpty()) {
+            System.out.println("Capacity " + capacity.get());
+        }
+
+        // capacity questions are answered from the last collected inventory while the next one is collected
+        CapacityService capacityService = null;
+        if (Settings.CAPACITY_SERVICE_PORT > 0) {
+            capacityService = new CapacityService(Settings.CAPACITY_SERVICE_PORT, Settings.CAPACITY_SERVICE_THREADS,
+                    metrics);
+            if (!restored.isEmpty()) {
+                capacityService.publish(CapacityView.of(capacity.get(), Settings.PLACEMENT_HOST_VPORTS,
+                        restoredAt(restored.keySet())));
+            }
+            System.out.println("Capacity service listening on port " + capacityService.getPort());
+        }
+        CapacityService publishTo = capacityService;
+
+        Runnable refresh = () -> {
+            Instant startedAt = Instant.now();
+            Map<String, CompletableFuture<CompactInventory>> passes = new LinkedHashMap<>();
+            for (String region : regions) {
+                passes.put(region, regionPasses.submit(region + " pass", () -> runPass(novaApi, neutronApi,
+                        projectedListings, listings, diskCapacity, region, callsPerRegion.get(region),
+                        snapshotPerRegion.get(region), metrics)));
+            }
+            Map<String, CompactInventory> collected = new LinkedHashMap<>();
+            Map<String, Exception> failed = new LinkedHashMap<>();
+            passes.forEach((region, pass) -> {
+                try {
+                    CompactInventory inventory = await(pass);
+                    collected.put(region, inventory);
+                    if (!Settings.SNAPSHOT_DIR.isEmpty()) {
+                        saveSnapshot(region, inventory, snapshotPerRegion.get(region));
+                    }
+                } catch (RuntimeException e) {
+                    System.out.println("Region " + region + " pass failed, its previous inventory is kept: " + e);
+                    failed.put(region, e);
+                }
+            });
+            // only this thread updates the capacity, readers of the service keep the previous view until it's swapped
+            RegionalInventory updated = capacity.get().update(collected, failed);
+            capacity.set(updated);
+            if (publishTo != null) {
+                publishTo.publish(CapacityView.of(updated, Settings.PLACEMENT_HOST_VPORTS, startedAt));
+            }
+
+            collected.forEach((region, inventory) -> System.out.println("Pass result " + region + " " + inventory));
+            System.out.println("Capacity " + updated);
+            if (Settings.METRICS_REPORT) {
+                metrics.report(System.out);
+            }
+            snapshotPerRegion.forEach((region, snapshot) -> System.out.println("Inventory " + region + " " + snapshot));
+        };
+
+        // with refresh interval set (or the service running) the pass is repeated in background,
+        // servers, flavors and ports are then refreshed with deltas only
+        int refreshInterval = Settings.REFRESH_INTERVAL_SECONDS > 0 || capacityService == null
+                ? Settings.REFRESH_INTERVAL_SECONDS : DEFAULT_SERVICE_REFRESH_INTERVAL_SECONDS;
+        if (refreshInterval <= 0) {
+            refresh.run();
+        } else {
+            ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor();
+            scheduler.scheduleWithFixedDelay(() -> {
+                try {
+                    refresh.run();
+                } catch (RuntimeException e) {
+                    System.out.println("Refresh failed, the next one is in " + refreshInterval + " s: " + e);
+                }
+            }, 0, refreshInterval, TimeUnit.SECONDS);
+            // runs until the process is stopped
+            scheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.DAYS);
+        }
+
+        if (capacityService != null) {
+            capacityService.close();
+        }
+
+        regionPasses.close();
+        callsPerRegion.values().forEach(ConcurrentCalls::close);
+        novaApi.close();
+        neutronApi.close();
+        tokens.close();
+        metrics.close();
+    }
+
+    // inventories are as old as the oldest of the restored files
+    static Instant restoredAt(Set<String> regions) throws IOException {
+        Instant restoredAt = Instant.now();
+        for (String region : regions) {
+            Instant savedAt = Files.getLastModifiedTime(snapshotFile(region)).toInstant();
+            restoredAt = savedAt.isBefore(restoredAt) ? savedAt : restoredAt;
+        }
+        return restoredAt;
+    }
+
+    static Optional<CompactInventory> restoreSnapshot(String region, InventorySnapshot snapshot) {
+        Path file = snapshotFile(region);
+        if (!Files.exists(file)) {
+            return Optional.empty();
+        }
+        long startedAt = System.nanoTime();
+        try {
+            CompactInventory inventory = InventoryFile.read(file, snapshot);
+            System.out.println("Restored " + region + " from " + file + " in "
+                    + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt) + " ms: " + inventory + ", " + snapshot);
+            return Optional.of(inventory);
+        } catch (IOException e) {
+            System.out.println("Snapshot of " + region + " not restored, it's collected with full listings: " + e);
+            return Optional.empty();
+        }
+    }
+
+    // a failed write keeps the previous file, the next pass writes it again
+    static void saveSnapshot(String region, CompactInventory inventory, InventorySnapshot snapshot) {
+        try {
+            InventoryFile.write(snapshotFile(region), inventory, snapshot);
+        } catch (IOException e) {
+            System.out.println("Snapshot of " + region + " not saved: " + e);
+        }
+    }
+
+    static Path snapshotFile(String region) {
+        return Paths.get(Settings.SNAPSHOT_DIR, region + ".inventory");
+    }
+
+    static CompactInventory runPass(NovaApi novaApi, NeutronApi neutronApi, ProjectedListings projectedListings,
+                                     SingleFlight listings, DiskCapacityProvider diskCapacityProvider, String region,
+                                     ConcurrentCalls calls, InventorySnapshot snapshot, PipelineMetrics metrics) {
+        // Listings below don't depend on each other, all of them are sent at once
+        // and joined only where the pipeline needs their results.
+        CompletableFuture<List<AvailabilityZoneDetails>> allZonesCall = calls.submit(region + " 1) availability zones",
+                () -> novaApi.getAvailabilityZoneApi(region).get().listInDetail().toList());
+        CompletableFuture<List<HypervisorDetails>> allHypervisorsCall = calls.submit(region + " 2.1) hypervisors",
+                () -> novaApi.getHypervisorApi(region).get().listInDetail().toList());
+        CompletableFuture<DiskCapacityProvider.DiskCapacity> diskCapacityCall = calls.submit(
+                region + " 2.2) disk capacity", () -> diskCapacityProvider.fetch(region));
+        // servers, flavors and ports come from the snapshot: full listing on the first pass, deltas afterwards;
+        // identical listings of concurrent consumers are sent once, in practice the full ones of the first pass
+        CompletableFuture<List<ServerSummary>> activeServersCall = calls.submit(region + " 4.1) servers",
+                () -> snapshot.getServers().refresh(changesSince -> listings.call("servers",
+                        region + " " + changesSince, () -> Settings.LISTING_PROJECTION
+                                ? projectedListings.listServers(region, changesSince)
+                                : listServers(novaApi, region, changesSince))));
+        CompletableFuture<List<FlavorSummary>> allFlavorsCall = calls.submit(region + " 4.2.1) flavors",
+                () -> snapshot.getFlavors().refresh(changesSince -> listings.call("flavors",
+                        region + " " + changesSince, () -> listFlavors(novaApi, region, changesSince))));
+        CompletableFuture<List<PortSummary>> boundPortsCall = calls.submit(region + " 4.3.1) ports",
+                () -> snapshot.getPorts().refresh(changedSince -> listings.call("ports", region + " " + changedSince,
+                        () -> Settings.LISTING_PROJECTION
+                                ? projectedListings.listPorts(region, changedSince)
+                                : listPorts(neutronApi, region, changedSince)),
+                        // live ids are listed by every refresh: ids listed before its changed_since delta
+                        // would drop ports created in between as deleted
+                        () -> Settings.LISTING_PROJECTION
+                                ? projectedListings.listPortIds(region)
+                                : listPortIds(neutronApi, region)));
+        CompletableFuture<List<Network>> allNetworksCall = calls.submit(region + " 4.4.1) networks",
+                () -> neutronApi.getNetworkApi(region).list().concat().toList());
 
         // 1) Get list of AZ https://developer.openstack.org/api-ref/compute/?expanded=#get-detailed-availability-zone-information
         // 1.1) select AZ based on "name" and supported sriov feature.
-        List<AvailabilityZoneDetails> activeZones = novaApi.getAvailabilityZoneApi(region).get().listInDetail()
+        List<AvailabilityZoneDetails> activeZones = await(allZonesCall).stream()
                 .filter(az -> AZ_NAMES.contains(az.getName()))
                 .filter(az -> az.getState().isAvailable())
-                .toList();
+                .collect(Collectors.toList());
 
         // attributes:
         // available - ok
@@ -66,19 +350,15 @@ public class Main {
         System.out.println("Availability zones in state 'available'");
         activeZones.forEach(it -> System.out.println("  az # " + it));
 
-        // 1.2) create list of "hosts" which is available
-        Set<String> activeComputeHosts = activeZones.stream()
-                .map(az -> az.getHosts()
-                        .entrySet().stream()
-                        .filter(e -> ofNullable(e.getValue().get("nova-compute"))
-                                .map(HostService::isActive)
-                                .orElse(false)
-                        )
-                        .map(Map.Entry::getKey)
-                        .collect(Collectors.toSet())
+        // 1.2) create list of "hosts" which is available, with the zone each one is in
+        Map<String, String> zonePerActiveComputeHost = new HashMap<>();
+        activeZones.forEach(az -> az.getHosts().entrySet().stream()
+                .filter(e -> ofNullable(e.getValue().get("nova-compute"))
+                        .map(HostService::isActive)
+                        .orElse(false)
                 )
-                .flatMap(Set::stream)
-                .collect(Collectors.toSet());
+                .forEach(e -> zonePerActiveComputeHost.put(e.getKey(), az.getName())));
+        Set<String> activeComputeHosts = zonePerActiveComputeHost.keySet();
 
         System.out.println("Active compute hosts for availability zones (having 'nova-compute' host service)");
         activeComputeHosts.forEach(h -> System.out.println("  compute host # " + h));
@@ -87,8 +367,7 @@ public class Main {
         // https://developer.openstack.org/api-ref/compute/?expanded=#list-hypervisors-details
         //
         // no query params thus retrieve all compute hypervisors
-        Map<String, HypervisorDetails> hypervisiorsDetailsPerHostName = novaApi.getHypervisorApi(region).get()
-                .listInDetail().toList().stream()
+        Map<String, HypervisorDetails> hypervisiorsDetailsPerHostName = await(allHypervisorsCall).stream()
                 .filter(hv -> activeComputeHosts.contains(hv.getName()))
                 .collect(toMap(HypervisorDetails::getName, Function.identity()));
 
@@ -99,36 +378,31 @@ public class Main {
         // diskAvailableLeast - ok
 
         // 2.2) Get Disk usage from CEPH
-        // (TODO)
+        // fetched while the listings are in flight and cached between passes, see disk.capacity.source
 
         // ELSE if FARM does not use CEPH then disk space is retrieved from compute hypervisor
-        Map<String, ComputeResource> computeHostResources = hypervisiorsDetailsPerHostName.values().stream()
-                .collect(toMap(HypervisorDetails::getName, it -> {
-                    ComputeResource resources = new ComputeResource();
-                    resources.freeDiskSpace = it.getDiskAvailableLeast();
-                    resources.freeRam = it.getFreeRamMb();
-                    return resources;
-                }));
-
-        // 3) First filtration: based on <TODO, get info from CEPH, about disk, step #2.2>
+        DiskCapacityProvider.DiskCapacity diskCapacity = await(diskCapacityCall);
+
+        // 3) First filtration: based on free disk from step #2.2
         //  and "free_ram_mb" values from step #2.1.
         //  Create list of computes, which is suitable by this values. (based on Flavor required size)
-        Map<String, ComputeResource> filteredComputeHostResources = computeHostResources.entrySet().stream()
-                .filter(e -> {
-                    ComputeResource res = e.getValue();
-                    return res.freeDiskSpace >= INPUT_DISK_GB
-                            && res.freeRam >= INPUT_RAM_MB;
-                }).collect(toMap(Entry::getKey, Entry::getValue));
+        //
+        // resources of the pass are kept in columnar inventory: ids interned to ints, values in primitive arrays.
+        // Hosts are not filtered for a single request here, the batch is placed by PlacementEngine
+        // once vCPUs and vports of the computes are known (see step 5).
+        CompactInventory.Builder inventory = CompactInventory.builder();
+        hypervisiorsDetailsPerHostName.values().forEach(it -> inventory.host(it.getName(),
+                zonePerActiveComputeHost.get(it.getName()),
+                ofNullable(it.getFreeRamMb()).orElse(0),
+                diskCapacity.freeDiskGb(it.getName(), ofNullable(it.getDiskAvailableLeast()).orElse(0)),
+                ofNullable(it.getVcpus()).orElse(0)));
 
         // 4.1) Get list of VMs (filtration, based on compute is available only for this API call, but filter in Nova applies only one compute,
         // so all VMs could be received, instead of sending API for each node. + other APIs dosn't support filtration by compute node):
-        Map<String, List<Server>> activeServersPerComputeHost = novaApi.getServerApi(region).listInDetail().concat()
-                .toList().stream()
-                .filter(vm -> ACTIVE_VM_STATUSES.contains(vm.getStatus()))
-                // filter VMs only for computes which have enough RAM/HDD (filtered in step 3.)
-                .filter(vm -> filteredComputeHostResources
-                        .containsKey(vm.getExtendedAttributes().get().getHostName()))
-                .collect(Collectors.groupingBy(vm -> vm.getExtendedAttributes().get().getHostName()));
+        Map<String, List<ServerSummary>> activeServersPerComputeHost = await(activeServersCall).stream()
+                // filter VMs only for active computes (step 2.1)
+                .filter(vm -> hypervisiorsDetailsPerHostName.containsKey(vm.getHost()))
+                .collect(Collectors.groupingBy(ServerSummary::getHost));
         // attributes:
         // flavor - ok
         // id - ok
@@ -137,10 +411,12 @@ public class Main {
         System.out.println("Active VMs");
         activeServersPerComputeHost.entrySet()
                 .forEach(e -> System.out.println(" compute " + e.getKey() + " # " + e.getValue()));
+        activeServersPerComputeHost.values().forEach(vms -> vms.forEach(
+                vm -> inventory.server(vm.getId(), vm.getHost(), vm.getFlavorId())));
 
         // 4.2.1) Get list of flavors
         // https://developer.openstack.org/api-ref/compute/?expanded=list-flavors-with-details-detail#list-flavors-with-details
-        List<Flavor> allFlavors = novaApi.getFlavorApi(region).listInDetail().concat().toList();
+        List<FlavorSummary> allFlavors = await(allFlavorsCall);
         System.out.println("All flavors");
         allFlavors.forEach(f -> System.out.println("  # " + f));
 
@@ -148,107 +424,217 @@ public class Main {
         // id - ok
         // vcpus - ok
 
-        Map<String, Integer> flavorToVCPUs = allFlavors.stream()
-                .collect(toMap(Resource::getId, Flavor::getVcpus));
+        allFlavors.forEach(f -> inventory.flavor(f.getId(), f.getVcpus()));
 
         // 4.2.2) Calculate used "vcpus" per compute.
         // It could be done via following values: VM ↔ OS-EXT-SRV-ATTR:host, VM.flavor ↔ Flavor.id, Flavor.vcpus.
-        activeServersPerComputeHost.entrySet().stream()
-                .collect(toMap(Entry::getKey,
-                        e -> e.getValue().stream()
-                                .map(vm -> flavorToVCPUs.get(vm.getFlavor().getId()))
-                                .filter(Objects::nonNull)
-                                .mapToInt(Integer::valueOf)
-                                .sum()
-                ))
-                .forEach((host, vcpus) -> filteredComputeHostResources.computeIfPresent(host, (k, v) -> {
-                    v.usedvCPUs = vcpus;
-                    return v;
-                }));
+        CompactInventory computeInventory = inventory.build();
+        int[] usedVcpus = metrics.cpu(region + " 4.2.2) used vcpus", computeInventory::usedVcpusPerHost);
 
         System.out.println("Compute host resouces filled with vCPUs info");
-        filteredComputeHostResources.forEach((k, v) -> System.out.println(" compute " + k + " # " + v));
-
-        novaApi.close();
+        for (int host = 0; host < computeInventory.hostCount(); host++) {
+            System.out.println(" compute " + computeInventory.hostId(host) +
+                    " # freeDiskSpace=" + computeInventory.freeDiskGb(host) +
+                    ", freeRam=" + computeInventory.freeRamMb(host) +
+                    ", vCPUs=" + computeInventory.vcpus(host) +
+                    ", usedvCPUs=" + usedVcpus[host]);
+        }
 
         System.out.println("\nNeutron API\n");
 
-        NeutronApi neutronApi = initApi("openstack-neutron", NeutronApi.class);
-
         // 4.3.1) Get list of vports
         // https://developer.openstack.org/api-ref/network/v2/index.html?expanded=list-ports-detail#list-ports
 
-        List<Port> allPorts = neutronApi.getPortApi(region).list().concat().toList();
+        // ports not attached to any device are dropped while streaming
+        List<PortSummary> boundPorts = await(boundPortsCall);
         //  System.out.println("All ports for region " + region);
-        //  allPorts.forEach(p -> System.out.println("  # " + p));
+        //  boundPorts.forEach(p -> System.out.println("  # " + p));
 
         // attributes:
         // id - ok
         // device_id - ok
         // network_id - ok
 
+        // 4.4.1) Get list of networks
+        // https://developer.openstack.org/api-ref/network/v2/index.html?expanded=list-networks-detail#list-networks
+
+        List<Network> allNetworks = await(allNetworksCall);
+
+        System.out.println("All networks in region " + region);
+        allNetworks.forEach(n -> System.out.println("  # " + n));
+
         // 4.3.2) Find relations between "compute nodes" and "ports".
         // It could be done via following values: VM ↔ OS-EXT-SRV-ATTR:host, VM.id ↔ Vport.device_id
+        // ports and networks are indexed once, every port of multi-NIC VMs is kept
 
-        Map<String, List<Port>> portsByComputeHost = activeServersPerComputeHost.entrySet().stream()
-                .collect(toMap(Entry::getKey,
-                        e -> e.getValue().stream()
-                                .map(vm -> allPorts.stream().filter(p -> Objects.equals(p.getDeviceId(), vm.getId()))
-                                        .findFirst().orElse(null))
-                                .filter(Objects::nonNull)
-                                .collect(Collectors.toList())
-                        )
-                );
+        InventoryJoin.Result<ServerSummary, PortSummary, Network> vmPortNetworkJoin = metrics.cpu(region + " 4.3.2) join",
+                () -> SERVER_PORT_NETWORK_JOIN.join(
+                        activeServersPerComputeHost.values().stream().flatMap(List::stream).collect(Collectors.toList()),
+                        boundPorts, allNetworks));
+        Map<String, List<PortSummary>> portsByComputeHost = vmPortNetworkJoin.getPortsByHost();
 
         System.out.println("Ports per compute host (by active vnfs only)");
         portsByComputeHost.forEach((host, ports) -> System.out.println("compute " + host + " # " + ports));
 
-        // 4.4.1) Get list of networks
-        // https://developer.openstack.org/api-ref/network/v2/index.html?expanded=list-networks-detail#list-networks
-
-        List<Network> allNetworks = neutronApi.getNetworkApi(region).list().concat().toList();
-
-        System.out.println("All networks in region " + region);
-        allNetworks.forEach(n -> System.out.println("  # " + n));
+        allNetworks.forEach(n -> inventory.network(n.getId()));
+        portsByComputeHost.values().forEach(ports -> ports.forEach(
+                p -> inventory.port(p.getDeviceId(), p.getNetworkId())));
 
         // 4.4.2) Find relations between cpus of "VMs" and "CPU-zone".
         // It could be done via following values: VM ↔ OS-EXT-SRV-ATTR:host, VM.id ↔ Vport.device_id, Network.id ↔ Vport.network_id
         // It gives information about "How many CPUs could be allocated on 'CPU-numa-node'?".
+        //
+        // the snapshot maintains used vCPUs and vports per (host, provider:physical_network) as its servers, flavors
+        // and ports change, only networks which changed since the previous pass are applied here
+        Map<String, String> physnetPerNetwork = new HashMap<>();
+        allNetworks.stream()
+                .filter(n -> n.getPhysicalNetworkName() != null)
+                .forEach(n -> physnetPerNetwork.put(n.getId(), n.getPhysicalNetworkName()));
+        PhysnetAggregates physnets = metrics.cpu(region + " 4.4.2) physnets", () -> {
+            snapshot.getPhysnets().networks(physnetPerNetwork);
+            return snapshot.getPhysnets();
+        });
+
+        System.out.println("Used vCPUs and vports per physical network of compute hosts");
+        hypervisiorsDetailsPerHostName.keySet().forEach(host -> {
+            Map<String, PhysnetAggregates.Usage> usage = physnets.usageOf(host);
+            if (!usage.isEmpty()) {
+                System.out.println("  compute " + host + " # " + usage);
+            }
+        });
+        if (Settings.PLACEMENT_PHYSNET_VPORTS > 0) {
+            System.out.println("Physical networks with room for " + INPUT_VPORTS_COUNT + " vports");
+            hypervisiorsDetailsPerHostName.keySet().forEach(host -> System.out.println("  compute " + host + " # " +
+                    physnets.physnets().stream()
+                            .filter(physnet -> physnets.vports(host, physnet) + INPUT_VPORTS_COUNT
+                                    <= Settings.PLACEMENT_PHYSNET_VPORTS)
+                            .sorted()
+                            .collect(Collectors.toList())));
+        }
 
-        // todo
+        CompactInventory passInventory = inventory.build();
 
-        neutronApi.close();
+        // 5) Place the batch of requested VMs, each compute's capacity is reduced by the VMs already assigned to it.
+        // Disk of a Ceph pool is shared by the computes, all VMs of the batch take from the same pool.
+        List<PlacementEngine.Request> requests = IntStream.rangeClosed(1, Settings.PLACEMENT_BATCH_SIZE)
+                .mapToObj(i -> new PlacementEngine.Request("vm-" + i,
+                        INPUT_RAM_MB, INPUT_DISK_GB, INPUT_CPUS, INPUT_VPORTS_COUNT))
+                .collect(Collectors.toList());
+        List<PlacementEngine.Assignment> assignments = metrics.cpu(region + " 5) placement", () -> new PlacementEngine(
+                passInventory, passInventory.usedVcpusPerHost(), passInventory.portsPerHost(),
+                Settings.PLACEMENT_HOST_VPORTS, diskCapacity.sharedPoolGb()).place(requests));
+
+        System.out.println("Placement of " + requests.size() + " requested VMs");
+        assignments.forEach(a -> System.out.println("  # " + a));
+
+        return passInventory;
+    }
+
+    // servers and ports are streamed page by page, only projections of the needed entities are kept,
+    // filters and fields are pushed to Nova/Neutron where they are supported
+
+    static List<ServerSummary> listServers(NovaApi novaApi, String region, Instant changesSince) {
+        ListingQuery.Plan<Server> query = changesSince == null ? ACTIVE_SERVERS_QUERY : CHANGED_SERVERS_QUERY;
+        return new PagedListing<Server>((marker, limit) -> {
+            PaginationOptions options = paginationOptions(marker, limit, query);
+            if (changesSince != null) {
+                options.changesSince(Date.from(changesSince));
+            }
+            return toPage(novaApi.getServerApi(region).listInDetail(options));
+        }, Settings.LISTING_PAGE_SIZE).collect(query::test, Main::toServerSummary);
     }
 
-    static <T extends Closeable> T initApi(String provider, Class<T> apiType) {
+    static List<FlavorSummary> listFlavors(NovaApi novaApi, String region, Instant changesSince) {
+        return new PagedListing<Flavor>((marker, limit) -> {
+            PaginationOptions options = paginationOptions(marker, limit, FLAVORS_QUERY);
+            if (changesSince != null) {
+                options.changesSince(Date.from(changesSince));
+            }
+            return toPage(novaApi.getFlavorApi(region).listInDetail(options));
+        }, Settings.LISTING_PAGE_SIZE).collect(FLAVORS_QUERY::test, f -> new FlavorSummary(f.getId(), f.getVcpus()));
+    }
+
+    static List<PortSummary> listPorts(NeutronApi neutronApi, String region, Instant changedSince) {
+        return new PagedListing<Port>((marker, limit) -> {
+            PaginationOptions options = paginationOptions(marker, limit, PORTS_QUERY);
+            if (changedSince != null) {
+                options.queryParameters(ImmutableMultimap.of("changed_since", changedSince.toString()));
+            }
+            return toPage(neutronApi.getPortApi(region).list(options));
+        }, Settings.LISTING_PAGE_SIZE).collect(PORTS_QUERY::test,
+                p -> new PortSummary(p.getId(), p.getDeviceId(), p.getNetworkId()));
+    }
+
+    // Neutron deltas don't report deleted ports, ids of the existing ones are listed to reconcile
+    static Set<String> listPortIds(NeutronApi neutronApi, String region) {
+        Set<String> ids = new HashSet<>();
+        new PagedListing<Port>((marker, limit) -> toPage(neutronApi.getPortApi(region)
+                .list(paginationOptions(marker, limit, PORT_IDS_QUERY))), Settings.LISTING_PAGE_SIZE)
+                .forEach(p -> ids.add(p.getId()));
+        return ids;
+    }
+
+    static ServerSummary toServerSummary(Server vm) {
+        return new ServerSummary(vm.getId(), vm.getStatus().name(), vm.getFlavor().getId(),
+                vm.getExtendedAttributes().transform(ServerExtendedAttributes::getHostName).orNull());
+    }
+
+    static PaginationOptions paginationOptions(String marker, int limit, ListingQuery.Plan<?> query) {
+        Multimap<String, String> queryParameters = ArrayListMultimap.create();
+        query.getQueryParameters().forEach(queryParameters::putAll);
+        PaginationOptions options = PaginationOptions.Builder.queryParameters(queryParameters).limit(limit);
+        return marker == null ? options : options.marker(marker);
+    }
+
+    // next marker of jclouds is the options of the next page link, not the marker itself
+    static <T> PagedListing.Page<T> toPage(PaginatedCollection<T> page) {
+        if (!page.nextMarker().isPresent()) {
+            return new PagedListing.Page<>(page, null);
+        }
+        PaginationOptions next = (PaginationOptions) page.nextMarker().get();
+        return new PagedListing.Page<>(page, Iterables.getFirst(next.buildQueryParameters().get("marker"), null));
+    }
+
+    static <T extends Closeable> T initApi(String provider, Class<T> apiType, TokenManager<Access> tokens,
+                                           PipelineMetrics metrics, Backpressure backpressure) {
         final Properties overrides = new Properties();
         overrides.put(KeystoneProperties.TENANT_NAME, Credentials.TENANT);
         overrides.put("jclouds.wire.log.sensitive", Boolean.TRUE);
 
-        Set<Module> modules = Sets.newHashSet(new SLF4JLoggingModule());
+        Set<Module> modules = Sets.newHashSet(new SLF4JLoggingModule(), new MeteredHttpModule(metrics, backpressure));
 
-        return ContextBuilder.newBuilder(provider)
+        // jclouds can't authenticate to Keystone v2 with a token, so the shared access is put to its auth cache
+        // under the credentials it asks for next, keyed by token id so that a refreshed token replaces the old one.
+        // jclouds drops the access of a request rejected with 401 from the cache: the seeded token is gone then,
+        // it's invalidated so that a new one is issued instead of seeding the rejected token again
+        AtomicReference<LoadingCache<org.jclouds.domain.Credentials, AuthInfo>> authCache = new AtomicReference<>();
+        AtomicReference<TokenManager.Token<Access>> seeded = new AtomicReference<>();
+        Injector injector = ContextBuilder.newBuilder(provider)
                 .endpoint(Credentials.KEYSTONE_AUTH_URL)
-                .credentials(Credentials.USERNAME, Credentials.PASS)
+                .credentialsSupplier(() -> {
+                    LoadingCache<org.jclouds.domain.Credentials, AuthInfo> cache = authCache.get();
+                    TokenManager.Token<Access> rejected = seeded.get();
+                    if (cache != null && rejected != null && cache.getIfPresent(tokenCredentials(rejected)) == null) {
+                        tokens.invalidate(Credentials.TENANT, rejected);
+                    }
+                    TokenManager.Token<Access> token = tokens.get(Credentials.TENANT);
+                    org.jclouds.domain.Credentials credentials = tokenCredentials(token);
+                    if (cache != null && cache.getIfPresent(credentials) == null) {
+                        cache.invalidateAll();
+                        cache.put(credentials, token.getAccess());
+                        seeded.set(token);
+                    }
+                    return credentials;
+                })
                 .overrides(overrides)
                 .modules(modules)
-                .buildApi(apiType);
+                .buildInjector();
+        authCache.set(injector.getInstance(AUTH_CACHE));
+        return injector.getInstance(apiType);
     }
 
-    static class ComputeResource {
-
-        Integer freeDiskSpace;
-        Integer freeRam;
-        Integer usedvCPUs;
-
-        @Override
-        public String toString() {
-            return "ComputeResource{" +
-                    "freeDiskSpace=" + freeDiskSpace +
-                    ", freeRam=" + freeRam +
-                    ", usedvCPUs=" + usedvCPUs +
-                    '}';
-        }
+    static org.jclouds.domain.Credentials tokenCredentials(TokenManager.Token<Access> token) {
+        return new org.jclouds.domain.Credentials(Credentials.USERNAME, token.getId());
     }
 
 }
@@ -0,0 +1,134 @@
+package org.github.hnyp.osapitest.jclouds;
+
+import com.google.inject.AbstractModule;
+import com.google.inject.Inject;
+import com.google.inject.Scopes;
+import com.google.inject.util.Modules;
+import org.github.hnyp.osapitest.common.concurrent.Backpressure;
+import org.github.hnyp.osapitest.common.metrics.CountingInputStream;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+import org.jclouds.http.HttpCommand;
+import org.jclouds.http.HttpCommandExecutorService;
+import org.jclouds.http.HttpRequest;
+import org.jclouds.http.HttpResponse;
+import org.jclouds.http.HttpResponseException;
+import org.jclouds.http.config.ConfiguresHttpCommandExecutorService;
+import org.jclouds.http.config.JavaUrlHttpCommandExecutorServiceModule;
+import org.jclouds.http.internal.JavaUrlHttpCommandExecutorService;
+import org.jclouds.io.Payload;
+import org.jclouds.io.payloads.DelegatingPayload;
+import org.jclouds.rest.RetryAfterException;
+import org.jclouds.util.Throwables2;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Default HTTP transport of jclouds with every request recorded to {@link PipelineMetrics}: latency until
+ * the response headers (retries of jclouds included), response body bytes counted while the body is parsed,
+ * and retries from the failure count of the command.
+ * <p>
+ * Commands are sent within the {@link Backpressure} of their service. jclouds turns error statuses into exceptions
+ * (Nova's 413 into {@link RetryAfterException}), the response they carry tells whether the command was throttled;
+ * a throttled command is cleared of its exception and invoked again.
+ */
+@ConfiguresHttpCommandExecutorService
+class MeteredHttpModule extends AbstractModule {
+
+    private final PipelineMetrics metrics;
+    private final Backpressure backpressure;
+
+    MeteredHttpModule(PipelineMetrics metrics, Backpressure backpressure) {
+        this.metrics = metrics;
+        this.backpressure = backpressure;
+    }
+
+    @Override
+    protected void configure() {
+        install(Modules.override(new JavaUrlHttpCommandExecutorServiceModule()).with(new AbstractModule() {
+            @Override
+            protected void configure() {
+                bind(PipelineMetrics.class).toInstance(metrics);
+                bind(Backpressure.class).toInstance(backpressure);
+                bind(HttpCommandExecutorService.class).to(MeteredExecutor.class).in(Scopes.SINGLETON);
+            }
+        }));
+    }
+
+    static class MeteredExecutor implements HttpCommandExecutorService {
+
+        private final HttpCommandExecutorService delegate;
+        private final PipelineMetrics metrics;
+        private final Backpressure backpressure;
+
+        @Inject
+        MeteredExecutor(JavaUrlHttpCommandExecutorService delegate, PipelineMetrics metrics,
+                        Backpressure backpressure) {
+            this.delegate = delegate;
+            this.metrics = metrics;
+            this.backpressure = backpressure;
+        }
+
+        @Override
+        public HttpResponse invoke(HttpCommand command) {
+            HttpRequest request = command.getCurrentRequest();
+            String endpoint = PipelineMetrics.endpoint(request.getMethod(), request.getEndpoint().getRawPath());
+            return backpressure.call(request.getEndpoint(), endpoint, () -> invoke(command, endpoint),
+                    MeteredExecutor::throttle);
+        }
+
+        private HttpResponse invoke(HttpCommand command, String endpoint) {
+            // exception of a throttled attempt would fail the next one as well
+            command.setException(null);
+            int failuresBefore = command.getFailureCount();
+            long startedAt = System.nanoTime();
+            int status = 0;
+            try {
+                HttpResponse response = delegate.invoke(command);
+                status = response.getStatusCode();
+                return countBody(response, endpoint);
+            } catch (HttpResponseException e) {
+                status = e.getResponse() == null ? 0 : e.getResponse().getStatusCode();
+                throw e;
+            } finally {
+                metrics.request(endpoint, status, System.nanoTime() - startedAt);
+                for (int retry = failuresBefore; retry < command.getFailureCount(); retry++) {
+                    metrics.retry(endpoint);
+                }
+            }
+        }
+
+        // Retry-After of Nova's 413 is often in the body only, jclouds parses it into RetryAfterException
+        private static Backpressure.Throttle throttle(RuntimeException failure) {
+            HttpResponseException responseException =
+                    Throwables2.getFirstThrowableOfType(failure, HttpResponseException.class);
+            if (responseException == null || responseException.getResponse() == null) {
+                return null;
+            }
+            HttpResponse response = responseException.getResponse();
+            Backpressure.Throttle throttle = Backpressure.Throttle.of(response.getStatusCode(),
+                    response.getFirstHeaderOrNull("Retry-After"));
+            RetryAfterException retryAfter = Throwables2.getFirstThrowableOfType(failure, RetryAfterException.class);
+            if (throttle != null && throttle.getRetryAfterMillis() < 0 && retryAfter != null) {
+                return new Backpressure.Throttle(throttle.getStatus(), retryAfter.getSeconds() * 1000L);
+            }
+            return throttle;
+        }
+
+        // new response rather than setPayload, which releases the current (possibly file backed) payload
+        private HttpResponse countBody(HttpResponse response, String endpoint) {
+            Payload payload = response.getPayload();
+            if (payload == null) {
+                return response;
+            }
+            return response.toBuilder().payload(new DelegatingPayload(payload) {
+                @Override
+                public InputStream openStream() throws IOException {
+                    return new CountingInputStream(super.openStream(),
+                            bytes -> metrics.responseBytes(endpoint, bytes));
+                }
+            }).build();
+        }
+    }
+
+}
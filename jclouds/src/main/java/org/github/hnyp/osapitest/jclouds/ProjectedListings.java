@@ -0,0 +1,112 @@
+package org.github.hnyp.osapitest.jclouds;
+
+import org.github.hnyp.osapitest.common.Credentials;
+import org.github.hnyp.osapitest.common.Settings;
+import org.github.hnyp.osapitest.common.TokenManager;
+import org.github.hnyp.osapitest.common.concurrent.Backpressure;
+import org.github.hnyp.osapitest.common.inventory.ListingClient;
+import org.github.hnyp.osapitest.common.inventory.ListingQuery;
+import org.github.hnyp.osapitest.common.inventory.PagedListing;
+import org.github.hnyp.osapitest.common.inventory.PortSummary;
+import org.github.hnyp.osapitest.common.inventory.ProjectionDecoder;
+import org.github.hnyp.osapitest.common.inventory.ServerSummary;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+import org.jclouds.openstack.keystone.v2_0.domain.Access;
+import org.jclouds.openstack.keystone.v2_0.domain.Endpoint;
+import org.jclouds.openstack.keystone.v2_0.domain.Service;
+import org.jclouds.openstack.nova.v2_0.domain.Server.Status;
+
+import java.net.URI;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Servers and ports listed by {@link ListingClient} rather than by jclouds, decoded straight into summaries
+ * without Gson binding the DTOs. Token and service catalog are the ones of the shared jclouds {@link Access}.
+ * <p>
+ * Same queries as the jclouds listings of {@link Main}, except that Nova {@code changes-since} is sent as ISO-8601.
+ */
+class ProjectedListings {
+
+    static final ListingQuery.Plan<ServerSummary> ACTIVE_SERVERS_QUERY = new ListingQuery<ServerSummary>()
+            .filter("status", Main.ACTIVE_VM_STATUSES.stream().map(Status::name).collect(Collectors.toSet()),
+                    ServerSummary::getStatus)
+            .plan(Main.NOVA_SERVERS_QUERY_SUPPORT);
+    static final ListingQuery.Plan<ServerSummary> CHANGED_SERVERS_QUERY = new ListingQuery<ServerSummary>()
+            .plan(Main.NOVA_SERVERS_QUERY_SUPPORT);
+    static final ListingQuery.Plan<PortSummary> PORTS_QUERY = new ListingQuery<PortSummary>()
+            .fields("id", "device_id", "network_id")
+            .plan(Main.NEUTRON_PORTS_QUERY_SUPPORT);
+    static final ListingQuery.Plan<PortSummary> PORT_IDS_QUERY = new ListingQuery<PortSummary>()
+            .fields("id")
+            .plan(Main.NEUTRON_PORTS_QUERY_SUPPORT);
+
+    private final TokenManager<Access> tokens;
+    private final ListingClient client;
+
+    ProjectedListings(TokenManager<Access> tokens, PipelineMetrics metrics, Backpressure backpressure) {
+        this.tokens = tokens;
+        this.client = new ListingClient(tokens, Credentials.TENANT, metrics, backpressure);
+    }
+
+    List<ServerSummary> listServers(String region, Instant changesSince) {
+        ListingQuery.Plan<ServerSummary> query = changesSince == null ? ACTIVE_SERVERS_QUERY : CHANGED_SERVERS_QUERY;
+        URI nova = endpoint("compute", region);
+        Map<String, List<String>> params = withSince(query, "changes-since", changesSince);
+        return new PagedListing<ServerSummary>((marker, limit) -> client.page(nova, "/servers/detail", params,
+                marker, limit, ProjectionDecoder::servers), Settings.LISTING_PAGE_SIZE).collect(query::test, vm -> vm);
+    }
+
+    List<PortSummary> listPorts(String region, Instant changedSince) {
+        URI neutron = networkEndpoint(region);
+        Map<String, List<String>> params = withSince(PORTS_QUERY, "changed_since", changedSince);
+        return new PagedListing<PortSummary>((marker, limit) -> client.page(neutron, "/ports", params,
+                marker, limit, ProjectionDecoder::ports), Settings.LISTING_PAGE_SIZE).collect(PORTS_QUERY::test, p -> p);
+    }
+
+    Set<String> listPortIds(String region) {
+        URI neutron = networkEndpoint(region);
+        Set<String> ids = new HashSet<>();
+        new PagedListing<PortSummary>((marker, limit) -> client.page(neutron, "/ports",
+                PORT_IDS_QUERY.getQueryParameters(), marker, limit, ProjectionDecoder::ports),
+                Settings.LISTING_PAGE_SIZE).forEach(p -> ids.add(p.getId()));
+        return ids;
+    }
+
+    private static Map<String, List<String>> withSince(ListingQuery.Plan<?> query, String param, Instant since) {
+        if (since == null) {
+            return query.getQueryParameters();
+        }
+        Map<String, List<String>> params = new LinkedHashMap<>(query.getQueryParameters());
+        params.put(param, Collections.singletonList(since.toString()));
+        return params;
+    }
+
+    // catalogs usually list Neutron without the API version jclouds appends itself
+    private URI networkEndpoint(String region) {
+        URI neutron = endpoint("network", region);
+        String url = neutron.toString().replaceAll("/+$", "");
+        return url.endsWith("/v2.0") ? neutron : URI.create(url + "/v2.0");
+    }
+
+    private URI endpoint(String serviceType, String region) {
+        Access access = tokens.get(Credentials.TENANT).getAccess();
+        for (Service service : access) {
+            if (serviceType.equals(service.getType())) {
+                for (Endpoint endpoint : service) {
+                    if (region.equals(endpoint.getRegion())) {
+                        return endpoint.getPublicURL();
+                    }
+                }
+            }
+        }
+        throw new IllegalStateException("No " + serviceType + " endpoint of region " + region + " in the catalog");
+    }
+
+}
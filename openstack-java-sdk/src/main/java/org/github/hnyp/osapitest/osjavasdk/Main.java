@@ -2,8 +2,11 @@ package org.github.hnyp.osapitest.osjavasdk;
 
 import static com.woorea.openstack.keystone.utils.KeystoneUtils.findEndpointURL;
 import static java.util.stream.Collectors.toList;
+import static org.github.hnyp.osapitest.common.concurrent.ConcurrentCalls.await;
 
-import com.woorea.openstack.base.client.OpenStackSimpleTokenProvider;
+import com.woorea.openstack.base.client.OpenStackClientConnector;
+import com.woorea.openstack.base.client.OpenStackRequest;
+import com.woorea.openstack.base.client.OpenStackTokenProvider;
 import com.woorea.openstack.keystone.Keystone;
 import com.woorea.openstack.keystone.model.Access;
 import com.woorea.openstack.keystone.model.authentication.UsernamePassword;
@@ -16,108 +19,252 @@ import com.woorea.openstack.quantum.Quantum;
 import com.woorea.openstack.quantum.model.Network;
 import com.woorea.openstack.quantum.model.Port;
 import org.github.hnyp.osapitest.common.Credentials;
-
+import org.github.hnyp.osapitest.common.Settings;
+import org.github.hnyp.osapitest.common.TokenManager;
+import org.github.hnyp.osapitest.common.concurrent.Backpressure;
+import org.github.hnyp.osapitest.common.concurrent.ConcurrentCalls;
+import org.github.hnyp.osapitest.common.concurrent.EndpointCap;
+import org.github.hnyp.osapitest.common.concurrent.SingleFlight;
+import org.github.hnyp.osapitest.common.inventory.ListingQuery;
+import org.github.hnyp.osapitest.common.inventory.QuerySupport;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
 public class Main {
 
-    public static void main(String[] args) {
-
-        Keystone keystone = new Keystone(Credentials.KEYSTONE_AUTH_URL);
-        Access access = keystone.tokens()
-                .authenticate(new UsernamePassword(Credentials.USERNAME, Credentials.PASS))
-                .withTenantName(Credentials.TENANT)
-                .execute();
-
-        System.out.println(access);
-
-        //use the token in the following requests
-        keystone.token(access.getToken().getId());
-
-        Nova novaClient = new Nova(findEndpointURL(access.getServiceCatalog(), "compute", null, "public"));
-        novaClient.token(access.getToken().getId());
-
-        // 1.1) select AZ based on "name" and supported sriov feature.
-        //
-        // todo there's no api to get AVAILABILITY ZONES atm
-        // https://github.com/woorea/openstack-java-sdk/issues/148
-        // https://github.com/woorea/openstack-java-sdk/pull/149/commits/bbb9da81e26c0221254e0d8f9ecea2a265f07e30
-
-        // 1.2) create list of "hosts" which is available
-
-        List<Host> computeHosts = novaClient.hosts().list().execute()
-                .getList().stream()
-                .filter(h -> "compute".equals(h.getService()))
-                .collect(toList());
-        System.out.println("Nova compute hosts");
-        System.out.println(computeHosts);
-
-        // attributes:
-        // zone - ok
-        // hostName - ok
-        // service -?
-        // availability -?
-
-        // 2.1) Get information basic about available resources in computes(hypervisors).
-        // https://developer.openstack.org/api-ref/compute/?expanded=#list-hypervisors-details
-
-        List<Hypervisor> allHypervisors = novaClient.hypervisors().list().execute()
-                .getList();
-
-        // attributes:
-        // todo Hypervisor dto contains no info except 'hypervisor_hostname' and 'id'
+    public static final Set<String> ACTIVE_VM_STATUSES = new HashSet<>(Arrays.asList("ACTIVE", "BUILD"));
 
+    // OpenStackRequest.queryParam could be repeated, so every filter of Nova and Neutron could be sent as is
+    static final QuerySupport NOVA_SERVERS_QUERY_SUPPORT = new QuerySupport()
+            .param("status", Integer.MAX_VALUE);
+    static final QuerySupport NEUTRON_PORTS_QUERY_SUPPORT = new QuerySupport()
+            .fields();
 
-        // 4.1) Get list of VMs (filtration, based on compute is available only for this API call,
-        // but filter in Nova applies only one compute, so all VMs could be received,
-        // instead of sending API for each node. + other APIs dosn't support filtration by compute node):
-
-        List<Server> allServers = novaClient.servers().list(true).execute().getList();
-        // attributes:
-        // id - ok
-        // flavor - ok
-        // OS-EXT-SRV-ATTR:host - ok
-
-
-        // 4.2.1) Get list of flavors
-        // https://developer.openstack.org/api-ref/compute/?expanded=list-flavors-with-details-detail#list-flavors-with-details
-
-        List<Flavor> allFlavors = novaClient.flavors().list(true).execute().getList();
-        // attributes:
-        // id - ok
-        // vcpus - ok
-
-
-
-        Quantum neutronClient = new Quantum(findEndpointURL(access.getServiceCatalog(), "network", null, "public"));
-        neutronClient.setTokenProvider(new OpenStackSimpleTokenProvider(access.getToken().getId()));
+    public static void main(String[] args) {
 
-        // 4.3.1) Get list of vports
-        // https://developer.openstack.org/api-ref/network/v2/index.html?expanded=list-ports-detail#list-ports
-        List<Port> allPorts = neutronClient.ports().list().execute().getList();
-        // dto attributes:
-        // id - ok
-        // device_id - ok
-        // network_id - ok
+        // all clients share the connector which records requests per step of the pipeline and per endpoint
+        // and keeps them within the adaptive concurrency limit of their service
+        PipelineMetrics metrics = PipelineMetrics.fromSettings();
+        MeteredConnector connector = MeteredConnector.wrapDefault(metrics, Backpressure.fromSettings(metrics),
+                new EndpointCap(Settings.CALLS_ENDPOINT_CONCURRENCY));
+
+        TokenManager<Access> tokens = new TokenManager<>(tenant -> authenticate(tenant, connector),
+                Duration.ofSeconds(Settings.TOKEN_REFRESH_AHEAD_SECONDS));
+
+        // tenants are scanned at once sharing the calls; on virtual threads a blocked call costs a small heap object
+        // instead of a pool thread, requests are then bounded by the endpoint cap and the limiter of the connector
+        List<String> tenants = Settings.TENANTS.isEmpty()
+                ? Collections.singletonList(Credentials.TENANT) : Settings.TENANTS;
+        Duration callTimeout = Duration.ofSeconds(Settings.CALLS_TIMEOUT_SECONDS);
+        Duration passTimeout = Duration.ofSeconds(Settings.REGION_TIMEOUT_SECONDS);
+        ConcurrentCalls calls = Settings.CALLS_VIRTUAL_THREADS
+                ? ConcurrentCalls.virtualThreads(callTimeout, metrics)
+                : new ConcurrentCalls(Settings.CALLS_CONCURRENCY, callTimeout, metrics);
+        ConcurrentCalls tenantPasses = Settings.CALLS_VIRTUAL_THREADS
+                ? ConcurrentCalls.virtualThreads(passTimeout, PipelineMetrics.disabled())
+                : new ConcurrentCalls(tenants.size(), passTimeout);
+        // identical listings of a tenant requested at once are sent once, listings of tenants differ by their tokens
+        SingleFlight listings = SingleFlight.fromSettings(metrics);
+
+        Map<String, CompletableFuture<Void>> passes = new LinkedHashMap<>();
+        for (String tenant : tenants) {
+            passes.put(tenant, tenantPasses.submit(tenant + " pass", () -> {
+                runPass(tenant, tokens, connector, calls, listings);
+                return null;
+            }));
+        }
+        passes.forEach((tenant, pass) -> {
+            try {
+                await(pass);
+            } catch (RuntimeException e) {
+                System.out.println("Tenant " + tenant + " pass failed: " + e);
+            }
+        });
+
+        if (Settings.METRICS_REPORT) {
+            metrics.report(System.out);
+        }
+
+        tenantPasses.close();
+        calls.close();
+        tokens.close();
+        metrics.close();
+    }
 
-        // todo api does not work
+    static void runPass(String tenant, TokenManager<Access> tokens, OpenStackClientConnector connector,
+                        ConcurrentCalls calls, SingleFlight listings) {
+        Access access = tokens.get(tenant).getAccess();
 
+        System.out.println(access);
 
-        // 4.4.1) Get list of networks
-        // https://developer.openstack.org/api-ref/network/v2/index.html?expanded=list-networks-detail#list-networks
+        //use the shared token in the following requests, clients ask for it on every request
+        Nova novaClient = new Nova(findEndpointURL(access.getServiceCatalog(), "compute", null, "public"), connector);
+        novaClient.setTokenProvider(new SharedTokenProvider(tokens, tenant));
+
+        Quantum neutronClient = new Quantum(findEndpointURL(access.getServiceCatalog(), "network", null, "public"),
+                connector);
+        neutronClient.setTokenProvider(new SharedTokenProvider(tokens, tenant));
+
+        // Listings don't depend on each other, all of them are sent at once
+        // and joined only where their results are needed. The listings don't outlive the pass: a failed listing
+        // cancels the others of the tenant, and so does leaving the pass for any reason (a failure of its own code,
+        // an interrupt of the awaits when the pass times out).
+        try (ConcurrentCalls.Scope scope = calls.scope()) {
+            CompletableFuture<List<Host>> allHostsCall = scope.submit("1.2) hosts",
+                    () -> novaClient.hosts().list().execute().getList());
+            CompletableFuture<List<Hypervisor>> allHypervisorsCall = scope.submit("2.1) hypervisors",
+                    () -> novaClient.hypervisors().list().execute().getList());
+            ListingQuery.Plan<Server> activeServersQuery = new ListingQuery<Server>()
+                    .filter("status", ACTIVE_VM_STATUSES, Server::getStatus)
+                    .plan(NOVA_SERVERS_QUERY_SUPPORT);
+            CompletableFuture<List<Server>> activeServersCall = scope.submit("4.1) servers",
+                    () -> listings.call("servers", tenant + " " + activeServersQuery.getQueryParameters(),
+                            () -> withQuery(novaClient.servers().list(true), activeServersQuery).execute().getList())
+                            .stream()
+                            .filter(activeServersQuery::test)
+                            .collect(toList()));
+            CompletableFuture<List<Flavor>> allFlavorsCall = scope.submit("4.2.1) flavors",
+                    () -> listings.call("flavors", tenant, () -> novaClient.flavors().list(true).execute().getList()));
+            ListingQuery.Plan<Port> boundPortsQuery = new ListingQuery<Port>()
+                    .require(p -> p.getDeviceId() != null && !p.getDeviceId().isEmpty())
+                    .fields("id", "device_id", "network_id")
+                    .plan(NEUTRON_PORTS_QUERY_SUPPORT);
+            CompletableFuture<List<Port>> boundPortsCall = scope.submit("4.3.1) ports",
+                    () -> listings.call("ports", tenant + " " + boundPortsQuery.getQueryParameters(),
+                            () -> withQuery(neutronClient.ports().list(), boundPortsQuery).execute().getList())
+                            .stream()
+                            .filter(boundPortsQuery::test)
+                            .collect(toList()));
+            CompletableFuture<List<Network>> allNetworksCall = scope.submit("4.4.1) networks",
+                    () -> neutronClient.networks().list().execute().getList());
+
+            // 1.1) select AZ based on "name" and supported sriov feature.
+            //
+            // todo there's no api to get AVAILABILITY ZONES atm
+            // https://github.com/woorea/openstack-java-sdk/issues/148
+            // https://github.com/woorea/openstack-java-sdk/pull/149/commits/bbb9da81e26c0221254e0d8f9ecea2a265f07e30
+
+            // 1.2) create list of "hosts" which is available
+
+            List<Host> computeHosts = await(allHostsCall).stream()
+                    .filter(h -> "compute".equals(h.getService()))
+                    .collect(toList());
+            System.out.println("Nova compute hosts of " + tenant);
+            System.out.println(computeHosts);
+
+            // attributes:
+            // zone - ok
+            // hostName - ok
+            // service -?
+            // availability -?
+
+            // 2.1) Get information basic about available resources in computes(hypervisors).
+            // https://developer.openstack.org/api-ref/compute/?expanded=#list-hypervisors-details
+
+            List<Hypervisor> allHypervisors = await(allHypervisorsCall);
+
+            // attributes:
+            // todo Hypervisor dto contains no info except 'hypervisor_hostname' and 'id'
+
+
+            // 4.1) Get list of VMs (filtration, based on compute is available only for this API call,
+            // but filter in Nova applies only one compute, so all VMs could be received,
+            // instead of sending API for each node. + other APIs dosn't support filtration by compute node):
+
+            List<Server> activeServers = await(activeServersCall);
+            // attributes:
+            // id - ok
+            // flavor - ok
+            // OS-EXT-SRV-ATTR:host - ok
+
+
+            // 4.2.1) Get list of flavors
+            // https://developer.openstack.org/api-ref/compute/?expanded=list-flavors-with-details-detail#list-flavors-with-details
+
+            List<Flavor> allFlavors = await(allFlavorsCall);
+            // attributes:
+            // id - ok
+            // vcpus - ok
+
+
+            // 4.3.1) Get list of vports
+            // https://developer.openstack.org/api-ref/network/v2/index.html?expanded=list-ports-detail#list-ports
+            List<Port> boundPorts = await(boundPortsCall);
+            // dto attributes:
+            // id - ok
+            // device_id - ok
+            // network_id - ok
+
+            // todo api does not work
+
+
+            // 4.4.1) Get list of networks
+            // https://developer.openstack.org/api-ref/network/v2/index.html?expanded=list-networks-detail#list-networks
+
+            List<Network> allNetworks = await(allNetworksCall);
+            // attributes:
+            // id -ok
+            // provider:physical_network - ok
+
+            // todo api does not work
+
+            // todo - seems that api v2 is not supported
+            // GET https://stg-nfv.sirius.pn.telstra.com:9696/ports
+            // >>
+            // 404 Not Found
+            // Unknown API version specified
+        }
+    }
 
-        List<Network> allNetworks = neutronClient.networks().list().execute().getList();
-        // attributes:
-        // id -ok
-        // provider:physical_network - ok
+    static TokenManager.Token<Access> authenticate(String tenant, OpenStackClientConnector connector) {
+        Access access = new Keystone(Credentials.KEYSTONE_AUTH_URL, connector).tokens()
+                .authenticate(new UsernamePassword(Credentials.USERNAME, Credentials.PASS))
+                .withTenantName(tenant)
+                .execute();
+        return new TokenManager.Token<>(access.getToken().getId(), access.getToken().getExpires().toInstant(), access);
+    }
 
-        // todo api does not work
+    static <R> OpenStackRequest<R> withQuery(OpenStackRequest<R> request, ListingQuery.Plan<?> query) {
+        query.getQueryParameters().forEach((name, values) -> values.forEach(value -> request.queryParam(name, value)));
+        return request;
+    }
 
-        // todo - seems that api v2 is not supported
-        // GET https://stg-nfv.sirius.pn.telstra.com:9696/ports
-        // >>
-        // 404 Not Found
-        // Unknown API version specified
+    /**
+     * Hands the current shared token to woorea clients, on 401 they expire it and ask again.
+     */
+    static class SharedTokenProvider implements OpenStackTokenProvider {
+
+        private final TokenManager<Access> tokens;
+        private final String tenant;
+        private volatile TokenManager.Token<Access> lastToken;
+
+        SharedTokenProvider(TokenManager<Access> tokens, String tenant) {
+            this.tokens = tokens;
+            this.tenant = tenant;
+        }
+
+        @Override
+        public String getToken() {
+            lastToken = tokens.get(tenant);
+            return lastToken.getId();
+        }
+
+        @Override
+        public void expireToken() {
+            TokenManager.Token<Access> token = lastToken;
+            if (token != null) {
+                tokens.invalidate(tenant, token);
+            }
+        }
     }
 
 }
@@ -0,0 +1,87 @@
+package org.github.hnyp.osapitest.osjavasdk;
+
+import com.woorea.openstack.base.client.OpenStackClientConnector;
+import com.woorea.openstack.base.client.OpenStackRequest;
+import com.woorea.openstack.base.client.OpenStackResponse;
+import com.woorea.openstack.base.client.OpenStackResponseException;
+import org.github.hnyp.osapitest.common.concurrent.Backpressure;
+import org.github.hnyp.osapitest.common.concurrent.EndpointCap;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+
+import java.net.URI;
+import java.util.Iterator;
+import java.util.ServiceLoader;
+
+/**
+ * Connector of woorea clients recording every request to {@link PipelineMetrics}, delegates to the connector
+ * woorea would pick itself (the first one of {@link ServiceLoader}).
+ * <p>
+ * Connectors throw on error statuses and don't expose the status of successful responses, those are recorded as 200.
+ * Response bytes are taken from Content-Length as the body is read by the connector itself. A 401 of a request
+ * with token is counted as a retry: clients with a token provider expire the token and repeat the request.
+ * <p>
+ * Requests are sent within the {@link Backpressure} of their service and repeated while throttled. Connectors
+ * drop the headers of error responses, so there is no {@code Retry-After} and retries wait for the jittered backoff.
+ * Before that every request waits for a slot of the {@link EndpointCap}, which bounds calls on virtual threads.
+ */
+class MeteredConnector implements OpenStackClientConnector {
+
+    private final OpenStackClientConnector delegate;
+    private final PipelineMetrics metrics;
+    private final Backpressure backpressure;
+    private final EndpointCap endpointCap;
+
+    MeteredConnector(OpenStackClientConnector delegate, PipelineMetrics metrics, Backpressure backpressure,
+                     EndpointCap endpointCap) {
+        this.delegate = delegate;
+        this.metrics = metrics;
+        this.backpressure = backpressure;
+        this.endpointCap = endpointCap;
+    }
+
+    static MeteredConnector wrapDefault(PipelineMetrics metrics, Backpressure backpressure, EndpointCap endpointCap) {
+        Iterator<OpenStackClientConnector> connectors = ServiceLoader.load(OpenStackClientConnector.class).iterator();
+        if (!connectors.hasNext()) {
+            throw new IllegalStateException("No " + OpenStackClientConnector.class.getName() + " on the classpath");
+        }
+        return new MeteredConnector(connectors.next(), metrics, backpressure, endpointCap);
+    }
+
+    @Override
+    public <T> OpenStackResponse request(OpenStackRequest<T> request) {
+        URI uri = URI.create(request.endpoint() + request.path());
+        String endpoint = PipelineMetrics.endpoint(request.method().name(), uri.getRawPath());
+        return endpointCap.call(endpoint,
+                () -> backpressure.call(uri, endpoint, () -> request(request, endpoint), MeteredConnector::throttle));
+    }
+
+    private <T> OpenStackResponse request(OpenStackRequest<T> request, String endpoint) {
+        long startedAt = System.nanoTime();
+        int status = 0;
+        try {
+            OpenStackResponse response = delegate.request(request);
+            status = 200;
+            String contentLength = response.header("Content-Length");
+            if (contentLength != null) {
+                metrics.responseBytes(endpoint, Long.parseLong(contentLength));
+            }
+            return response;
+        } catch (OpenStackResponseException e) {
+            status = e.getStatus();
+            if (status == 401 && request.headers().containsKey("X-Auth-Token")) {
+                metrics.retry(endpoint);
+            }
+            throw e;
+        } finally {
+            metrics.request(endpoint, status, System.nanoTime() - startedAt);
+        }
+    }
+
+    private static Backpressure.Throttle throttle(RuntimeException failure) {
+        if (failure instanceof OpenStackResponseException) {
+            return Backpressure.Throttle.of(((OpenStackResponseException) failure).getStatus(), null);
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,94 @@
+package org.github.hnyp.osapitest.openstack4j;
+
+import org.apache.http.Header;
+import org.apache.http.HttpClientConnection;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.ServiceUnavailableRetryStrategy;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpRequestExecutor;
+import org.github.hnyp.osapitest.common.concurrent.AdaptiveLimiter;
+import org.github.hnyp.osapitest.common.concurrent.Backpressure;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+
+import java.io.IOException;
+import java.net.URI;
+
+/**
+ * {@link Backpressure} of the openstack4j transport, plugged into Apache HttpClient at two points.
+ * <p>
+ * As the request executor it sends every exchange within the limit of its service: the slot is taken once
+ * the connection is leased and released when the response headers arrive, so a throttled or slow response adjusts
+ * the limit before openstack4j reads the body. As the retry strategy it repeats throttled requests after the delay
+ * of {@link Backpressure#retryDelayMillis}; HttpClient asks for the delay right after deciding to retry, on the same
+ * thread, so the delay of the decision is passed along in a thread local.
+ */
+class BackpressureStrategy extends HttpRequestExecutor implements ServiceUnavailableRetryStrategy {
+
+    private static final ThreadLocal<Long> RETRY_DELAY = new ThreadLocal<>();
+
+    private final Backpressure backpressure;
+
+    BackpressureStrategy(Backpressure backpressure) {
+        this.backpressure = backpressure;
+    }
+
+    @Override
+    public HttpResponse execute(HttpRequest request, HttpClientConnection conn, HttpContext context)
+            throws IOException, HttpException {
+        URI uri = uri(request, HttpClientContext.adapt(context).getTargetHost());
+        AdaptiveLimiter.Permit permit = backpressure.acquire(Backpressure.service(uri),
+                PipelineMetrics.endpoint(request.getRequestLine().getMethod(), uri.getRawPath()));
+        AdaptiveLimiter.Outcome outcome = AdaptiveLimiter.Outcome.IGNORED;
+        try {
+            HttpResponse response = super.execute(request, conn, context);
+            int status = response.getStatusLine().getStatusCode();
+            if (Backpressure.Throttle.isThrottling(status)) {
+                outcome = AdaptiveLimiter.Outcome.THROTTLED;
+            } else if (status < 400) {
+                outcome = AdaptiveLimiter.Outcome.SUCCESS;
+            }
+            return response;
+        } finally {
+            permit.release(outcome);
+        }
+    }
+
+    @Override
+    public boolean retryRequest(HttpResponse response, int executionCount, HttpContext context) {
+        RETRY_DELAY.remove();
+        Header retryAfter = response.getFirstHeader("Retry-After");
+        Backpressure.Throttle throttle = Backpressure.Throttle.of(response.getStatusLine().getStatusCode(),
+                retryAfter == null ? null : retryAfter.getValue());
+        if (throttle == null) {
+            return false;
+        }
+        HttpClientContext clientContext = HttpClientContext.adapt(context);
+        URI uri = uri(clientContext.getRequest(), clientContext.getTargetHost());
+        long delay = backpressure.retryDelayMillis(Backpressure.service(uri),
+                PipelineMetrics.endpoint(clientContext.getRequest().getRequestLine().getMethod(), uri.getRawPath()),
+                executionCount, throttle);
+        if (delay < 0) {
+            return false;
+        }
+        RETRY_DELAY.set(delay);
+        return true;
+    }
+
+    @Override
+    public long getRetryInterval() {
+        Long delay = RETRY_DELAY.get();
+        RETRY_DELAY.remove();
+        return delay == null ? 0 : delay;
+    }
+
+    // request URI is absolute or relative depending on the route
+    private static URI uri(HttpRequest request, HttpHost target) {
+        URI uri = URI.create(request.getRequestLine().getUri());
+        return uri.isAbsolute() || target == null ? uri : URI.create(target.toURI() + uri);
+    }
+
+}
@@ -1,55 +1,106 @@
 package org.github.hnyp.osapitest.openstack4j;
 
-import org.apache.http.HttpEntityEnclosingRequest;
-import org.apache.http.HttpException;
-import org.apache.http.HttpRequest;
+import static com.google.common.collect.Sets.newHashSet;
+import static org.github.hnyp.osapitest.common.concurrent.ConcurrentCalls.await;
+
 import org.apache.http.HttpRequestInterceptor;
-import org.apache.http.HttpResponse;
 import org.apache.http.HttpResponseInterceptor;
-import org.apache.http.RequestLine;
-import org.apache.http.client.protocol.HttpClientContext;
-import org.apache.http.entity.BufferedHttpEntity;
-import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
 import org.github.hnyp.osapitest.common.Credentials;
+import org.github.hnyp.osapitest.common.Settings;
+import org.github.hnyp.osapitest.common.TokenManager;
+import org.github.hnyp.osapitest.common.concurrent.Backpressure;
+import org.github.hnyp.osapitest.common.concurrent.ConcurrentCalls;
+import org.github.hnyp.osapitest.common.concurrent.SingleFlight;
+import org.github.hnyp.osapitest.common.inventory.ListingQuery;
+import org.github.hnyp.osapitest.common.inventory.QuerySupport;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
 import org.openstack4j.api.OSClient.OSClientV2;
 import org.openstack4j.connectors.httpclient.HttpClientFactory;
 import org.openstack4j.model.compute.Flavor;
 import org.openstack4j.model.compute.Server;
 import org.openstack4j.model.compute.ext.AvailabilityZone;
 import org.openstack4j.model.compute.ext.Hypervisor;
+import org.openstack4j.model.identity.v2.Access;
 import org.openstack4j.model.network.Network;
 import org.openstack4j.model.network.Port;
 import org.openstack4j.openstack.OSFactory;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
-import java.io.IOException;
+import java.time.Duration;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
 
 public class Main {
 
+    public static final Set<String> ACTIVE_VM_STATUSES = newHashSet(Server.Status.ACTIVE.name(), Server.Status.BUILD.name());
+
+    // ServerService.list(Map) takes a single value per filter,
+    // PortListOptions has no "fields", so ports are projected on the client
+    static final QuerySupport NOVA_SERVERS_QUERY_SUPPORT = new QuerySupport()
+            .param("status", 1);
+    static final QuerySupport NEUTRON_PORTS_QUERY_SUPPORT = new QuerySupport();
+
     public static void main(String[] args) {
 
 //        OSFactory.enableHttpLoggingFilter(true);
 //        SLF4JBridgeHandler.removeHandlersForRootLogger();
 //        SLF4JBridgeHandler.install();
 
+        // pooled keep-alive connections, compression and timeouts, adaptive concurrency limits with retries
+        // of throttled requests, metrics and logging interceptors on top
+        TransportProfile transport = TransportProfile.fromSettings();
+        PipelineMetrics metrics = PipelineMetrics.fromSettings();
+        BackpressureStrategy backpressure = new BackpressureStrategy(Backpressure.fromSettings(metrics));
         HttpClientFactory.registerInterceptor((httpClientBuilder, requestConfig, config) -> {
-            RequestResponseInterceptor interceptor = new RequestResponseInterceptor();
+            transport.onClientCreate(httpClientBuilder, requestConfig, config);
+            httpClientBuilder.setRequestExecutor(backpressure);
+            httpClientBuilder.setServiceUnavailableRetryStrategy(backpressure);
+            MetricsInterceptor metricsInterceptor = new MetricsInterceptor(metrics);
+            httpClientBuilder.addInterceptorLast((HttpRequestInterceptor) metricsInterceptor);
+            httpClientBuilder.addInterceptorLast((HttpResponseInterceptor) metricsInterceptor);
+            RequestResponseInterceptor interceptor = RequestResponseInterceptor.fromSettings();
             httpClientBuilder.addInterceptorLast((HttpRequestInterceptor) interceptor);
             httpClientBuilder.addInterceptorLast((HttpResponseInterceptor) interceptor);
         });
 
-        OSClientV2 os = OSFactory.builderV2()
-                .endpoint(Credentials.KEYSTONE_AUTH_URL)
-                .credentials(Credentials.USERNAME, Credentials.PASS)
-                .tenantName(Credentials.TENANT)
-                .authenticate();
+        TokenManager<Access> tokens = new TokenManager<>(Main::authenticate,
+                Duration.ofSeconds(Settings.TOKEN_REFRESH_AHEAD_SECONDS));
+
+        // Listings don't depend on each other, all of them are sent at once.
+        // Identical servers, flavors and ports listings of concurrent consumers are sent once.
+        ConcurrentCalls calls = new ConcurrentCalls(Settings.CALLS_CONCURRENCY,
+                Duration.ofSeconds(Settings.CALLS_TIMEOUT_SECONDS), metrics);
+        SingleFlight listings = SingleFlight.fromSettings(metrics);
+        CompletableFuture<List<? extends AvailabilityZone>> availabilityZonesCall = calls.submit("1) availability zones",
+                () -> client(tokens).compute().zones().list(true));
+        CompletableFuture<List<? extends Hypervisor>> hypervisorsCall = calls.submit("2.1) hypervisors",
+                () -> client(tokens).compute().hypervisors().list());
+        ListingQuery.Plan<Server> activeServersQuery = new ListingQuery<Server>()
+                .filter("status", ACTIVE_VM_STATUSES, vm -> vm.getStatus().name())
+                .plan(NOVA_SERVERS_QUERY_SUPPORT);
+        CompletableFuture<List<Server>> activeServersCall = calls.submit("4.1) servers",
+                () -> listings.call("servers", activeServersQuery.getQueryParameters().toString(),
+                        () -> client(tokens).compute().servers()
+                                .list(singleValued(activeServersQuery.getQueryParameters()))).stream()
+                        .filter(activeServersQuery::test)
+                        .collect(Collectors.toList()));
+        CompletableFuture<List<? extends Flavor>> allFlavorsCall = calls.submit("4.2.1) flavors",
+                () -> listings.call("flavors", "", () -> client(tokens).compute().flavors().list(true)));
+        ListingQuery.Plan<Port> boundVportsQuery = new ListingQuery<Port>()
+                .require(p -> p.getDeviceId() != null && !p.getDeviceId().isEmpty())
+                .plan(NEUTRON_PORTS_QUERY_SUPPORT);
+        CompletableFuture<List<Port>> boundVportsCall = calls.submit("4.3.1) ports",
+                () -> listings.call("ports", "", () -> client(tokens).networking().port().list()).stream()
+                        .filter(boundVportsQuery::test)
+                        .collect(Collectors.toList()));
+        CompletableFuture<List<? extends Network>> allNetworksCall = calls.submit("4.4.1) networks",
+                () -> client(tokens).networking().network().list());
 
         // 1) Get list of AZ
         // https://developer.openstack.org/api-ref/compute/?expanded=#get-detailed-availability-zone-information
-        List<? extends AvailabilityZone> availabilityZones = os.compute().zones().list(true);
+        List<? extends AvailabilityZone> availabilityZones = await(availabilityZonesCall);
 //        System.out.println("Availability zones: \n" + availabilityZones + "\n");
         // attributes:
         // zoneName - org.openstack4j.model.compute.ext.AvailabilityZone.getZoneName
@@ -58,7 +109,7 @@ public class Main {
 
         // 2.1) Get information basic about available resources in computes(hypervisors).
         // https://developer.openstack.org/api-ref/compute/?expanded=#list-hypervisors-details
-        List<? extends Hypervisor> hypervisors = os.compute().hypervisors().list();
+        List<? extends Hypervisor> hypervisors = await(hypervisorsCall);
 //        System.out.println("Hypervisors: \n" + hypervisors + "\n");
         // attributes:
         // free_ram_mb - org.openstack4j.model.compute.ext.Hypervisor.getFreeRam
@@ -71,8 +122,8 @@ public class Main {
         // but filter in Nova applies only one compute, so all VMs could be received, instead of sending API for each node.
         // + other APIs dosn't support filtration by compute node):
         // https://developer.openstack.org/api-ref/compute/?expanded=#list-servers-detailed
-        List<? extends Server> allServers = os.compute().servers().list(true);
-//        System.out.println("VMs: \n" + allServers + "\n");
+        List<Server> activeServers = await(activeServersCall);
+//        System.out.println("VMs: \n" + activeServers + "\n");
         // attributes:
         // "flavor" - org.openstack4j.model.compute.Server.getFlavorId
         //          - org.openstack4j.model.compute.Server.getFlavor - flavor details
@@ -81,7 +132,7 @@ public class Main {
 
         // 4.2.1) Get list of flavors
         // https://developer.openstack.org/api-ref/compute/?expanded=list-flavors-with-details-detail#list-flavors-with-details
-        List<? extends Flavor> allFlavors = os.compute().flavors().list(true);
+        List<? extends Flavor> allFlavors = await(allFlavorsCall);
 //        System.out.println("Flavors: \n" + allFlavors + "\n");
         // attributes:
         // "id" - org.openstack4j.model.compute.Flavor.getId
@@ -89,8 +140,8 @@ public class Main {
 
         // 4.3.1) Get list of vports
         // https://developer.openstack.org/api-ref/network/v2/index.html?expanded=list-ports-detail#list-ports
-        List<? extends Port> allVports = os.networking().port().list();
-//        System.out.println("vPorts: \n" + allVports + "\n");
+        List<Port> boundVports = await(boundVportsCall);
+//        System.out.println("vPorts: \n" + boundVports + "\n");
         // attributes:
         //  "id" - org.openstack4j.model.common.IdEntity.getId
         //  "device_id" - org.openstack4j.model.network.Port.getDeviceId
@@ -98,58 +149,41 @@ public class Main {
 
         // 4.4.1) Get list of networks
         // https://developer.openstack.org/api-ref/network/v2/index.html?expanded=list-networks-detail#list-networks
-        List<? extends Network> allNetworks = os.networking().network().list();
+        List<? extends Network> allNetworks = await(allNetworksCall);
 //        System.out.println("Networks: \n" + allNetworks + "\n");
         // attributes:
         // "id" - org.openstack4j.model.common.IdEntity.getId
         // "provider:physical_network" - org.openstack4j.model.network.Network.getProviderPhyNet
-    }
 
-    static class RequestResponseInterceptor implements HttpRequestInterceptor, HttpResponseInterceptor {
-
-        private static final Logger LOG = LoggerFactory.getLogger(RequestResponseInterceptor.class);
-
-        @Override
-        public void process(HttpRequest httpRequest, HttpContext httpContext) throws HttpException, IOException {
-            String formattedRequestLine = formatRequestLine(httpRequest, httpContext);
-
-            String bodyContent = "<empty>";
-            if (httpRequest instanceof HttpEntityEnclosingRequest) {
-                bodyContent = EntityUtils.toString(((HttpEntityEnclosingRequest) httpRequest).getEntity());
-            }
-
-            LOG.info("Outgoing request {}, with headers {}, with body {}", formattedRequestLine,
-                    httpRequest.getAllHeaders(), bodyContent);
+        System.out.println("HTTP connection pool: " + transport.poolStats());
+        if (Settings.METRICS_REPORT) {
+            metrics.report(System.out);
         }
 
-        @Override
-        public void process(HttpResponse httpResponse, HttpContext httpContext) throws HttpException, IOException {
-
-            HttpClientContext context = (HttpClientContext) httpContext;
-            HttpRequest request = ((HttpClientContext) httpContext).getRequest();
-
-            String formattedRequestLine = formatRequestLine(request, httpContext);
-
-            String bodyContent = "<empty>";
-            if (httpResponse.getEntity() != null) {
-                if (!httpResponse.getEntity().isRepeatable()) {
-                    httpResponse.setEntity(new BufferedHttpEntity(httpResponse.getEntity()));
-                }
-                bodyContent = EntityUtils.toString(httpResponse.getEntity());
-            }
-
-            LOG.info("Incoming response {} from {}, with body {}", httpResponse.getStatusLine(), formattedRequestLine,
-                    bodyContent);
-        }
+        calls.close();
+        tokens.close();
+        transport.close();
+        metrics.close();
+    }
 
-        private static String formatRequestLine(HttpRequest request, HttpContext context) {
-            String targetHost = ((HttpClientContext) context).getTargetHost().toString();
-            RequestLine requestLine = request.getRequestLine();
-            return String.format("%s %s%s", requestLine.getMethod(),
-                    targetHost, requestLine.getUri());
-        }
+    static TokenManager.Token<Access> authenticate(String tenant) {
+        Access access = OSFactory.builderV2()
+                .endpoint(Credentials.KEYSTONE_AUTH_URL)
+                .credentials(Credentials.USERNAME, Credentials.PASS)
+                .tenantName(tenant)
+                .authenticate()
+                .getAccess();
+        return new TokenManager.Token<>(access.getToken().getId(), access.getToken().getExpires().toInstant(), access);
+    }
 
+    // OSClient session is bound to the thread, so each call attaches the shared access (token and catalog) to its own thread
+    static OSClientV2 client(TokenManager<Access> tokens) {
+        return OSFactory.clientFromAccess(tokens.get(Credentials.TENANT).getAccess());
     }
 
+    static Map<String, String> singleValued(Map<String, List<String>> queryParameters) {
+        return queryParameters.entrySet().stream()
+                .collect(Collectors.toMap(Map.Entry::getKey, e -> e.getValue().get(0)));
+    }
 
 }
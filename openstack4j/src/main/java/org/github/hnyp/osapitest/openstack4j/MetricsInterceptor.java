@@ -0,0 +1,93 @@
+package org.github.hnyp.osapitest.openstack4j;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.RequestLine;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.github.hnyp.osapitest.common.metrics.CountingInputStream;
+import org.github.hnyp.osapitest.common.metrics.PipelineMetrics;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+
+/**
+ * Records openstack4j requests to {@link PipelineMetrics}: latency until the response headers and response body bytes
+ * (decompressed) counted while openstack4j reads the body.
+ * <p>
+ * The exchange context is shared by the attempts of a request, so a request which finds the start time of
+ * a previous attempt there is a retry of Apache HttpClient.
+ */
+class MetricsInterceptor implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+    private static final String STARTED_AT = MetricsInterceptor.class.getName() + ".startedAt";
+
+    private final PipelineMetrics metrics;
+
+    MetricsInterceptor(PipelineMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public void process(HttpRequest httpRequest, HttpContext httpContext) throws HttpException, IOException {
+        if (httpContext.getAttribute(STARTED_AT) != null) {
+            metrics.retry(endpoint(httpRequest));
+        }
+        httpContext.setAttribute(STARTED_AT, System.nanoTime());
+    }
+
+    @Override
+    public void process(HttpResponse httpResponse, HttpContext httpContext) throws HttpException, IOException {
+        Long startedAt = (Long) httpContext.getAttribute(STARTED_AT);
+        if (startedAt == null) {
+            return;
+        }
+        String endpoint = endpoint(((HttpClientContext) httpContext).getRequest());
+        metrics.request(endpoint, httpResponse.getStatusLine().getStatusCode(), System.nanoTime() - startedAt);
+
+        HttpEntity entity = httpResponse.getEntity();
+        if (entity != null) {
+            httpResponse.setEntity(new CountingEntity(entity, endpoint));
+        }
+    }
+
+    // request URI is absolute or relative depending on the route
+    private static String endpoint(HttpRequest request) {
+        RequestLine requestLine = request.getRequestLine();
+        return PipelineMetrics.endpoint(requestLine.getMethod(), URI.create(requestLine.getUri()).getRawPath());
+    }
+
+    private class CountingEntity extends HttpEntityWrapper {
+
+        private final String endpoint;
+
+        CountingEntity(HttpEntity wrapped, String endpoint) {
+            super(wrapped);
+            this.endpoint = endpoint;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new CountingInputStream(super.getContent(), bytes -> metrics.responseBytes(endpoint, bytes));
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream content = getContent()) {
+                byte[] chunk = new byte[8192];
+                int read;
+                while ((read = content.read(chunk)) != -1) {
+                    out.write(chunk, 0, read);
+                }
+            }
+        }
+    }
+
+}
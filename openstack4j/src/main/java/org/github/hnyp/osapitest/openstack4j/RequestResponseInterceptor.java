@@ -0,0 +1,322 @@
+package org.github.hnyp.osapitest.openstack4j;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonStreamContext;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
+import org.apache.http.RequestLine;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.protocol.HttpContext;
+import org.github.hnyp.osapitest.common.Settings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Wire logging of openstack4j requests, one record per exchange written when the response body is consumed.
+ * <p>
+ * Does nothing unless INFO is enabled for this logger. Exchanges are sampled by endpoint (substring of the path)
+ * and percentage, responses with status from {@code wire.log.status.always} are always logged.
+ * The response body is not buffered: a prefix of it (whole body with {@code wire.log.full.body}) is copied
+ * while openstack4j reads the stream. Auth token header, Keystone password and issued token id are masked.
+ * Records are expected to go to an async appender, see log4j2.xml.
+ */
+class RequestResponseInterceptor implements HttpRequestInterceptor, HttpResponseInterceptor {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RequestResponseInterceptor.class);
+
+    // bodies are re-written with secrets blanked, as they came otherwise: no reformatting, no closing of cut ones
+    private static final JsonFactory JSON = new JsonFactory()
+            .disable(JsonGenerator.Feature.AUTO_CLOSE_JSON_CONTENT);
+    private static final String STARTED_AT = RequestResponseInterceptor.class.getName() + ".startedAt";
+
+    private final List<String> endpoints;
+    private final int samplePercent;
+    private final int alwaysFromStatus;
+    private final int bodyMaxBytes;
+
+    RequestResponseInterceptor(List<String> endpoints, int samplePercent, int alwaysFromStatus, int bodyMaxBytes) {
+        this.endpoints = endpoints;
+        this.samplePercent = samplePercent;
+        this.alwaysFromStatus = alwaysFromStatus;
+        this.bodyMaxBytes = bodyMaxBytes;
+    }
+
+    static RequestResponseInterceptor fromSettings() {
+        return new RequestResponseInterceptor(Settings.WIRE_LOG_ENDPOINTS, Settings.WIRE_LOG_SAMPLE_PERCENT,
+                Settings.WIRE_LOG_STATUS_ALWAYS,
+                Settings.WIRE_LOG_FULL_BODY ? Integer.MAX_VALUE : Settings.WIRE_LOG_BODY_MAX_BYTES);
+    }
+
+    @Override
+    public void process(HttpRequest httpRequest, HttpContext httpContext) throws HttpException, IOException {
+        if (LOG.isInfoEnabled()) {
+            httpContext.setAttribute(STARTED_AT, System.nanoTime());
+        }
+    }
+
+    @Override
+    public void process(HttpResponse httpResponse, HttpContext httpContext) throws HttpException, IOException {
+        Long startedAt = (Long) httpContext.getAttribute(STARTED_AT);
+        if (startedAt == null) {
+            return;
+        }
+        HttpClientContext context = (HttpClientContext) httpContext;
+        HttpRequest request = context.getRequest();
+        int status = httpResponse.getStatusLine().getStatusCode();
+        if (status < alwaysFromStatus && !sampled(request.getRequestLine().getUri())) {
+            return;
+        }
+
+        String exchange = String.format("%s -> %s in %d ms, request headers %s, request body %s",
+                formatRequestLine(request, context), httpResponse.getStatusLine(),
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedAt),
+                formatHeaders(request.getAllHeaders()), requestBody(request));
+
+        HttpEntity entity = httpResponse.getEntity();
+        if (entity == null) {
+            LOG.info("{}, response body <empty>", exchange);
+        } else {
+            httpResponse.setEntity(new CapturingEntity(entity, exchange, bodyMaxBytes));
+        }
+    }
+
+    private boolean sampled(String uri) {
+        if (!endpoints.isEmpty() && endpoints.stream().noneMatch(uri::contains)) {
+            return false;
+        }
+        return samplePercent >= 100 || ThreadLocalRandom.current().nextInt(100) < samplePercent;
+    }
+
+    // request bodies are small (auth), only repeatable ones are read, so that the request is sent as is
+    private String requestBody(HttpRequest request) throws IOException {
+        if (!(request instanceof HttpEntityEnclosingRequest)) {
+            return "<empty>";
+        }
+        HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+        if (entity == null) {
+            return "<empty>";
+        }
+        if (!entity.isRepeatable()) {
+            return "<streamed>";
+        }
+        BoundedBuffer buffer = new BoundedBuffer(bodyMaxBytes);
+        try (InputStream content = entity.getContent()) {
+            byte[] chunk = new byte[1024];
+            int read;
+            while (!buffer.isFull() && (read = content.read(chunk)) != -1) {
+                buffer.write(chunk, 0, read);
+            }
+        }
+        return maskSecrets(buffer);
+    }
+
+    private static String maskSecrets(BoundedBuffer body) {
+        return maskSecrets(body.content()) + (body.truncated ? "...<truncated>" : "");
+    }
+
+    /**
+     * Blanks {@code password} (Keystone requests) and {@code token.id} (its responses) wherever they are in the
+     * body, whatever the order of fields. A body cut by the size limit is kept up to its last complete token,
+     * a body which is not JSON is kept as is.
+     */
+    static String maskSecrets(String body) {
+        StringWriter masked = new StringWriter(body.length());
+        try (JsonParser json = JSON.createParser(body); JsonGenerator out = JSON.createGenerator(masked)) {
+            JsonToken token = json.nextToken();
+            if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+                return body;
+            }
+            try {
+                do {
+                    if (token.isScalarValue() && isSecret(json.getParsingContext())) {
+                        out.writeString("***");
+                    } else {
+                        out.copyCurrentEvent(json);
+                    }
+                } while ((token = json.nextToken()) != null);
+            } catch (IOException e) {
+                // cut by the size limit, the incomplete rest is not logged
+            }
+            out.flush();
+        } catch (IOException e) {
+            return body;
+        }
+        return masked.toString();
+    }
+
+    // scalar value of a field named password, or of id in an object under a field named token
+    private static boolean isSecret(JsonStreamContext value) {
+        String field = value.getCurrentName();
+        if ("password".equals(field)) {
+            return true;
+        }
+        return "id".equals(field) && value.inObject() && value.getParent() != null
+                && "token".equals(value.getParent().getCurrentName());
+    }
+
+    private static String formatHeaders(Header[] headers) {
+        StringBuilder formatted = new StringBuilder("[");
+        for (Header header : headers) {
+            if (formatted.length() > 1) {
+                formatted.append(", ");
+            }
+            formatted.append(header.getName()).append(": ")
+                    .append("X-Auth-Token".equalsIgnoreCase(header.getName()) ? "***" : header.getValue());
+        }
+        return formatted.append(']').toString();
+    }
+
+    private static String formatRequestLine(HttpRequest request, HttpContext context) {
+        String targetHost = ((HttpClientContext) context).getTargetHost().toString();
+        RequestLine requestLine = request.getRequestLine();
+        return String.format("%s %s%s", requestLine.getMethod(),
+                targetHost, requestLine.getUri());
+    }
+
+    /**
+     * Copies up to the limit of the body while it's read, logs the exchange once the stream is exhausted or closed.
+     */
+    private static class CapturingEntity extends HttpEntityWrapper {
+
+        private final String exchange;
+        private final int maxBytes;
+
+        CapturingEntity(HttpEntity wrapped, String exchange, int maxBytes) {
+            super(wrapped);
+            this.exchange = exchange;
+            this.maxBytes = maxBytes;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            return new CapturingInputStream(super.getContent(), exchange, maxBytes);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream content = getContent()) {
+                byte[] chunk = new byte[8192];
+                int read;
+                while ((read = content.read(chunk)) != -1) {
+                    out.write(chunk, 0, read);
+                }
+            }
+        }
+    }
+
+    private static class CapturingInputStream extends FilterInputStream {
+
+        private final String exchange;
+        private final BoundedBuffer prefix;
+        private long total;
+        private boolean logged;
+
+        CapturingInputStream(InputStream in, String exchange, int maxBytes) {
+            super(in);
+            this.exchange = exchange;
+            this.prefix = new BoundedBuffer(maxBytes);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b == -1) {
+                log();
+            } else {
+                total++;
+                prefix.write(b);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read == -1) {
+                log();
+            } else {
+                total += read;
+                prefix.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                log();
+            }
+        }
+
+        private void log() {
+            if (!logged) {
+                logged = true;
+                LOG.info("{}, response body ({} bytes) {}", exchange, total, maskSecrets(prefix));
+            }
+        }
+    }
+
+    private static class BoundedBuffer extends ByteArrayOutputStream {
+
+        private final int maxBytes;
+        private boolean truncated;
+
+        BoundedBuffer(int maxBytes) {
+            super(Math.min(maxBytes, 8192));
+            this.maxBytes = maxBytes;
+        }
+
+        boolean isFull() {
+            return count >= maxBytes;
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            if (isFull()) {
+                truncated = true;
+            } else {
+                super.write(b);
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            int accepted = Math.min(len, maxBytes - count);
+            truncated |= accepted < len;
+            super.write(b, off, accepted);
+        }
+
+        synchronized String content() {
+            return new String(buf, 0, count, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public synchronized String toString() {
+            return content() + (truncated ? "...<truncated>" : "");
+        }
+    }
+
+}
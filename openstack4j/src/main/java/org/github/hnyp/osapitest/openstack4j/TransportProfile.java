@@ -0,0 +1,150 @@
+package org.github.hnyp.osapitest.openstack4j;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.config.Registry;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
+import org.github.hnyp.osapitest.common.Settings;
+import org.openstack4j.connectors.httpclient.HttpClientConfigInterceptor;
+import org.openstack4j.core.transport.Config;
+import org.openstack4j.core.transport.UntrustedSSL;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * HTTP transport of openstack4j: connection pool, keep-alive, compression and timeouts.
+ * <p>
+ * openstack4j builds a single Apache HttpClient for the process and leaves it at library defaults
+ * (2 connections per route, no idle eviction), so concurrent listings queue for connections
+ * and reconnect (TLS handshake included) more often than needed. The profile plugs its own pooling connection manager
+ * in through {@link org.openstack4j.connectors.httpclient.HttpClientFactory#registerInterceptor}
+ * and keeps it to report pool statistics.
+ */
+class TransportProfile implements HttpClientConfigInterceptor, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(TransportProfile.class);
+
+    private final int maxTotal;
+    private final int maxPerRoute;
+    private final int keepAliveSeconds;
+    private final boolean compression;
+    private final int connectTimeoutMillis;
+    private final int socketTimeoutMillis;
+    private final ScheduledExecutorService evictor;
+
+    private volatile PoolingHttpClientConnectionManager connectionManager;
+
+    TransportProfile(int maxTotal, int maxPerRoute, int keepAliveSeconds, boolean compression,
+                     int connectTimeoutMillis, int socketTimeoutMillis) {
+        this.maxTotal = maxTotal;
+        this.maxPerRoute = maxPerRoute;
+        this.keepAliveSeconds = keepAliveSeconds;
+        this.compression = compression;
+        this.connectTimeoutMillis = connectTimeoutMillis;
+        this.socketTimeoutMillis = socketTimeoutMillis;
+        this.evictor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "http-pool-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    static TransportProfile fromSettings() {
+        return new TransportProfile(Settings.HTTP_POOL_MAX_TOTAL, Settings.HTTP_POOL_MAX_PER_ROUTE,
+                Settings.HTTP_KEEP_ALIVE_SECONDS, Settings.HTTP_COMPRESSION,
+                Settings.HTTP_CONNECT_TIMEOUT_MILLIS, Settings.HTTP_SOCKET_TIMEOUT_MILLIS);
+    }
+
+    @Override
+    public void onClientCreate(HttpClientBuilder httpClientBuilder, RequestConfig.Builder requestConfig, Config config) {
+        // builder's own pool and SSL settings are ignored once a connection manager is set, SSL is configured here
+        PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager(socketFactories(config));
+        manager.setMaxTotal(maxTotal);
+        manager.setDefaultMaxPerRoute(maxPerRoute);
+        manager.setDefaultSocketConfig(SocketConfig.custom()
+                .setSoKeepAlive(true)
+                .setTcpNoDelay(true)
+                .setSoTimeout(socketTimeoutMillis)
+                .build());
+        connectionManager = manager;
+
+        httpClientBuilder.setConnectionManager(manager);
+        httpClientBuilder.setConnectionReuseStrategy(DefaultConnectionReuseStrategy.INSTANCE);
+        httpClientBuilder.setKeepAliveStrategy(this::keepAliveMillis);
+        // enabled: "Accept-Encoding: gzip,deflate" is sent and responses are decompressed before interceptors added last
+        if (!compression) {
+            httpClientBuilder.disableContentCompression();
+        }
+
+        requestConfig.setConnectTimeout(connectTimeoutMillis);
+        requestConfig.setConnectionRequestTimeout(connectTimeoutMillis);
+        requestConfig.setSocketTimeout(socketTimeoutMillis);
+        // stale check costs a read per request, idle connections are evicted in background instead
+        requestConfig.setStaleConnectionCheckEnabled(false);
+
+        long evictionPeriod = Math.max(keepAliveSeconds, 1);
+        evictor.scheduleWithFixedDelay(() -> {
+            manager.closeExpiredConnections();
+            manager.closeIdleConnections(keepAliveSeconds, TimeUnit.SECONDS);
+        }, evictionPeriod, evictionPeriod, TimeUnit.SECONDS);
+        LOG.info("HTTP transport: pool {}/{} per route, keep-alive {}s, compression {}, timeouts connect {}ms socket {}ms",
+                maxTotal, maxPerRoute, keepAliveSeconds, compression, connectTimeoutMillis, socketTimeoutMillis);
+    }
+
+    /**
+     * @return leased, pending and available connections of the pool, or "not created" before the first request
+     */
+    String poolStats() {
+        PoolingHttpClientConnectionManager manager = connectionManager;
+        if (manager == null) {
+            return "not created";
+        }
+        PoolStats stats = manager.getTotalStats();
+        return "leased=" + stats.getLeased() +
+                ", pending=" + stats.getPending() +
+                ", available=" + stats.getAvailable() +
+                ", max=" + stats.getMax();
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdownNow();
+    }
+
+    // server's "Keep-Alive: timeout=N" wins, connections without it are reused for the configured time
+    private long keepAliveMillis(HttpResponse response, HttpContext context) {
+        long serverKeepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        return serverKeepAlive > 0 ? serverKeepAlive : TimeUnit.SECONDS.toMillis(keepAliveSeconds);
+    }
+
+    private static Registry<ConnectionSocketFactory> socketFactories(Config config) {
+        SSLConnectionSocketFactory ssl;
+        if (config.isIgnoreSSLVerification()) {
+            ssl = new SSLConnectionSocketFactory(UntrustedSSL.getSSLContext(),
+                    SSLConnectionSocketFactory.ALLOW_ALL_HOSTNAME_VERIFIER);
+        } else if (config.getSslContext() != null) {
+            ssl = new SSLConnectionSocketFactory(config.getSslContext());
+        } else {
+            ssl = SSLConnectionSocketFactory.getSocketFactory();
+        }
+        return RegistryBuilder.<ConnectionSocketFactory>create()
+                .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                .register("https", ssl)
+                .build();
+    }
+
+}